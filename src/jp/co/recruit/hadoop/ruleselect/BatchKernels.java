@@ -0,0 +1,269 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.Map;
+
+import jp.co.recruit.hadoop.ruleselect.Rule.Operators;
+
+import org.knime.base.node.rules.RuleNode;
+
+/**
+ * Comparison kernels that evaluate a predicate on a whole column of a batch
+ * and the helpers for the row masks of {@link BatchNode}. The kernels are
+ * plain loops over primitive arrays with one loop per operator, so that the
+ * JIT compiler can unroll them and keep the comparison out of the loop; the
+ * masks are combined 64 rows at a time.
+ *
+ * @author Krishna
+ */
+final class BatchKernels {
+    private BatchKernels() {
+    }
+
+    /**
+     * Returns the number of mask words for a number of rows.
+     *
+     * @param size the number of rows
+     * @return the number of longs
+     */
+    static int words(final int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * Returns a mask in which the bits of all rows are set.
+     *
+     * @param size the number of rows
+     * @return a new mask
+     */
+    static long[] all(final int size) {
+        long[] mask = new long[words(size)];
+        for (int w = 0; w < mask.length; w++) {
+            int rest = size - (w << 6);
+            mask[w] = (rest >= 64) ? -1L : (1L << rest) - 1;
+        }
+        return mask;
+    }
+
+    /**
+     * Returns if no bit is set in a mask.
+     *
+     * @param mask a mask
+     * @return <code>true</code> if the mask is empty
+     */
+    static boolean isEmpty(final long[] mask) {
+        for (long w : mask) {
+            if (w != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates a node on the selected rows of a batch. Batch nodes evaluate
+     * all rows at once, all other nodes are evaluated row by row on the
+     * selected rows only.
+     *
+     * @param node a rule node
+     * @param batch a batch of rows
+     * @param selection the mask of the rows that have to be evaluated
+     * @param result the mask the matching rows are written to
+     */
+    static void evaluate(final RuleNode node, final RowBatch batch,
+            final long[] selection, final long[] result) {
+        if (node instanceof BatchNode) {
+            ((BatchNode)node).evaluate(batch, selection, result);
+            return;
+        }
+        for (int w = 0; w < selection.length; w++) {
+            long bits = selection[w];
+            long r = 0;
+            while (bits != 0) {
+                long lowest = bits & -bits;
+                int row = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (node.evaluate(batch.getRow(row))) {
+                    r |= lowest;
+                }
+                bits ^= lowest;
+            }
+            result[w] = r;
+        }
+    }
+
+    /**
+     * Decides from the statistics of a block if a node matches all of its
+     * rows or none. Only batch nodes can decide this.
+     *
+     * @param node a rule node
+     * @param zone the block's statistics
+     * @return the outcome for the block
+     */
+    static ZoneMap.Truth prune(final RuleNode node, final ZoneMap.Zone zone) {
+        if (node instanceof BatchNode) {
+            return ((BatchNode)node).prune(zone);
+        }
+        return ZoneMap.Truth.UNKNOWN;
+    }
+
+    /**
+     * Returns if a node needs the rows of a batch. All nodes except batch
+     * nodes are evaluated row by row.
+     *
+     * @param node a rule node
+     * @return <code>true</code> if the node reads rows
+     */
+    static boolean needsRows(final RuleNode node) {
+        return !(node instanceof BatchNode) || ((BatchNode)node).needsRows();
+    }
+
+    /**
+     * Adds the columns whose block statistics a node uses.
+     *
+     * @param node a rule node
+     * @param columns a map from the column's index to the kind of its values
+     */
+    static void addColumns(final RuleNode node,
+            final Map<Integer, ValueKind> columns) {
+        if (node instanceof BatchNode) {
+            ((BatchNode)node).addColumns(columns);
+        }
+    }
+
+    /**
+     * Restricts the result of a kernel to the selected rows with a value.
+     *
+     * @param result the kernel's result, changed in place
+     * @param missing the mask of the rows with a missing value
+     * @param selection the mask of the selected rows
+     */
+    static void restrict(final long[] result, final long[] missing,
+            final long[] selection) {
+        for (int w = 0; w < result.length; w++) {
+            result[w] &= selection[w] & ~missing[w];
+        }
+    }
+
+    /**
+     * Compares the values of a column to a constant.
+     *
+     * @param op the comparison, one of <tt>&gt;</tt>, <tt>&gt;=</tt>,
+     *            <tt>&lt;</tt>, <tt>&lt;=</tt> and <tt>=</tt>
+     * @param values the column's values
+     * @param size the number of rows
+     * @param c the constant
+     * @param result the mask of the rows for which the comparison holds
+     */
+    static void compare(final Operators op, final long[] values,
+            final int size, final long c, final long[] result) {
+        int w = 0;
+        for (int start = 0; start < size; start += 64, w++) {
+            int end = Math.min(start + 64, size);
+            long bits = 0;
+            switch (op) {
+                case GT:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] > c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case GE:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] >= c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case LT:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] < c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case LE:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] <= c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case EQ:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] == c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator "
+                            + op);
+            }
+            result[w] = bits;
+        }
+    }
+
+    /**
+     * Compares the values of a column to a constant.
+     *
+     * @param op the comparison, one of <tt>&gt;</tt>, <tt>&gt;=</tt>,
+     *            <tt>&lt;</tt>, <tt>&lt;=</tt> and <tt>=</tt>
+     * @param values the column's values
+     * @param size the number of rows
+     * @param c the constant
+     * @param result the mask of the rows for which the comparison holds
+     */
+    static void compare(final Operators op, final double[] values,
+            final int size, final double c, final long[] result) {
+        int w = 0;
+        for (int start = 0; start < size; start += 64, w++) {
+            int end = Math.min(start + 64, size);
+            long bits = 0;
+            switch (op) {
+                case GT:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] > c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case GE:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] >= c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case LT:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] < c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case LE:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] <= c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                case EQ:
+                    for (int i = start; i < end; i++) {
+                        bits |= ((values[i] == c) ? 1L : 0L) << (i - start);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator "
+                            + op);
+            }
+            result[w] = bits;
+        }
+    }
+
+    /**
+     * Checks if the values of a column lie between two constants (both
+     * inclusive).
+     *
+     * @param values the column's values
+     * @param size the number of rows
+     * @param from the lower bound
+     * @param to the upper bound
+     * @param result the mask of the rows inside the bounds
+     */
+    static void between(final long[] values, final int size, final long from,
+            final long to, final long[] result) {
+        int w = 0;
+        for (int start = 0; start < size; start += 64, w++) {
+            int end = Math.min(start + 64, size);
+            long bits = 0;
+            for (int i = start; i < end; i++) {
+                bits |= (((values[i] >= from) & (values[i] <= to)) ? 1L : 0L)
+                        << (i - start);
+            }
+            result[w] = bits;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.Map;
+
+import org.knime.base.node.rules.RuleNode;
+
+/**
+ * A rule node that can evaluate all rows of a batch at once. The result is a
+ * bit mask with one bit per row of the batch, 64 rows per long; bit
+ * <code>i % 64</code> of word <code>i / 64</code> belongs to row
+ * <code>i</code>. Nodes that do not implement this interface are evaluated
+ * row by row, see {@link BatchKernels#evaluate}. Batch nodes can also decide
+ * from the statistics of a {@link ZoneMap} that a block matches entirely or
+ * not at all.
+ *
+ * @author Krishna
+ */
+interface BatchNode extends RuleNode {
+    /**
+     * Evaluates the node on the selected rows of a batch. Bits may only be
+     * set for selected rows; the result for other rows is not needed, so
+     * nodes that are expensive per row may skip them.
+     *
+     * @param batch a batch of rows
+     * @param selection the mask of the rows that have to be evaluated
+     * @param result the mask the matching rows are written to, its previous
+     *            content is overwritten
+     */
+    void evaluate(RowBatch batch, long[] selection, long[] result);
+
+    /**
+     * Adds the columns whose block statistics the node uses.
+     *
+     * @param columns a map from the column's index to the kind of its values
+     */
+    void addColumns(Map<Integer, ValueKind> columns);
+
+    /**
+     * Decides from the statistics of a block if the node matches all of its
+     * rows or none.
+     *
+     * @param zone the block's statistics
+     * @return the outcome for the block
+     */
+    ZoneMap.Truth prune(ZoneMap.Zone zone);
+
+    /**
+     * Returns if the node needs the rows of a batch, or only the primitive
+     * values of its columns. Only nodes that do not need the rows can be
+     * evaluated on batches that are read from a {@link ColumnCache}.
+     *
+     * @return <code>true</code> if the node or one of its children reads
+     *         rows
+     */
+    boolean needsRows();
+}
@@ -0,0 +1,372 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * A columnar copy of the numeric and date columns of a table that the rules
+ * compare, outside of the Java heap in memory-mapped temporary files. Each
+ * column holds the missing mask and the primitive values of all rows, block by
+ * block of {@link RuleEngine#BATCH_SIZE} rows; a block is written while it is
+ * evaluated, and when the same table is processed again the batches read the
+ * values from the copy instead of from the cells. Once all blocks of the
+ * compared columns are copied, rules that do not need the rows themselves can
+ * be evaluated without reading the table at all. The copies of the most
+ * recent tables are kept. Where the file system allows it, a copy's file is
+ * deleted as soon as it is mapped; otherwise, e.g. on Windows, it is deleted
+ * once the copy has been released and is no longer mapped. This class may be
+ * used from several threads.
+ *
+ * @author Krishna
+ */
+final class ColumnCache implements ColumnSource {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(ColumnCache.class);
+
+    /** The maximum number of tables whose columns are kept. */
+    private static final int MAX_CACHES = 4;
+
+    private static final Map<Integer, ColumnCache> CACHES =
+            new LinkedHashMap<Integer, ColumnCache>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Integer, ColumnCache> eldest) {
+                    if (size() > MAX_CACHES) {
+                        eldest.getValue().release();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * The files of released copies that could not be deleted yet because
+     * they were still mapped. Their deletion is retried whenever a cache is
+     * requested.
+     */
+    private static final List<File> UNDELETED = new ArrayList<File>();
+
+    /** The number of mask words of a block. */
+    private static final int BLOCK_WORDS =
+            BatchKernels.words(RuleEngine.BATCH_SIZE);
+
+    /**
+     * The copy of a column: the missing masks of all blocks followed by the
+     * values of all rows, as longs or as doubles.
+     */
+    private static final class Column {
+        private final ValueKind m_kind;
+
+        /** The copy's file, <code>null</code> if it is already deleted. */
+        private final File m_file;
+
+        private final LongBuffer m_missing;
+
+        private final LongBuffer m_longs;
+
+        private final DoubleBuffer m_doubles;
+
+        /** 1 for each block that has been written. */
+        private final AtomicIntegerArray m_known;
+
+        Column(final ValueKind kind, final File file,
+                final MappedByteBuffer buffer, final int nrBlocks) {
+            m_kind = kind;
+            m_file = file;
+            buffer.order(ByteOrder.nativeOrder());
+            m_missing = buffer.asLongBuffer();
+            buffer.position(nrBlocks * BLOCK_WORDS * 8);
+            if (kind == ValueKind.DOUBLE) {
+                m_longs = null;
+                m_doubles = buffer.slice().order(ByteOrder.nativeOrder())
+                        .asDoubleBuffer();
+            } else {
+                m_longs = buffer.slice().order(ByteOrder.nativeOrder())
+                        .asLongBuffer();
+                m_doubles = null;
+            }
+            m_known = new AtomicIntegerArray(nrBlocks);
+        }
+    }
+
+    private final DataTableSpec m_spec;
+
+    private final int m_rowCount;
+
+    private final ConcurrentHashMap<Integer, Column> m_columns =
+            new ConcurrentHashMap<Integer, Column>();
+
+    /** If the copies have been deleted, see {@link #release()}. */
+    private volatile boolean m_released;
+
+    private ColumnCache(final DataTableSpec spec, final int rowCount) {
+        m_spec = spec;
+        m_rowCount = rowCount;
+    }
+
+    /**
+     * Returns the cache for a table. If the table has been processed before,
+     * the cache contains the columns that have been copied then.
+     *
+     * @param table a table
+     * @return the cache
+     */
+    static ColumnCache get(final BufferedDataTable table) {
+        synchronized (CACHES) {
+            deleteUnmapped();
+            Integer id = table.getBufferedTableId();
+            ColumnCache cache = CACHES.get(id);
+            if ((cache == null) || (cache.m_rowCount != table.getRowCount())
+                    || !cache.m_spec.equals(table.getDataTableSpec())) {
+                if (cache != null) {
+                    cache.release();
+                }
+                cache = new ColumnCache(table.getDataTableSpec(),
+                        table.getRowCount());
+                CACHES.put(id, cache);
+            }
+            return cache;
+        }
+    }
+
+    private int getNrBlocks() {
+        return (m_rowCount + RuleEngine.BATCH_SIZE - 1)
+                / RuleEngine.BATCH_SIZE;
+    }
+
+    /**
+     * Returns if all blocks of the given columns have been copied.
+     *
+     * @param columns the columns and the kinds of their values
+     * @return <code>true</code> if all values can be read from the cache
+     */
+    boolean isComplete(final Map<Integer, ValueKind> columns) {
+        if (m_released) {
+            return false;
+        }
+        for (Map.Entry<Integer, ValueKind> e : columns.entrySet()) {
+            Column c = m_columns.get(e.getKey());
+            if ((c == null) || (c.m_kind != e.getValue())) {
+                return false;
+            }
+            for (int b = 0; b < c.m_known.length(); b++) {
+                if (c.m_known.get(b) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Returns the copy of a column if the block that starts at a row has been
+     * written, null otherwise.
+     */
+    private Column getKnown(final int col, final int firstIndex) {
+        Column c = m_columns.get(col);
+        int block = firstIndex / RuleEngine.BATCH_SIZE;
+        if ((c == null) || m_released || (block >= c.m_known.length())
+                || (c.m_known.get(block) == 0)) {
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getMissing(final int col, final int firstIndex,
+            final int size) {
+        Column c = getKnown(col, firstIndex);
+        if (c == null) {
+            return null;
+        }
+        long[] missing = new long[BatchKernels.words(size)];
+        LongBuffer b = c.m_missing.duplicate();
+        b.position(firstIndex / RuleEngine.BATCH_SIZE * BLOCK_WORDS);
+        b.get(missing);
+        return missing;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getLongs(final int col, final ValueKind kind,
+            final int firstIndex, final int size) {
+        Column c = getKnown(col, firstIndex);
+        if ((c == null) || (c.m_kind != kind)) {
+            return null;
+        }
+        long[] values = new long[size];
+        LongBuffer b = c.m_longs.duplicate();
+        b.position(firstIndex);
+        b.get(values);
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getDoubles(final int col, final int firstIndex,
+            final int size) {
+        Column c = getKnown(col, firstIndex);
+        if ((c == null) || (c.m_kind == ValueKind.DATE)) {
+            return null;
+        }
+        double[] values = new double[size];
+        if (c.m_kind == ValueKind.DOUBLE) {
+            DoubleBuffer b = c.m_doubles.duplicate();
+            b.position(firstIndex);
+            b.get(values);
+        } else {
+            LongBuffer b = c.m_longs.duplicate();
+            b.position(firstIndex);
+            for (int i = 0; i < size; i++) {
+                values[i] = b.get();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns <code>false</code>, the cache only holds column values.
+     *
+     * @return <code>false</code>
+     */
+    public boolean hasRows() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DataRow[] getRows(final int firstIndex, final int size) {
+        return null;
+    }
+
+    /**
+     * Copies the values of the given columns for the block of a batch,
+     * unless they are already copied.
+     *
+     * @param batch a batch with the rows of one block
+     * @param columns the columns and the kinds of their values
+     */
+    void record(final RowBatch batch, final Map<Integer, ValueKind> columns) {
+        int block = batch.getFirstIndex() / RuleEngine.BATCH_SIZE;
+        if (m_released || (block >= getNrBlocks())) {
+            return;
+        }
+        for (Map.Entry<Integer, ValueKind> e : columns.entrySet()) {
+            Column c = getColumn(e.getKey(), e.getValue());
+            if ((c == null) || (c.m_known.get(block) != 0)) {
+                continue;
+            }
+            LongBuffer missing = c.m_missing.duplicate();
+            missing.position(block * BLOCK_WORDS);
+            missing.put(batch.getMissing(e.getKey()));
+            if (c.m_kind == ValueKind.DOUBLE) {
+                DoubleBuffer b = c.m_doubles.duplicate();
+                b.position(batch.getFirstIndex());
+                b.put(batch.getDoubles(e.getKey()), 0, batch.size());
+            } else {
+                LongBuffer b = c.m_longs.duplicate();
+                b.position(batch.getFirstIndex());
+                b.put(batch.getLongs(e.getKey(), c.m_kind), 0, batch.size());
+            }
+            c.m_known.set(block, 1);
+        }
+    }
+
+    /*
+     * Returns the copy of a column, creating it if necessary. Returns null if
+     * the column is kept with another kind or cannot be mapped.
+     */
+    private Column getColumn(final int col, final ValueKind kind) {
+        Column c = m_columns.get(col);
+        if (c != null) {
+            return (c.m_kind == kind) ? c : null;
+        }
+        long bytes = 8L * getNrBlocks() * BLOCK_WORDS + 8L * m_rowCount;
+        if (bytes > Integer.MAX_VALUE) {
+            return null;
+        }
+        synchronized (this) {
+            c = m_columns.get(col);
+            if (c != null) {
+                return (c.m_kind == kind) ? c : null;
+            }
+            try {
+                File file = File.createTempFile("ruleselect-column", ".bin");
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(bytes);
+                    MappedByteBuffer buffer = raf.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, bytes);
+                    // the mapping stays valid if the file system allows the
+                    // file to be deleted
+                    c = new Column(kind, file.delete() ? null : file, buffer,
+                            getNrBlocks());
+                } finally {
+                    // the mapping stays valid after the file is closed
+                    raf.close();
+                }
+            } catch (IOException ex) {
+                LOGGER.warn("Could not cache column " + col + ": "
+                        + ex.getMessage(), ex);
+                return null;
+            }
+            m_columns.put(col, c);
+            return c;
+        }
+    }
+
+    /*
+     * Deletes the copies. The mapped memory is freed once the buffers are no
+     * longer referenced; files that cannot be deleted before are kept for a
+     * later attempt.
+     */
+    private void release() {
+        m_released = true;
+        List<Column> columns = new ArrayList<Column>(m_columns.values());
+        m_columns.clear();
+        for (Column c : columns) {
+            if ((c.m_file != null) && !c.m_file.delete()) {
+                synchronized (UNDELETED) {
+                    UNDELETED.add(c.m_file);
+                }
+            }
+        }
+    }
+
+    /*
+     * Retries deleting the files of released copies.
+     */
+    private static void deleteUnmapped() {
+        synchronized (UNDELETED) {
+            for (Iterator<File> it = UNDELETED.iterator(); it.hasNext();) {
+                File file = it.next();
+                if (file.delete() || !file.exists()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
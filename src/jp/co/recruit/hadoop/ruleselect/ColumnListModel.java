@@ -0,0 +1,245 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.swing.AbstractListModel;
+
+import org.knime.core.data.DataTableSpec;
+
+/**
+ * The list model for the columns in the dialog. The column specs are taken
+ * from the table spec when they are shown, so that the model can be set up
+ * for very wide tables without copying the columns. The list can be filtered
+ * by a search string and by the type of the columns; columns whose name starts
+ * with the search string are listed first.
+ *
+ * @author Krishna
+ */
+final class ColumnListModel extends AbstractListModel {
+    /**
+     * The types of columns that can be shown.
+     */
+    enum TypeFilter {
+        /** All columns. */
+        ALL("All types"),
+        /** Boolean and number columns. */
+        NUMBER("Numbers"),
+        /** String columns. */
+        STRING("Strings"),
+        /** Date and time columns. */
+        DATE("Dates"),
+        /** Columns of any other type. */
+        OTHER("Other types");
+
+        private final String m_name;
+
+        private TypeFilter(final String name) {
+            m_name = name;
+        }
+
+        boolean accepts(final ValueKind kind) {
+            switch (this) {
+                case NUMBER:
+                    return kind.isNumeric();
+                case STRING:
+                    return kind == ValueKind.STRING;
+                case DATE:
+                    return kind == ValueKind.DATE;
+                case OTHER:
+                    return kind == ValueKind.OTHER;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return m_name;
+        }
+    }
+
+    private DataTableSpec m_spec = new DataTableSpec();
+
+    /** Indices of the shown columns, <code>null</code> if all are shown. */
+    private int[] m_view;
+
+    private String m_filter = "";
+
+    private TypeFilter m_type = TypeFilter.ALL;
+
+    /** The lower case column names, created on the first search. */
+    private String[] m_names;
+
+    /** The column indices sorted by lower case name, for prefix searches. */
+    private Integer[] m_sorted;
+
+    /** The kind of each column, created on the first type filter. */
+    private ValueKind[] m_kinds;
+
+    /**
+     * Sets the spec whose columns are listed. The filters are kept.
+     *
+     * @param spec a table spec
+     */
+    void setSpec(final DataTableSpec spec) {
+        int oldSize = getSize();
+        m_spec = spec;
+        m_names = null;
+        m_sorted = null;
+        m_kinds = null;
+        m_view = null;
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        update();
+    }
+
+    /**
+     * Shows only the columns whose name contains the search string, ignoring
+     * case.
+     *
+     * @param filter the search string, an empty string shows all columns
+     */
+    void setFilter(final String filter) {
+        String f = filter.toLowerCase();
+        if (!f.equals(m_filter)) {
+            m_filter = f;
+            refresh();
+        }
+    }
+
+    /**
+     * Shows only the columns of the given type.
+     *
+     * @param type the type filter
+     */
+    void setTypeFilter(final TypeFilter type) {
+        if (type != m_type) {
+            m_type = type;
+            refresh();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getElementAt(final int index) {
+        return m_spec.getColumnSpec((m_view == null) ? index : m_view[index]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getSize() {
+        return (m_view == null) ? m_spec.getNumColumns() : m_view.length;
+    }
+
+    private void refresh() {
+        int oldSize = getSize();
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        update();
+    }
+
+    /*
+     * Recomputes the shown columns and notifies the list.
+     */
+    private void update() {
+        if ((m_filter.length() == 0) && (m_type == TypeFilter.ALL)) {
+            m_view = null;
+        } else {
+            int[] view = new int[m_spec.getNumColumns()];
+            int size = 0;
+            boolean[] taken = new boolean[view.length];
+            if (m_filter.length() > 0) {
+                // columns starting with the search string come first
+                for (int i : findPrefix()) {
+                    if (acceptsType(i)) {
+                        view[size++] = i;
+                        taken[i] = true;
+                    }
+                }
+            }
+            for (int i = 0; i < view.length; i++) {
+                if (!taken[i] && acceptsType(i) && ((m_filter.length() == 0)
+                        || getNames()[i].contains(m_filter))) {
+                    view[size++] = i;
+                }
+            }
+            m_view = Arrays.copyOf(view, size);
+        }
+        if (getSize() > 0) {
+            fireIntervalAdded(this, 0, getSize() - 1);
+        }
+    }
+
+    private boolean acceptsType(final int column) {
+        if (m_type == TypeFilter.ALL) {
+            return true;
+        }
+        if (m_kinds == null) {
+            m_kinds = new ValueKind[m_spec.getNumColumns()];
+        }
+        if (m_kinds[column] == null) {
+            m_kinds[column] =
+                    ValueKind.of(m_spec.getColumnSpec(column).getType());
+        }
+        return m_type.accepts(m_kinds[column]);
+    }
+
+    private String[] getNames() {
+        if (m_names == null) {
+            m_names = new String[m_spec.getNumColumns()];
+            for (int i = 0; i < m_names.length; i++) {
+                m_names[i] = m_spec.getColumnSpec(i).getName().toLowerCase();
+            }
+        }
+        return m_names;
+    }
+
+    /*
+     * Indices of the columns whose name starts with the search string, in the
+     * order of the table. Uses a binary search on the sorted names.
+     */
+    private int[] findPrefix() {
+        final String[] names = getNames();
+        if (m_sorted == null) {
+            m_sorted = new Integer[names.length];
+            for (int i = 0; i < names.length; i++) {
+                m_sorted[i] = i;
+            }
+            Arrays.sort(m_sorted, new Comparator<Integer>() {
+                public int compare(final Integer a, final Integer b) {
+                    return names[a].compareTo(names[b]);
+                }
+            });
+        }
+        // first name that is not smaller than the prefix
+        int lo = 0;
+        int hi = m_sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (names[m_sorted[mid]].compareTo(m_filter) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = lo;
+        while ((end < m_sorted.length)
+                && names[m_sorted[end]].startsWith(m_filter)) {
+            end++;
+        }
+        int[] result = new int[end - lo];
+        for (int i = lo; i < end; i++) {
+            result[i - lo] = m_sorted[i];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,64 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import org.knime.core.data.DataRow;
+
+/**
+ * Columnar values of a table that a {@link RowBatch} reads instead of the
+ * cells of its rows, block by block of {@link RuleEngine#BATCH_SIZE} rows.
+ * A source may hold only some columns or blocks; for the others the methods
+ * return <code>null</code>. A source that can also create the rows of a
+ * block allows batches without rows to be evaluated by rules that need the
+ * rows. Implementations may be used from several threads.
+ *
+ * @author Krishna
+ */
+interface ColumnSource {
+    /**
+     * Reads the missing mask of a column for the rows of a block.
+     *
+     * @param col the column's index
+     * @param firstIndex the index of the block's first row
+     * @param size the number of rows
+     * @return the mask, <code>null</code> if the block is not in the source
+     */
+    long[] getMissing(int col, int firstIndex, int size);
+
+    /**
+     * Reads the values of a column as longs for the rows of a block.
+     *
+     * @param col the column's index
+     * @param kind the kind of the column's values
+     * @param firstIndex the index of the block's first row
+     * @param size the number of rows
+     * @return the values, <code>null</code> if the block is not in the source
+     *         with this kind
+     */
+    long[] getLongs(int col, ValueKind kind, int firstIndex, int size);
+
+    /**
+     * Reads the values of a numeric column as doubles for the rows of a
+     * block. The values of int and long columns are converted.
+     *
+     * @param col the column's index
+     * @param firstIndex the index of the block's first row
+     * @param size the number of rows
+     * @return the values, <code>null</code> if the block is not in the source
+     */
+    double[] getDoubles(int col, int firstIndex, int size);
+
+    /**
+     * Returns if the source can create the rows of a block.
+     *
+     * @return <code>true</code> if {@link #getRows(int, int)} returns rows
+     */
+    boolean hasRows();
+
+    /**
+     * Creates the rows of a block.
+     *
+     * @param firstIndex the index of the block's first row
+     * @param size the number of rows
+     * @return the rows, <code>null</code> if the source cannot create them
+     */
+    DataRow[] getRows(int firstIndex, int size);
+}
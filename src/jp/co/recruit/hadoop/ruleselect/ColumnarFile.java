@@ -0,0 +1,822 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataType;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.date.DateAndTimeCell;
+import org.knime.core.data.def.BooleanCell;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.CanceledExecutionException;
+
+/**
+ * A binary columnar copy of a CSV or TSV file that the rules are evaluated on
+ * without parsing text again. A CSV file is converted once; afterwards the
+ * file is mapped into memory and the batches read the values of the compared
+ * columns directly from it, block by block of {@link RuleEngine#BATCH_SIZE}
+ * rows. The statistics of each block are stored in the file and serve as the
+ * engine's {@link ZoneMap}, so that blocks no rule can match are skipped
+ * without reading their values. Rows are only created for the blocks and
+ * rules that need them, e.g. for string comparisons.
+ * <br />
+ * The file is big-endian. It starts with a header: the magic number, the
+ * format version, the number of rows and of columns, and for each column its
+ * name, its kind, the offset of its data and the offset and size of its
+ * dictionary. The data of a column starts at a multiple of 8 bytes with the
+ * block statistics of numeric and date columns, see
+ * {@link ZoneMap#BLOCK_STATS_SIZE}, followed by the missing masks of all
+ * blocks and the values of all rows. Booleans take a byte, ints an int,
+ * longs, doubles and dates (milliseconds since the epoch) 8 bytes; strings
+ * are stored as int codes into the column's dictionary, which is kept at the
+ * end of the file as a list of UTF-8 strings, each preceded by its length.
+ * Missing values are stored as 0.
+ * <br />
+ * Usage: <tt>ColumnarFile convert [-schema name:kind,...] [-delimiter c]
+ * &lt;input&gt; &lt;file&gt;</tt> converts a CSV file with a header line as
+ * the {@link CsvFilter} reads it; values that are invalid for their column's
+ * kind are stored as missing and counted. <tt>ColumnarFile count [-threads n]
+ * &lt;rule file&gt; &lt;file&gt;</tt> prints how many rows each rule
+ * matches.
+ *
+ * @author Krishna
+ */
+public final class ColumnarFile implements ColumnSource {
+    private static final int MAGIC = 0x52534346;
+
+    private static final int VERSION = 1;
+
+    /** The kinds of the columns, by their code in the header. */
+    private static final ValueKind[] KINDS = {ValueKind.BOOLEAN,
+            ValueKind.INT, ValueKind.LONG, ValueKind.DOUBLE, ValueKind.DATE,
+            ValueKind.STRING};
+
+    /** The number of mask words of a block. */
+    private static final int BLOCK_WORDS =
+            BatchKernels.words(RuleEngine.BATCH_SIZE);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RecordSchema m_schema;
+
+    private final int m_rowCount;
+
+    private final ZoneMap m_zoneMap;
+
+    private final LongBuffer[] m_missing;
+
+    /** The values, a buffer of the type that fits each column's kind. */
+    private final Buffer[] m_values;
+
+    /** The cells of the dictionary of each string column. */
+    private final DataCell[][] m_dictionaries;
+
+    /** For each column if its cells are created for the rows. */
+    private final boolean[] m_used;
+
+    private ColumnarFile(final RecordSchema schema, final int rowCount) {
+        m_schema = schema;
+        m_rowCount = rowCount;
+        m_zoneMap = ZoneMap.create(schema.getSpec(), rowCount);
+        int n = schema.getNrColumns();
+        m_missing = new LongBuffer[n];
+        m_values = new Buffer[n];
+        m_dictionaries = new DataCell[n][];
+        m_used = new boolean[n];
+        Arrays.fill(m_used, true);
+    }
+
+    /*
+     * Returns if the block statistics of a column's kind are stored.
+     */
+    private static boolean hasStats(final ValueKind kind) {
+        return (kind != ValueKind.BOOLEAN) && (kind != ValueKind.STRING);
+    }
+
+    private static int getWidth(final ValueKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return 1;
+            case INT:
+            case STRING:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    private static long align(final long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int getNrBlocks(final int rowCount) {
+        return (rowCount + RuleEngine.BATCH_SIZE - 1) / RuleEngine.BATCH_SIZE;
+    }
+
+    /*
+     * Returns the offsets of a column's missing masks and values in its data,
+     * and the size of the data.
+     */
+    private static long[] getLayout(final ValueKind kind,
+            final int rowCount) {
+        int nrBlocks = getNrBlocks(rowCount);
+        long masks = hasStats(kind)
+                ? align((long)nrBlocks * ZoneMap.BLOCK_STATS_SIZE) : 0;
+        long values = masks + 8L * nrBlocks * BLOCK_WORDS;
+        return new long[]{masks, values,
+                align(values + (long)rowCount * getWidth(kind))};
+    }
+
+    /**
+     * Opens a columnar file. The columns are mapped into memory.
+     *
+     * @param file the file
+     * @return the opened file
+     * @throws IOException if the file cannot be read or is not a columnar
+     *             file
+     */
+    static ColumnarFile open(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if ((raf.length() < 16) || (raf.readInt() != MAGIC)) {
+                throw new IOException(file + " is not a columnar file");
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has the unsupported version "
+                        + version);
+            }
+            int rowCount = raf.readInt();
+            int nrColumns = raf.readInt();
+            String[] names = new String[nrColumns];
+            ValueKind[] kinds = new ValueKind[nrColumns];
+            long[] offsets = new long[nrColumns];
+            long[] dictOffsets = new long[nrColumns];
+            int[] dictSizes = new int[nrColumns];
+            for (int col = 0; col < nrColumns; col++) {
+                names[col] = raf.readUTF();
+                int kind = raf.readByte();
+                if ((kind < 0) || (kind >= KINDS.length)) {
+                    throw new IOException("Column " + names[col] + " of "
+                            + file + " has the unknown kind " + kind);
+                }
+                kinds[col] = KINDS[kind];
+                offsets[col] = raf.readLong();
+                dictOffsets[col] = raf.readLong();
+                dictSizes[col] = raf.readInt();
+            }
+
+            ColumnarFile f = new ColumnarFile(
+                    new RecordSchema(names, kinds), rowCount);
+            FileChannel channel = raf.getChannel();
+            for (int col = 0; col < nrColumns; col++) {
+                long[] layout = getLayout(kinds[col], rowCount);
+                if (layout[2] > Integer.MAX_VALUE) {
+                    throw new IOException("Column " + names[col]
+                            + " is too large to be mapped");
+                }
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, offsets[col],
+                        layout[2]);
+                f.map(col, buffer, layout);
+                if (kinds[col] == ValueKind.STRING) {
+                    f.m_dictionaries[col] = readDictionary(channel,
+                            dictOffsets[col], dictSizes[col]);
+                }
+            }
+            return f;
+        } finally {
+            // the mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /*
+     * Sets the buffers of a column from its mapped data and reads the block
+     * statistics.
+     */
+    private void map(final int col, final ByteBuffer data,
+            final long[] layout) {
+        ValueKind kind = m_schema.getKind(col);
+        if (hasStats(kind)) {
+            m_zoneMap.read(col, kind, data.duplicate());
+        }
+        m_missing[col] = slice(data, layout[0], layout[1]).asLongBuffer();
+        ByteBuffer values = slice(data, layout[1], layout[2]);
+        switch (kind) {
+            case BOOLEAN:
+                m_values[col] = values;
+                break;
+            case INT:
+            case STRING:
+                m_values[col] = values.asIntBuffer();
+                break;
+            case DOUBLE:
+                m_values[col] = values.asDoubleBuffer();
+                break;
+            default:
+                m_values[col] = values.asLongBuffer();
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer data, final long start,
+            final long end) {
+        ByteBuffer b = data.duplicate();
+        b.position((int)start);
+        b.limit((int)end);
+        return b.slice();
+    }
+
+    private static DataCell[] readDictionary(final FileChannel channel,
+            final long offset, final int size) throws IOException {
+        channel.position(offset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel)));
+        DataCell[] cells = new DataCell[size];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < size; i++) {
+            int length = in.readInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            in.readFully(bytes, 0, length);
+            cells[i] = new StringCell(new String(bytes, 0, length, UTF8));
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the columns of the file.
+     *
+     * @return the schema
+     */
+    RecordSchema getSchema() {
+        return m_schema;
+    }
+
+    /**
+     * Returns the number of rows in the file.
+     *
+     * @return the number of rows
+     */
+    int getRowCount() {
+        return m_rowCount;
+    }
+
+    /**
+     * Returns the block statistics stored in the file.
+     *
+     * @return the statistics of the numeric and date columns
+     */
+    ZoneMap getZoneMap() {
+        return m_zoneMap;
+    }
+
+    /**
+     * Restricts the cells of the rows created by {@link #getRows(int, int)}
+     * to some columns, the other cells are missing.
+     *
+     * @param columns the indices of the columns whose cells are needed
+     */
+    void setUsedColumns(final Set<Integer> columns) {
+        Arrays.fill(m_used, false);
+        for (int col : columns) {
+            m_used[col] = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getMissing(final int col, final int firstIndex,
+            final int size) {
+        long[] missing = new long[BatchKernels.words(size)];
+        LongBuffer b = m_missing[col].duplicate();
+        b.position(firstIndex / RuleEngine.BATCH_SIZE * BLOCK_WORDS);
+        b.get(missing);
+        return missing;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getLongs(final int col, final ValueKind kind,
+            final int firstIndex, final int size) {
+        if ((kind != m_schema.getKind(col)) || (kind == ValueKind.STRING)) {
+            return null;
+        }
+        long[] values = new long[size];
+        if (kind == ValueKind.BOOLEAN) {
+            ByteBuffer b = ((ByteBuffer)m_values[col]).duplicate();
+            b.position(firstIndex);
+            for (int i = 0; i < size; i++) {
+                values[i] = b.get();
+            }
+        } else if (kind == ValueKind.INT) {
+            IntBuffer b = ((IntBuffer)m_values[col]).duplicate();
+            b.position(firstIndex);
+            for (int i = 0; i < size; i++) {
+                values[i] = b.get();
+            }
+        } else {
+            LongBuffer b = ((LongBuffer)m_values[col]).duplicate();
+            b.position(firstIndex);
+            b.get(values);
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getDoubles(final int col, final int firstIndex,
+            final int size) {
+        ValueKind kind = m_schema.getKind(col);
+        if (kind == ValueKind.DOUBLE) {
+            double[] values = new double[size];
+            DoubleBuffer b = ((DoubleBuffer)m_values[col]).duplicate();
+            b.position(firstIndex);
+            b.get(values);
+            return values;
+        } else if ((kind != ValueKind.INT) && (kind != ValueKind.LONG)) {
+            return null;
+        }
+        long[] longs = getLongs(col, kind, firstIndex, size);
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = longs[i];
+        }
+        return values;
+    }
+
+    /**
+     * Returns <code>true</code>, the rows are created from the columns.
+     *
+     * @return <code>true</code>
+     */
+    public boolean hasRows() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DataRow[] getRows(final int firstIndex, final int size) {
+        DataCell[][] cells = new DataCell[size][m_used.length];
+        for (DataCell[] row : cells) {
+            Arrays.fill(row, DataType.getMissingCell());
+        }
+        for (int col = 0; col < m_used.length; col++) {
+            if (!m_used[col]) {
+                continue;
+            }
+            ValueKind kind = m_schema.getKind(col);
+            long[] missing = getMissing(col, firstIndex, size);
+            if (kind == ValueKind.DOUBLE) {
+                double[] values = getDoubles(col, firstIndex, size);
+                for (int i = 0; i < size; i++) {
+                    if (((missing[i >>> 6] >>> i) & 1) == 0) {
+                        cells[i][col] = new DoubleCell(values[i]);
+                    }
+                }
+                continue;
+            }
+            IntBuffer codes = null;
+            long[] values = null;
+            if (kind == ValueKind.STRING) {
+                codes = ((IntBuffer)m_values[col]).duplicate();
+                codes.position(firstIndex);
+            } else {
+                values = getLongs(col, kind, firstIndex, size);
+            }
+            for (int i = 0; i < size; i++) {
+                int code = (codes != null) ? codes.get() : 0;
+                if (((missing[i >>> 6] >>> i) & 1) == 0) {
+                    cells[i][col] = (codes != null)
+                            ? m_dictionaries[col][code]
+                            : createCell(kind, values[i]);
+                }
+            }
+        }
+        DataRow[] rows = new DataRow[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = new DefaultRow("Row" + (firstIndex + i), cells[i]);
+        }
+        return rows;
+    }
+
+    private static DataCell createCell(final ValueKind kind,
+            final long value) {
+        switch (kind) {
+            case BOOLEAN:
+                return (value != 0) ? BooleanCell.TRUE : BooleanCell.FALSE;
+            case INT:
+                return new IntCell((int)value);
+            case DATE:
+                return new DateAndTimeCell(value, true, true, true);
+            default:
+                return new LongCell(value);
+        }
+    }
+
+    /**
+     * Counts the rows each rule matches.
+     *
+     * @param rules the rules
+     * @param nrThreads the maximum number of threads
+     * @return the number of matching rows for each rule
+     * @throws CanceledExecutionException never
+     * @throws InterruptedException if the thread has been interrupted while
+     *             waiting for a worker
+     */
+    long[] countMatches(final List<Rule> rules, final int nrThreads)
+            throws CanceledExecutionException, InterruptedException {
+        Set<Integer> used = new TreeSet<Integer>();
+        for (Rule r : rules) {
+            r.addUsedColumns(used);
+        }
+        setUsedColumns(used);
+        final RuleEngine engine = new RuleEngine(rules, nrThreads);
+        engine.setZoneMap(m_zoneMap);
+        final long[] counts = new long[rules.size()];
+        engine.scanSource(this, m_rowCount,
+                new RuleEngine.BatchJob<RuleEngine.MatchCounts>() {
+                    @Override
+                    RuleEngine.MatchCounts evaluate(final RowBatch batch) {
+                        return engine.countMatches(batch);
+                    }
+
+                    @Override
+                    boolean consume(final RowBatch batch,
+                            final RuleEngine.MatchCounts result) {
+                        for (int r = 0; r < counts.length; r++) {
+                            counts[r] += result.m_counts[r];
+                        }
+                        return !engine.canStop(batch);
+                    }
+                });
+        return counts;
+    }
+
+    /**
+     * Converts a CSV or TSV file with a header line into a columnar file.
+     *
+     * @param input the CSV file
+     * @param schema the columns of the records
+     * @param delimiter the field delimiter
+     * @param output the columnar file, it is overwritten
+     * @return the number of values that are invalid for their column's kind
+     *         and have been stored as missing
+     * @throws IOException if a file cannot be read or written
+     */
+    static long convert(final File input, final RecordSchema schema,
+            final char delimiter, final File output) throws IOException {
+        int rowCount = countRecords(input);
+        int nrColumns = schema.getNrColumns();
+        long[] offsets = new long[nrColumns];
+        long[][] layouts = new long[nrColumns][];
+        long[] dictOffsets = new long[nrColumns];
+        int[] dictSizes = new int[nrColumns];
+        long end = align(getHeader(schema, rowCount, offsets, dictOffsets,
+                dictSizes).length);
+        for (int col = 0; col < nrColumns; col++) {
+            layouts[col] = getLayout(schema.getKind(col), rowCount);
+            if (layouts[col][2] > Integer.MAX_VALUE) {
+                throw new IOException("Column " + schema.getName(col)
+                        + " is too large to be mapped");
+            }
+            offsets[col] = end;
+            end += layouts[col][2];
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(end);
+            FileChannel channel = raf.getChannel();
+            Writer writer = new Writer(schema, rowCount);
+            for (int col = 0; col < nrColumns; col++) {
+                writer.m_data[col] = channel.map(
+                        FileChannel.MapMode.READ_WRITE, offsets[col],
+                        layouts[col][2]);
+                writer.m_layouts[col] = layouts[col];
+            }
+            writer.write(input, delimiter);
+
+            channel.position(end);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(
+                            channel)));
+            for (int col = 0; col < nrColumns; col++) {
+                if (writer.m_codes[col] != null) {
+                    dictOffsets[col] = end + out.size();
+                    dictSizes[col] = writer.m_codes[col].size();
+                    for (String s : writer.m_codes[col].keySet()) {
+                        byte[] bytes = s.getBytes(UTF8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+            }
+            out.flush();
+            for (MappedByteBuffer data : writer.m_data) {
+                data.force();
+            }
+            raf.seek(0);
+            raf.write(getHeader(schema, rowCount, offsets, dictOffsets,
+                    dictSizes));
+            return writer.m_nrInvalid;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] getHeader(final RecordSchema schema,
+            final int rowCount, final long[] offsets,
+            final long[] dictOffsets, final int[] dictSizes)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutput out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rowCount);
+        out.writeInt(schema.getNrColumns());
+        for (int col = 0; col < schema.getNrColumns(); col++) {
+            out.writeUTF(schema.getName(col));
+            out.writeByte(Arrays.asList(KINDS).indexOf(schema.getKind(col)));
+            out.writeLong(offsets[col]);
+            out.writeLong(dictOffsets[col]);
+            out.writeInt(dictSizes[col]);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Returns the number of non-empty lines after the header.
+     */
+    private static int countRecords(final File input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(input), UTF8));
+        try {
+            long n = 0;
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    n++;
+                }
+            }
+            if (n > Integer.MAX_VALUE) {
+                throw new IOException(input + " has more than "
+                        + Integer.MAX_VALUE + " records");
+            }
+            return (int)n;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Converts a CSV file or evaluates rules on a columnar file.
+     *
+     * @param args the command, its options and its files
+     * @throws Exception if the command fails
+     */
+    public static void main(final String[] args) throws Exception {
+        String schemaText = null;
+        String delimiterText = null;
+        int nrThreads = Runtime.getRuntime().availableProcessors();
+        int i = 1;
+        for (; (i < args.length - 1) && args[i].startsWith("-"); i += 2) {
+            if (args[i].equals("-schema")) {
+                schemaText = args[i + 1];
+            } else if (args[i].equals("-delimiter")) {
+                delimiterText = args[i + 1];
+            } else if (args[i].equals("-threads")) {
+                nrThreads = Integer.parseInt(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (args.length - i != 2) {
+            usage();
+        }
+        File first = new File(args[i]);
+        File second = new File(args[i + 1]);
+        long start = System.currentTimeMillis();
+        if (args[0].equals("convert")) {
+            char delimiter =
+                    CsvFilter.getDelimiter(delimiterText, first.getName());
+            RecordSchema schema =
+                    CsvFilter.readSchema(first, delimiter, schemaText);
+            System.err.println("Schema: " + schema);
+            long nrInvalid = convert(first, schema, delimiter, second);
+            System.err.println("Converted " + first + " in "
+                    + (System.currentTimeMillis() - start) + " ms, "
+                    + nrInvalid + " invalid values stored as missing");
+        } else if (args[0].equals("count")) {
+            ColumnarFile file = open(second);
+            List<Rule> rules = CsvFilter.readRules(first, file.getSchema());
+            long[] counts = file.countMatches(rules, nrThreads);
+            for (int r = 0; r < counts.length; r++) {
+                System.out.println(counts[r] + "\t" + rules.get(r));
+            }
+            System.err.println("Evaluated " + rules.size() + " rules on "
+                    + file.getRowCount() + " rows in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ColumnarFile convert "
+                + "[-schema name:kind,...] [-delimiter c] <input> <file>");
+        System.err.println("       ColumnarFile count [-threads n] "
+                + "<rule file> <file>");
+        System.exit(1);
+    }
+
+    /**
+     * Writes the records of a CSV file into the mapped columns of a new
+     * columnar file, block by block.
+     */
+    private static final class Writer {
+        private final RecordSchema m_schema;
+
+        private final int m_rowCount;
+
+        private final MappedByteBuffer[] m_data;
+
+        private final long[][] m_layouts;
+
+        /** The codes of the strings of each string column, in order. */
+        private final Map<String, Integer>[] m_codes;
+
+        private final ZoneMap m_zoneMap;
+
+        private final Map<Integer, ValueKind> m_statsColumns =
+                new HashMap<Integer, ValueKind>();
+
+        private long m_nrInvalid;
+
+        @SuppressWarnings("unchecked")
+        Writer(final RecordSchema schema, final int rowCount) {
+            m_schema = schema;
+            m_rowCount = rowCount;
+            int n = schema.getNrColumns();
+            m_data = new MappedByteBuffer[n];
+            m_layouts = new long[n][];
+            m_codes = new Map[n];
+            m_zoneMap = ZoneMap.create(schema.getSpec(), rowCount);
+            for (int col = 0; col < n; col++) {
+                ValueKind kind = schema.getKind(col);
+                if (kind == ValueKind.STRING) {
+                    m_codes[col] = new LinkedHashMap<String, Integer>();
+                } else if (hasStats(kind)) {
+                    m_statsColumns.put(col, kind);
+                }
+            }
+        }
+
+        void write(final File input, final char delimiter)
+                throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(input), UTF8));
+            try {
+                reader.readLine();
+                RowBatch batch = new RowBatch(RuleEngine.BATCH_SIZE, 0);
+                int index = 0;
+                String line;
+                while ((index + batch.size() < m_rowCount)
+                        && ((line = reader.readLine()) != null)) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    batch.add(parse(CsvFilter.split(line, delimiter),
+                            index + batch.size()));
+                    if (batch.size() == RuleEngine.BATCH_SIZE) {
+                        write(batch, index);
+                        index += batch.size();
+                        batch = new RowBatch(RuleEngine.BATCH_SIZE, index);
+                    }
+                }
+                if (index + batch.size() != m_rowCount) {
+                    throw new IOException(input
+                            + " has changed during the conversion");
+                }
+                if (batch.size() > 0) {
+                    write(batch, index);
+                }
+            } finally {
+                reader.close();
+            }
+            for (Map.Entry<Integer, ValueKind> e : m_statsColumns.entrySet()) {
+                ByteBuffer b = m_data[e.getKey()].duplicate();
+                b.position(0);
+                m_zoneMap.write(e.getKey(), b);
+            }
+        }
+
+        private DataRow parse(final String[] fields, final int index) {
+            DataCell[] cells = new DataCell[m_schema.getNrColumns()];
+            for (int col = 0; col < cells.length; col++) {
+                try {
+                    cells[col] = m_schema.parse(col,
+                            (col < fields.length) ? fields[col] : null);
+                } catch (ParseException ex) {
+                    cells[col] = DataType.getMissingCell();
+                    m_nrInvalid++;
+                }
+            }
+            return new DefaultRow("Row" + index, cells);
+        }
+
+        private void write(final RowBatch batch, final int firstIndex) {
+            m_zoneMap.record(batch, m_statsColumns);
+            int block = firstIndex / RuleEngine.BATCH_SIZE;
+            for (int col = 0; col < m_data.length; col++) {
+                ByteBuffer data = m_data[col].duplicate();
+                data.position((int)(m_layouts[col][0]
+                        + 8L * block * BLOCK_WORDS));
+                data.asLongBuffer().put(batch.getMissing(col));
+                data.position((int)m_layouts[col][1]);
+                ByteBuffer values = data.slice();
+                ValueKind kind = m_schema.getKind(col);
+                if (kind == ValueKind.STRING) {
+                    IntBuffer codes = values.asIntBuffer();
+                    codes.position(firstIndex);
+                    for (int i = 0; i < batch.size(); i++) {
+                        DataCell c = batch.getRow(i).getCell(col);
+                        codes.put(c.isMissing() ? 0
+                                : getCode(col, ((StringValue)c)
+                                        .getStringValue()));
+                    }
+                } else if (kind == ValueKind.DOUBLE) {
+                    DoubleBuffer b = values.asDoubleBuffer();
+                    b.position(firstIndex);
+                    b.put(batch.getDoubles(col), 0, batch.size());
+                } else if (kind == ValueKind.BOOLEAN) {
+                    long[] longs = batch.getLongs(col, kind);
+                    values.position(firstIndex);
+                    for (int i = 0; i < batch.size(); i++) {
+                        values.put((byte)longs[i]);
+                    }
+                } else if (kind == ValueKind.INT) {
+                    long[] longs = batch.getLongs(col, kind);
+                    IntBuffer b = values.asIntBuffer();
+                    b.position(firstIndex);
+                    for (int i = 0; i < batch.size(); i++) {
+                        b.put((int)longs[i]);
+                    }
+                } else {
+                    LongBuffer b = values.asLongBuffer();
+                    b.position(firstIndex);
+                    b.put(batch.getLongs(col, kind), 0, batch.size());
+                }
+            }
+        }
+
+        private int getCode(final int col, final String value) {
+            Integer code = m_codes[col].get(value);
+            if (code == null) {
+                code = m_codes[col].size();
+                m_codes[col].put(value, code);
+            }
+            return code;
+        }
+    }
+}
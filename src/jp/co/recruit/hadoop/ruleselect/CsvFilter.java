@@ -0,0 +1,562 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataType;
+import org.knime.core.data.def.DefaultRow;
+
+/**
+ * A command-line filter that copies the lines of a CSV or TSV file that match
+ * at least one rule, without KNIME. The first line holds the column names
+ * and is always copied. The input is mapped into memory in chunks that are
+ * evaluated in parallel; of each line only the fields that the rules refer to
+ * are parsed. The matching lines are copied from the input file to the output
+ * as they are, by the file system, without decoding or copying them on the
+ * heap.
+ * <br />
+ * Usage: <tt>CsvFilter [options] &lt;rule file&gt; &lt;input&gt;
+ * &lt;output&gt;</tt>, the output <tt>-</tt> is the standard output. The
+ * options are:
+ * <dl>
+ * <dt><tt>-schema name:kind,...</tt></dt>
+ * <dd>the columns, see {@link RecordSchema}; by default the kinds are
+ * inferred from the first {@link #NR_SAMPLES} records</dd>
+ * <dt><tt>-delimiter c</tt></dt>
+ * <dd>the field delimiter, <tt>tab</tt> for tabs; by default tabs for files
+ * ending in <tt>.tsv</tt> or <tt>.tab</tt> and commas otherwise</dd>
+ * <dt><tt>-threads n</tt></dt>
+ * <dd>the number of threads, by default one per processor</dd>
+ * </dl>
+ * Fields may be quoted with <tt>"</tt>, but records may not contain line
+ * breaks. Empty lines are skipped. Values that are invalid for their column's
+ * kind are treated as missing and counted.
+ *
+ * @author Krishna
+ */
+public final class CsvFilter {
+    /** The number of records from which the schema is inferred. */
+    static final int NR_SAMPLES = 1000;
+
+    /** The number of bytes of the input each task evaluates. */
+    private static final int CHUNK_SIZE = 64 << 20;
+
+    /** The maximum length of a line in bytes. */
+    private static final int MAX_LINE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RecordSchema m_schema;
+
+    private final RuleEngine m_engine;
+
+    private final byte m_delimiter;
+
+    /** For each field if the rules refer to it. */
+    private final boolean[] m_used;
+
+    private final AtomicLong m_nrLines = new AtomicLong();
+
+    private final AtomicLong m_nrMatches = new AtomicLong();
+
+    private final AtomicLong m_nrInvalid = new AtomicLong();
+
+    /**
+     * Creates a new filter.
+     *
+     * @param schema the columns of the records
+     * @param rules the rules
+     * @param delimiter the field delimiter
+     */
+    CsvFilter(final RecordSchema schema, final List<Rule> rules,
+            final byte delimiter) {
+        m_schema = schema;
+        m_engine = new RuleEngine(rules, 1);
+        m_delimiter = delimiter;
+        Set<Integer> used = new TreeSet<Integer>();
+        for (Rule r : rules) {
+            r.addUsedColumns(used);
+        }
+        m_used = new boolean[schema.getNrColumns()];
+        for (int col : used) {
+            m_used[col] = true;
+        }
+    }
+
+    /**
+     * Copies the header and the matching lines of a file.
+     *
+     * @param input the input file
+     * @param dataStart the offset of the first line after the header
+     * @param output the channel the lines are written to
+     * @param nrThreads the number of threads
+     * @throws IOException if the file cannot be read or written
+     */
+    void filter(final File input, final long dataStart,
+            final WritableByteChannel output, final int nrThreads)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(input, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(nrThreads,
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "CsvFilter worker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            final FileChannel in = raf.getChannel();
+            final long size = in.size();
+            transfer(in, 0, dataStart, output);
+            // a window of chunks is evaluated ahead of the one being written
+            LinkedList<Future<long[]>> pending =
+                    new LinkedList<Future<long[]>>();
+            for (long start = dataStart; start < size; start += CHUNK_SIZE) {
+                final long chunkStart = start;
+                pending.add(pool.submit(new Callable<long[]>() {
+                    public long[] call() throws IOException {
+                        return evaluate(in, size, chunkStart, dataStart);
+                    }
+                }));
+                if (pending.size() >= 2 * nrThreads) {
+                    write(in, getResult(pending.removeFirst()), output);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(in, getResult(pending.removeFirst()), output);
+            }
+        } finally {
+            pool.shutdownNow();
+            raf.close();
+        }
+    }
+
+    private static long[] getResult(final Future<long[]> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /*
+     * Writes the byte ranges (start, end, start, end, ...) of the input.
+     */
+    private static void write(final FileChannel in, final long[] ranges,
+            final WritableByteChannel output) throws IOException {
+        for (int i = 0; i < ranges.length; i += 2) {
+            transfer(in, ranges[i], ranges[i + 1] - ranges[i], output);
+        }
+    }
+
+    private static void transfer(final FileChannel in, final long position,
+            final long count, final WritableByteChannel output)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            done += in.transferTo(position + done, count - done, output);
+        }
+    }
+
+    /**
+     * Evaluates the lines that start in a chunk of the input.
+     *
+     * @param in the input
+     * @param size the input's size
+     * @param start the chunk's first byte
+     * @param dataStart the offset of the first line after the header
+     * @return the byte ranges of the matching lines, as pairs of start and
+     *         end offsets; adjacent lines are merged into one range
+     * @throws IOException if the input cannot be read or a line is too long
+     */
+    long[] evaluate(final FileChannel in, final long size, final long start,
+            final long dataStart) throws IOException {
+        long end = Math.min(size, start + CHUNK_SIZE);
+        // the previous chunk evaluates the line that crosses its end
+        long mapStart = (start > dataStart) ? start - 1 : start;
+        long mapEnd = Math.min(size, end + MAX_LINE);
+        MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY,
+                mapStart, mapEnd - mapStart);
+        int pos = 0;
+        if (start > dataStart) {
+            while ((pos < buffer.limit()) && (buffer.get(pos) != '\n')) {
+                pos++;
+            }
+            pos++;
+        }
+        int limit = (int)(end - mapStart);
+        Ranges ranges = new Ranges();
+        RowBatch batch = new RowBatch(RuleEngine.BATCH_SIZE, 0);
+        int[] lineStarts = new int[RuleEngine.BATCH_SIZE];
+        int[] lineEnds = new int[RuleEngine.BATCH_SIZE];
+        byte[] scratch = new byte[256];
+        while (pos < limit) {
+            int lineEnd = pos;
+            while ((lineEnd < buffer.limit())
+                    && (buffer.get(lineEnd) != '\n')) {
+                lineEnd++;
+            }
+            if ((lineEnd == buffer.limit()) && (mapEnd < size)) {
+                throw new IOException("The line at byte " + (mapStart + pos)
+                        + " is longer than " + MAX_LINE + " bytes");
+            }
+            int next = Math.min(lineEnd + 1, buffer.limit());
+            int contentEnd = lineEnd;
+            if ((contentEnd > pos) && (buffer.get(contentEnd - 1) == '\r')) {
+                contentEnd--;
+            }
+            if (contentEnd > pos) {
+                lineStarts[batch.size()] = pos;
+                lineEnds[batch.size()] = next;
+                scratch = addRow(batch, buffer, pos, contentEnd, scratch);
+                if (batch.size() == RuleEngine.BATCH_SIZE) {
+                    evaluate(batch, lineStarts, lineEnds, mapStart, ranges);
+                    batch = new RowBatch(RuleEngine.BATCH_SIZE, 0);
+                }
+            }
+            pos = next;
+        }
+        if (batch.size() > 0) {
+            evaluate(batch, lineStarts, lineEnds, mapStart, ranges);
+        }
+        return ranges.toArray();
+    }
+
+    private void evaluate(final RowBatch batch, final int[] lineStarts,
+            final int[] lineEnds, final long offset, final Ranges ranges) {
+        int[] matches = m_engine.firstMatches(batch);
+        int n = 0;
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] >= 0) {
+                ranges.add(offset + lineStarts[i], offset + lineEnds[i]);
+                n++;
+            }
+        }
+        m_nrLines.addAndGet(batch.size());
+        m_nrMatches.addAndGet(n);
+    }
+
+    /*
+     * Parses the used fields of a line into a row and adds it to the batch.
+     * Returns the scratch buffer, which may have grown.
+     */
+    private byte[] addRow(final RowBatch batch, final MappedByteBuffer buffer,
+            final int start, final int end, final byte[] scratch) {
+        byte[] bytes = scratch;
+        DataCell[] cells = new DataCell[m_used.length];
+        Arrays.fill(cells, DataType.getMissingCell());
+        int pos = start;
+        for (int col = 0; (col < cells.length) && (pos <= end); col++) {
+            boolean quoted = (pos < end) && (buffer.get(pos) == '"');
+            int fieldEnd = pos;
+            int length = 0;
+            if (quoted) {
+                fieldEnd++;
+                while (fieldEnd < end) {
+                    byte b = buffer.get(fieldEnd++);
+                    if (b == '"') {
+                        if ((fieldEnd < end) && (buffer.get(fieldEnd) == '"')) {
+                            fieldEnd++;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (m_used[col]) {
+                        if (length == bytes.length) {
+                            bytes = Arrays.copyOf(bytes, 2 * length);
+                        }
+                        bytes[length++] = b;
+                    }
+                }
+                while ((fieldEnd < end)
+                        && (buffer.get(fieldEnd) != m_delimiter)) {
+                    fieldEnd++;
+                }
+            } else {
+                while ((fieldEnd < end)
+                        && (buffer.get(fieldEnd) != m_delimiter)) {
+                    fieldEnd++;
+                }
+                if (m_used[col]) {
+                    length = fieldEnd - pos;
+                    if (length > bytes.length) {
+                        bytes = new byte[Math.max(length, 2 * bytes.length)];
+                    }
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = buffer.get(pos + i);
+                    }
+                }
+            }
+            if (m_used[col]) {
+                try {
+                    cells[col] = m_schema.parse(col,
+                            new String(bytes, 0, length, UTF8));
+                } catch (ParseException ex) {
+                    m_nrInvalid.incrementAndGet();
+                }
+            }
+            pos = fieldEnd + 1;
+        }
+        batch.add(new DefaultRow("Row" + batch.size(), cells));
+        return bytes;
+    }
+
+    /**
+     * A growing list of byte ranges in which adjacent ranges are merged.
+     */
+    private static final class Ranges {
+        private long[] m_ranges = new long[64];
+
+        private int m_size;
+
+        void add(final long start, final long end) {
+            if ((m_size > 0) && (m_ranges[m_size - 1] == start)) {
+                m_ranges[m_size - 1] = end;
+                return;
+            }
+            if (m_size == m_ranges.length) {
+                m_ranges = Arrays.copyOf(m_ranges, 2 * m_size);
+            }
+            m_ranges[m_size++] = start;
+            m_ranges[m_size++] = end;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(m_ranges, m_size);
+        }
+    }
+
+    /**
+     * Splits a line into its fields, removing quotes.
+     *
+     * @param line a line
+     * @param delimiter the field delimiter
+     * @return the fields
+     */
+    static String[] split(final String line, final char delimiter) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder b = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    b.append(c);
+                } else if ((i + 1 < line.length())
+                        && (line.charAt(i + 1) == '"')) {
+                    b.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(b.toString());
+                b.setLength(0);
+            } else {
+                b.append(c);
+            }
+        }
+        fields.add(b.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Runs the filter.
+     *
+     * @param args the options, the rule file, the input and the output
+     * @throws Exception if the filter fails
+     */
+    public static void main(final String[] args) throws Exception {
+        String schemaText = null;
+        String delimiterText = null;
+        int nrThreads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; (i < args.length - 1) && args[i].startsWith("-"); i += 2) {
+            if (args[i].equals("-schema")) {
+                schemaText = args[i + 1];
+            } else if (args[i].equals("-delimiter")) {
+                delimiterText = args[i + 1];
+            } else if (args[i].equals("-threads")) {
+                nrThreads = Integer.parseInt(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (args.length - i != 3) {
+            usage();
+        }
+        File ruleFile = new File(args[i]);
+        File input = new File(args[i + 1]);
+        String output = args[i + 2];
+        char delimiter = getDelimiter(delimiterText, input.getName());
+        RecordSchema schema = readSchema(input, delimiter, schemaText);
+        System.err.println("Schema: " + schema);
+        List<Rule> rules = readRules(ruleFile, schema);
+
+        CsvFilter filter = new CsvFilter(schema, rules, (byte)delimiter);
+        long start = System.currentTimeMillis();
+        FileOutputStream out =
+                output.equals("-") ? null : new FileOutputStream(output);
+        WritableByteChannel channel = (out != null) ? out.getChannel()
+                : Channels.newChannel(System.out);
+        try {
+            filter.filter(input, getDataStart(input), channel, nrThreads);
+        } finally {
+            if (out != null) {
+                out.close();
+            } else {
+                System.out.flush();
+            }
+        }
+        System.err.println("Copied " + filter.m_nrMatches.get() + " of "
+                + filter.m_nrLines.get() + " records in "
+                + (System.currentTimeMillis() - start) + " ms, "
+                + filter.m_nrInvalid.get()
+                + " invalid values treated as missing");
+    }
+
+    /**
+     * Returns the schema of a file: the given one, or the one inferred from
+     * the header and the first {@link #NR_SAMPLES} records.
+     *
+     * @param input the file
+     * @param delimiter the field delimiter
+     * @param schemaText the schema, <code>null</code> if it is inferred
+     * @return the schema
+     * @throws IOException if the file cannot be read or is empty
+     * @throws ParseException if the schema is invalid
+     */
+    static RecordSchema readSchema(final File input, final char delimiter,
+            final String schemaText) throws IOException, ParseException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(input), UTF8));
+        String header;
+        List<String[]> samples = new ArrayList<String[]>();
+        try {
+            header = reader.readLine();
+            if (header == null) {
+                throw new IOException(input + " is empty");
+            }
+            String line;
+            while ((schemaText == null) && (samples.size() < NR_SAMPLES)
+                    && ((line = reader.readLine()) != null)) {
+                if (line.length() > 0) {
+                    samples.add(split(line, delimiter));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return (schemaText != null) ? RecordSchema.parse(schemaText)
+                : RecordSchema.infer(split(header, delimiter), samples);
+    }
+
+    /**
+     * Reads the rules from a file, one per line.
+     *
+     * @param ruleFile the file
+     * @param schema the columns the rules refer to
+     * @return the rules
+     * @throws IOException if the file cannot be read
+     * @throws ParseException if a rule is invalid
+     */
+    static List<Rule> readRules(final File ruleFile,
+            final RecordSchema schema) throws IOException, ParseException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(ruleFile), UTF8));
+        try {
+            return Rule.readRules(reader, schema.getSpec());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CsvFilter [-schema name:kind,...] "
+                + "[-delimiter c] [-threads n] <rule file> <input> <output>");
+        System.exit(1);
+    }
+
+    /**
+     * Returns the field delimiter of a file.
+     *
+     * @param text the delimiter given by the user, <tt>tab</tt> for tabs,
+     *            <code>null</code> if it depends on the file's extension
+     * @param file the file's name
+     * @return the delimiter
+     */
+    static char getDelimiter(final String text, final String file) {
+        if (text == null) {
+            String name = file.toLowerCase();
+            return (name.endsWith(".tsv") || name.endsWith(".tab")) ? '\t'
+                    : ',';
+        } else if (text.equals("tab") || text.equals("\\t")) {
+            return '\t';
+        } else if (text.length() != 1) {
+            System.err.println("The delimiter must be a single character");
+            System.exit(1);
+        }
+        return text.charAt(0);
+    }
+
+    /*
+     * Returns the offset of the line after the header.
+     */
+    private static long getDataStart(final File input) throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        try {
+            byte[] buffer = new byte[8192];
+            long offset = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        return offset + i + 1;
+                    }
+                }
+                offset += n;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+}
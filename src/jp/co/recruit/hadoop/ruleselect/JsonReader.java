@@ -0,0 +1,202 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal parser for the JSON records sent to the {@link RuleServer}.
+ * Objects become {@link Map}s, arrays {@link List}s, numbers {@link Long}s if
+ * they are integral and {@link Double}s otherwise; strings, booleans and
+ * <tt>null</tt> become {@link String}, {@link Boolean} and <code>null</code>.
+ *
+ * @author Krishna
+ */
+final class JsonReader {
+    private final String m_text;
+
+    private int m_pos;
+
+    private JsonReader(final String text) {
+        m_text = text;
+    }
+
+    /**
+     * Parses a JSON value.
+     *
+     * @param text the JSON text
+     * @return the value
+     * @throws ParseException if the text is not valid JSON
+     */
+    static Object parse(final String text) throws ParseException {
+        JsonReader r = new JsonReader(text);
+        Object value = r.readValue();
+        r.skipWS();
+        if (r.m_pos < text.length()) {
+            throw r.error("Unexpected content after the value");
+        }
+        return value;
+    }
+
+    private ParseException error(final String message) {
+        return new ParseException(message + " at position " + m_pos, m_pos);
+    }
+
+    private void skipWS() {
+        while ((m_pos < m_text.length())
+                && Character.isWhitespace(m_text.charAt(m_pos))) {
+            m_pos++;
+        }
+    }
+
+    private char peek() throws ParseException {
+        skipWS();
+        if (m_pos >= m_text.length()) {
+            throw error("Unexpected end of input");
+        }
+        return m_text.charAt(m_pos);
+    }
+
+    private void expect(final char c) throws ParseException {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        m_pos++;
+    }
+
+    private Object readValue() throws ParseException {
+        char c = peek();
+        if (c == '{') {
+            return readObject();
+        } else if (c == '[') {
+            return readArray();
+        } else if (c == '"') {
+            return readString();
+        } else if (m_text.startsWith("true", m_pos)) {
+            m_pos += 4;
+            return Boolean.TRUE;
+        } else if (m_text.startsWith("false", m_pos)) {
+            m_pos += 5;
+            return Boolean.FALSE;
+        } else if (m_text.startsWith("null", m_pos)) {
+            m_pos += 4;
+            return null;
+        }
+        return readNumber();
+    }
+
+    private Map<String, Object> readObject() throws ParseException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        expect('{');
+        if (peek() == '}') {
+            m_pos++;
+            return map;
+        }
+        while (true) {
+            if (peek() != '"') {
+                throw error("Expected a key");
+            }
+            String key = readString();
+            expect(':');
+            map.put(key, readValue());
+            if (peek() == '}') {
+                m_pos++;
+                return map;
+            }
+            expect(',');
+        }
+    }
+
+    private List<Object> readArray() throws ParseException {
+        List<Object> list = new ArrayList<Object>();
+        expect('[');
+        if (peek() == ']') {
+            m_pos++;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            if (peek() == ']') {
+                m_pos++;
+                return list;
+            }
+            expect(',');
+        }
+    }
+
+    private String readString() throws ParseException {
+        expect('"');
+        StringBuilder b = new StringBuilder();
+        while (m_pos < m_text.length()) {
+            char c = m_text.charAt(m_pos++);
+            if (c == '"') {
+                return b.toString();
+            } else if (c != '\\') {
+                b.append(c);
+                continue;
+            }
+            if (m_pos >= m_text.length()) {
+                break;
+            }
+            c = m_text.charAt(m_pos++);
+            switch (c) {
+                case 'b':
+                    b.append('\b');
+                    break;
+                case 'f':
+                    b.append('\f');
+                    break;
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'u':
+                    if (m_pos + 4 > m_text.length()) {
+                        throw error("Incomplete unicode escape");
+                    }
+                    try {
+                        b.append((char)Integer.parseInt(
+                                m_text.substring(m_pos, m_pos + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Invalid unicode escape");
+                    }
+                    m_pos += 4;
+                    break;
+                default:
+                    b.append(c);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Number readNumber() throws ParseException {
+        int start = m_pos;
+        boolean integral = true;
+        while (m_pos < m_text.length()) {
+            char c = m_text.charAt(m_pos);
+            if ((c == '.') || (c == 'e') || (c == 'E')) {
+                integral = false;
+            } else if (((c < '0') || (c > '9')) && (c != '-') && (c != '+')) {
+                break;
+            }
+            m_pos++;
+        }
+        String number = m_text.substring(start, m_pos);
+        try {
+            if (integral) {
+                return Long.valueOf(number);
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException ex) {
+            m_pos = start;
+            throw error("Invalid value '" + number + "'");
+        }
+    }
+}
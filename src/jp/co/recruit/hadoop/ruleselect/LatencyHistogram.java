@@ -0,0 +1,140 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds. Latencies below
+ * {@link #SUB_BUCKETS} microseconds have a bucket each; above that each power
+ * of two is split into {@link #SUB_BUCKETS} linear buckets, so that a
+ * percentile is known within 1/{@value #SUB_BUCKETS} of its value while the
+ * histogram has a fixed size. Latencies are recorded without locks and may be
+ * recorded by several threads.
+ *
+ * @author Krishna
+ */
+final class LatencyHistogram {
+    /** The number of linear buckets per power of two. */
+    private static final int SUB_BUCKETS = 16;
+
+    private static final int SUB_BITS = 4;
+
+    /** The largest power of two, longer latencies are counted in it. */
+    private static final int MAX_POWER = 40;
+
+    private final AtomicLongArray m_counts =
+            new AtomicLongArray((MAX_POWER - SUB_BITS + 2) * SUB_BUCKETS);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(final long nanos) {
+        m_counts.incrementAndGet(getBucket(Math.max(0, nanos / 1000)));
+    }
+
+    /*
+     * Returns the bucket of a latency in microseconds.
+     */
+    private int getBucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int)micros;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        if (power > MAX_POWER) {
+            return m_counts.length() - 1;
+        }
+        int sub = (int)(micros >>> (power - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (power - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+     * Returns the largest latency in a bucket, in microseconds.
+     */
+    private static long getUpperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int power = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (power - SUB_BITS);
+        return (1L << power) + (bucket % SUB_BUCKETS + 1) * width - 1;
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[m_counts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = m_counts.get(i);
+        }
+        return counts;
+    }
+
+    private static long getCount(final long[] counts) {
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        return n;
+    }
+
+    private static long getPercentile(final long[] counts, final double p) {
+        long rank = Math.max(1, (long)Math.ceil(getCount(counts) * p / 100));
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n >= rank) {
+                return getUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of latencies
+     */
+    long getCount() {
+        return getCount(snapshot());
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies.
+     *
+     * @param p the percentile, between 0 and 100
+     * @return an upper bound of the percentile in microseconds, 0 if no
+     *         latency has been recorded
+     */
+    long getPercentile(final double p) {
+        return getPercentile(snapshot(), p);
+    }
+
+    /**
+     * Writes the histogram as a JSON object with the count, the main
+     * percentiles and the non-empty buckets, given by their upper bounds in
+     * microseconds.
+     *
+     * @return the JSON object
+     */
+    String toJson() {
+        long[] counts = snapshot();
+        StringBuilder b = new StringBuilder("{\"count\":")
+                .append(getCount(counts))
+                .append(",\"p50\":").append(getPercentile(counts, 50))
+                .append(",\"p90\":").append(getPercentile(counts, 90))
+                .append(",\"p99\":").append(getPercentile(counts, 99))
+                .append(",\"p999\":").append(getPercentile(counts, 99.9))
+                .append(",\"buckets\":{");
+        boolean first = true;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                if (!first) {
+                    b.append(',');
+                }
+                b.append('"').append(getUpperBound(i)).append("\":")
+                        .append(counts[i]);
+                first = false;
+            }
+        }
+        return b.append("}}").toString();
+    }
+}
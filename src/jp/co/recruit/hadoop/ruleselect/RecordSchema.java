@@ -0,0 +1,394 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.date.DateAndTimeCell;
+import org.knime.core.data.def.BooleanCell;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+
+/**
+ * The columns of records that are evaluated outside of KNIME, e.g. by the
+ * {@link RuleServer}. A schema is written as a comma-separated list of
+ * <tt>name:kind</tt> pairs, where the kind is one of <tt>boolean</tt>,
+ * <tt>int</tt>, <tt>long</tt>, <tt>double</tt>, <tt>date</tt> and
+ * <tt>string</tt>, e.g. <tt>age:int,income:double,city:string</tt>. The
+ * schema converts values from text, JSON and binary records into the cells
+ * the rules are evaluated on.
+ * <br />
+ * Dates are written as <tt>yyyy-MM-dd</tt> or
+ * <tt>yyyy-MM-dd'T'HH:mm:ss</tt> in UTC. In binary records each value is
+ * preceded by a byte that is 0 for a missing value; booleans are written as
+ * a byte, dates as a long with the milliseconds since the epoch and strings
+ * in modified UTF-8, see {@link DataInput}.
+ *
+ * @author Krishna
+ */
+final class RecordSchema {
+    /** The kinds that are inferred, the most specific first. */
+    private static final ValueKind[] INFERRED_KINDS = {ValueKind.BOOLEAN,
+            ValueKind.INT, ValueKind.LONG, ValueKind.DOUBLE, ValueKind.DATE};
+
+    private static final Pattern DATE =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}(T\\d{2}:\\d{2}:\\d{2})?");
+
+    private final String[] m_names;
+
+    private final ValueKind[] m_kinds;
+
+    private final DataTableSpec m_spec;
+
+    /**
+     * Creates a new schema.
+     *
+     * @param names the names of the columns
+     * @param kinds the kinds of the columns' values, {@link ValueKind#OTHER}
+     *            is not allowed
+     */
+    RecordSchema(final String[] names, final ValueKind[] kinds) {
+        m_names = names.clone();
+        m_kinds = kinds.clone();
+        DataColumnSpec[] columns = new DataColumnSpec[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = new DataColumnSpecCreator(names[i],
+                    getType(kinds[i])).createSpec();
+        }
+        m_spec = new DataTableSpec(columns);
+    }
+
+    /**
+     * Parses a schema.
+     *
+     * @param schema the schema, e.g. <tt>age:int,city:string</tt>
+     * @return the schema
+     * @throws ParseException if a column has no kind or an unknown one
+     */
+    static RecordSchema parse(final String schema) throws ParseException {
+        List<String> names = new ArrayList<String>();
+        List<ValueKind> kinds = new ArrayList<ValueKind>();
+        int offset = 0;
+        for (String column : schema.split(",")) {
+            int colon = column.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new ParseException("Column '" + column.trim()
+                        + "' has no kind", offset);
+            }
+            names.add(column.substring(0, colon).trim());
+            kinds.add(parseKind(column.substring(colon + 1).trim(), offset));
+            offset += column.length() + 1;
+        }
+        return new RecordSchema(names.toArray(new String[names.size()]),
+                kinds.toArray(new ValueKind[kinds.size()]));
+    }
+
+    /**
+     * Infers a schema from sample values. A column gets the most specific
+     * kind that all of its non-empty samples are valid values of, in the
+     * order boolean, int, long, double, date; otherwise, or if it has no
+     * samples, it holds strings.
+     *
+     * @param names the names of the columns
+     * @param samples sample records, the values of a record in the order of
+     *            the columns; records may be shorter
+     * @return the schema
+     */
+    static RecordSchema infer(final String[] names,
+            final List<String[]> samples) {
+        ValueKind[] kinds = new ValueKind[names.length];
+        for (int c = 0; c < names.length; c++) {
+            kinds[c] = ValueKind.STRING;
+            for (ValueKind k : INFERRED_KINDS) {
+                if (fits(k, c, samples)) {
+                    kinds[c] = k;
+                    break;
+                }
+            }
+        }
+        return new RecordSchema(names, kinds);
+    }
+
+    /*
+     * Checks if all non-empty samples of a column are values of a kind, and
+     * if there is at least one.
+     */
+    private static boolean fits(final ValueKind kind, final int col,
+            final List<String[]> samples) {
+        boolean any = false;
+        for (String[] record : samples) {
+            String v = (col < record.length) ? record[col].trim() : "";
+            if (v.length() == 0) {
+                continue;
+            }
+            any = true;
+            try {
+                switch (kind) {
+                    case BOOLEAN:
+                        if (!v.equalsIgnoreCase("true")
+                                && !v.equalsIgnoreCase("false")) {
+                            return false;
+                        }
+                        break;
+                    case INT:
+                        Integer.parseInt(v);
+                        break;
+                    case LONG:
+                        Long.parseLong(v);
+                        break;
+                    case DOUBLE:
+                        Double.parseDouble(v);
+                        break;
+                    default:
+                        if (!DATE.matcher(v).matches()) {
+                            return false;
+                        }
+                        parseDate(v);
+                }
+            } catch (NumberFormatException ex) {
+                return false;
+            } catch (ParseException ex) {
+                return false;
+            }
+        }
+        return any;
+    }
+
+    private static ValueKind parseKind(final String kind, final int offset)
+            throws ParseException {
+        for (ValueKind k : ValueKind.values()) {
+            if ((k != ValueKind.OTHER)
+                    && k.name().equalsIgnoreCase(kind)) {
+                return k;
+            }
+        }
+        throw new ParseException("Unknown column kind '" + kind + "'",
+                offset);
+    }
+
+    private static DataType getType(final ValueKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return BooleanCell.TYPE;
+            case INT:
+                return IntCell.TYPE;
+            case LONG:
+                return LongCell.TYPE;
+            case DOUBLE:
+                return DoubleCell.TYPE;
+            case DATE:
+                return DateAndTimeCell.TYPE;
+            case STRING:
+                return StringCell.TYPE;
+            default:
+                throw new IllegalArgumentException("Unsupported kind "
+                        + kind);
+        }
+    }
+
+    /**
+     * Returns the spec of a table with the schema's columns.
+     *
+     * @return the spec
+     */
+    DataTableSpec getSpec() {
+        return m_spec;
+    }
+
+    /**
+     * Returns the number of columns.
+     *
+     * @return the number of columns
+     */
+    int getNrColumns() {
+        return m_names.length;
+    }
+
+    /**
+     * Returns the name of a column.
+     *
+     * @param col the column's index
+     * @return the name
+     */
+    String getName(final int col) {
+        return m_names[col];
+    }
+
+    /**
+     * Returns the kind of a column's values.
+     *
+     * @param col the column's index
+     * @return the kind
+     */
+    ValueKind getKind(final int col) {
+        return m_kinds[col];
+    }
+
+    /**
+     * Returns the index of a column.
+     *
+     * @param name the column's name
+     * @return the index, -1 if there is no such column
+     */
+    int findColumn(final String name) {
+        for (int i = 0; i < m_names.length; i++) {
+            if (m_names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts the text of a value into a cell of a column.
+     *
+     * @param col the column's index
+     * @param text the text, <code>null</code> or empty for a missing value
+     *            unless the column holds strings
+     * @return the cell
+     * @throws ParseException if the text is not a value of the column's kind
+     */
+    DataCell parse(final int col, final String text) throws ParseException {
+        if ((text == null) || ((text.length() == 0)
+                && (m_kinds[col] != ValueKind.STRING))) {
+            return DataType.getMissingCell();
+        }
+        try {
+            switch (m_kinds[col]) {
+                case BOOLEAN:
+                    return Boolean.parseBoolean(text) ? BooleanCell.TRUE
+                            : BooleanCell.FALSE;
+                case INT:
+                    return new IntCell(Integer.parseInt(text.trim()));
+                case LONG:
+                    return new LongCell(Long.parseLong(text.trim()));
+                case DOUBLE:
+                    return new DoubleCell(Double.parseDouble(text.trim()));
+                case DATE:
+                    return new DateAndTimeCell(parseDate(text.trim()), true,
+                            text.indexOf('T') >= 0, false);
+                default:
+                    return new StringCell(text);
+            }
+        } catch (NumberFormatException ex) {
+            throw new ParseException("'" + text + "' is not a valid "
+                    + m_kinds[col].name().toLowerCase() + " value for column "
+                    + m_names[col], 0);
+        }
+    }
+
+    private static long parseDate(final String text) throws ParseException {
+        // the formats are not thread-safe
+        SimpleDateFormat format = new SimpleDateFormat(
+                (text.indexOf('T') >= 0) ? "yyyy-MM-dd'T'HH:mm:ss"
+                        : "yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(text).getTime();
+    }
+
+    /**
+     * Converts a value of a JSON record into a cell of a column. Numbers
+     * are converted to the column's kind, strings are parsed.
+     *
+     * @param col the column's index
+     * @param value a {@link Boolean}, {@link Number} or {@link String},
+     *            <code>null</code> for a missing value
+     * @return the cell
+     * @throws ParseException if the value cannot be converted
+     */
+    DataCell convert(final int col, final Object value)
+            throws ParseException {
+        if (value == null) {
+            return DataType.getMissingCell();
+        } else if (value instanceof Number) {
+            Number n = (Number)value;
+            switch (m_kinds[col]) {
+                case INT:
+                    if (n.intValue() == n.doubleValue()) {
+                        return new IntCell(n.intValue());
+                    }
+                    break;
+                case LONG:
+                case DATE:
+                    if (n.longValue() == n.doubleValue()) {
+                        return (m_kinds[col] == ValueKind.LONG)
+                                ? new LongCell(n.longValue())
+                                : new DateAndTimeCell(n.longValue(), true,
+                                        true, true);
+                    }
+                    break;
+                case DOUBLE:
+                    return new DoubleCell(n.doubleValue());
+                default:
+                    break;
+            }
+        } else if (value instanceof Boolean) {
+            if (m_kinds[col] == ValueKind.BOOLEAN) {
+                return ((Boolean)value).booleanValue() ? BooleanCell.TRUE
+                        : BooleanCell.FALSE;
+            }
+        } else if (value instanceof String) {
+            return parse(col, (String)value);
+        }
+        throw new ParseException(value + " is not a valid "
+                + m_kinds[col].name().toLowerCase() + " value for column "
+                + m_names[col], 0);
+    }
+
+    /**
+     * Reads a value of a binary record into a cell of a column.
+     *
+     * @param col the column's index
+     * @param in the input the record is read from
+     * @return the cell
+     * @throws IOException if the input cannot be read
+     */
+    DataCell read(final int col, final DataInput in) throws IOException {
+        if (in.readByte() == 0) {
+            return DataType.getMissingCell();
+        }
+        switch (m_kinds[col]) {
+            case BOOLEAN:
+                return (in.readByte() != 0) ? BooleanCell.TRUE
+                        : BooleanCell.FALSE;
+            case INT:
+                return new IntCell(in.readInt());
+            case LONG:
+                return new LongCell(in.readLong());
+            case DOUBLE:
+                return new DoubleCell(in.readDouble());
+            case DATE:
+                return new DateAndTimeCell(in.readLong(), true, true, true);
+            default:
+                return new StringCell(in.readUTF());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < m_names.length; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append(m_names[i]).append(':')
+                    .append(m_kinds[i].name().toLowerCase());
+        }
+        return b.toString();
+    }
+}
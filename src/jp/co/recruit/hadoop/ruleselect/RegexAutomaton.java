@@ -0,0 +1,811 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.knime.core.data.DataCell;
+
+/**
+ * Matches strings against a set of regular expressions at once, in time
+ * linear in the length of the string. The expressions are compiled into one
+ * nondeterministic automaton (Thompson construction), which is turned into a
+ * deterministic automaton lazily while strings are matched: each state is
+ * created the first time it is reached and then reused. If too many states
+ * are created, the automaton keeps simulating the nondeterministic automaton
+ * instead of caching more states, which is still linear but slower.
+ * <br />
+ * Expressions always have to match the whole string. The supported syntax is
+ * the part of {@link java.util.regex.Pattern} that does not need
+ * backtracking: literals and escapes, <tt>.</tt>, character classes (also
+ * <tt>\d \w \s</tt> and their negations), groups, alternatives and the
+ * quantifiers <tt>* + ? {n} {n,} {n,m}</tt>. Back references, look-arounds
+ * and possessive quantifiers are rejected.
+ * <br />
+ * All expressions have to be added before the first string is matched. After
+ * that, the automaton may be used by several threads.
+ *
+ * @author Krishna
+ */
+final class RegexAutomaton {
+    /** The maximum number of states of the nondeterministic automaton. */
+    private static final int MAX_NFA_STATES = 100000;
+
+    /** The maximum number of cached states of the deterministic automaton. */
+    private static final int MAX_DFA_STATES = 10000;
+
+    /** The maximum count in a <tt>{n,m}</tt> quantifier. */
+    private static final int MAX_REPEAT = 1000;
+
+    private static final int CHAR = 0;
+
+    private static final int SPLIT = 1;
+
+    private static final int MATCH = 2;
+
+    private static final CharClass DOT =
+            CharClass.of(false, '\n', '\n', '\r', '\r').complement();
+
+    private static final CharClass DIGIT = CharClass.of(false, '0', '9');
+
+    private static final CharClass WORD = CharClass.of(false, 'a', 'z', 'A',
+            'Z', '0', '9', '_', '_');
+
+    /** Space, tab, new line, vertical tab, form feed, carriage return. */
+    private static final CharClass SPACE =
+            CharClass.of(false, ' ', ' ', '\t', '\r');
+
+    /*
+     * The nondeterministic automaton: a CHAR state goes to out1 if the
+     * character is in its class, a SPLIT state goes to out1 and out2 without
+     * consuming a character, a MATCH state accepts the pattern in out1.
+     */
+    private int m_size;
+
+    private int[] m_type = new int[64];
+
+    private CharClass[] m_class = new CharClass[64];
+
+    private int[] m_out1 = new int[64];
+
+    private int[] m_out2 = new int[64];
+
+    private final List<Integer> m_starts = new ArrayList<Integer>();
+
+    /** The start state, <code>null</code> until the first string is matched. */
+    private volatile DState m_start;
+
+    private final ConcurrentHashMap<StateSet, DState> m_states =
+            new ConcurrentHashMap<StateSet, DState>();
+
+    /** The last matched cell and its result. */
+    private volatile Memo m_last;
+
+    /**
+     * A set of characters, given as sorted, disjoint ranges.
+     */
+    private static final class CharClass {
+        /** lo0, hi0, lo1, hi1, ... */
+        private final char[] m_ranges;
+
+        private CharClass(final char[] ranges) {
+            m_ranges = ranges;
+        }
+
+        /**
+         * Creates a class from (possibly overlapping) ranges.
+         *
+         * @param negate <code>true</code> if the class contains all
+         *            characters that are not in the ranges
+         * @param ranges the ranges, lo0, hi0, lo1, hi1, ...
+         * @return a new class
+         */
+        static CharClass of(final boolean negate, final char... ranges) {
+            List<char[]> list = new ArrayList<char[]>();
+            for (int i = 0; i < ranges.length; i += 2) {
+                list.add(new char[]{ranges[i], ranges[i + 1]});
+            }
+            CharClass c = union(list);
+            return negate ? c.complement() : c;
+        }
+
+        static CharClass union(final List<char[]> ranges) {
+            Collections.sort(ranges, new Comparator<char[]>() {
+                public int compare(final char[] a, final char[] b) {
+                    return a[0] - b[0];
+                }
+            });
+            char[] merged = new char[2 * ranges.size()];
+            int n = 0;
+            for (char[] r : ranges) {
+                if ((n > 0) && (r[0] <= merged[n - 1] + 1)) {
+                    merged[n - 1] = (char)Math.max(merged[n - 1], r[1]);
+                } else {
+                    merged[n++] = r[0];
+                    merged[n++] = r[1];
+                }
+            }
+            return new CharClass(Arrays.copyOf(merged, n));
+        }
+
+        CharClass complement() {
+            char[] result = new char[m_ranges.length + 2];
+            int n = 0;
+            int next = 0;
+            for (int i = 0; i < m_ranges.length; i += 2) {
+                if (m_ranges[i] > next) {
+                    result[n++] = (char)next;
+                    result[n++] = (char)(m_ranges[i] - 1);
+                }
+                next = m_ranges[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                result[n++] = (char)next;
+                result[n++] = Character.MAX_VALUE;
+            }
+            return new CharClass(Arrays.copyOf(result, n));
+        }
+
+        void addTo(final List<char[]> ranges) {
+            for (int i = 0; i < m_ranges.length; i += 2) {
+                ranges.add(new char[]{m_ranges[i], m_ranges[i + 1]});
+            }
+        }
+
+        boolean matches(final char c) {
+            for (int i = 0; i < m_ranges.length; i += 2) {
+                if (c < m_ranges[i]) {
+                    return false;
+                }
+                if (c <= m_ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A parsed expression that can be added to the automaton.
+     */
+    private abstract static class Node {
+        /**
+         * Adds the states for this expression.
+         *
+         * @param a the automaton
+         * @param next the state that follows the expression
+         * @return the first state of the expression
+         * @throws ParseException if the automaton gets too large
+         */
+        abstract int emit(RegexAutomaton a, int next) throws ParseException;
+    }
+
+    private static final class CharNode extends Node {
+        private final CharClass m_class;
+
+        CharNode(final CharClass cls) {
+            m_class = cls;
+        }
+
+        @Override
+        int emit(final RegexAutomaton a, final int next)
+                throws ParseException {
+            return a.newState(CHAR, m_class, next, -1);
+        }
+    }
+
+    private static final class ConcatNode extends Node {
+        private final List<Node> m_nodes;
+
+        ConcatNode(final List<Node> nodes) {
+            m_nodes = nodes;
+        }
+
+        @Override
+        int emit(final RegexAutomaton a, final int next)
+                throws ParseException {
+            int state = next;
+            for (int i = m_nodes.size() - 1; i >= 0; i--) {
+                state = m_nodes.get(i).emit(a, state);
+            }
+            return state;
+        }
+    }
+
+    private static final class AltNode extends Node {
+        private final List<Node> m_nodes;
+
+        AltNode(final List<Node> nodes) {
+            m_nodes = nodes;
+        }
+
+        @Override
+        int emit(final RegexAutomaton a, final int next)
+                throws ParseException {
+            int state = m_nodes.get(m_nodes.size() - 1).emit(a, next);
+            for (int i = m_nodes.size() - 2; i >= 0; i--) {
+                state = a.newState(SPLIT, null, m_nodes.get(i).emit(a, next),
+                        state);
+            }
+            return state;
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        private final Node m_node;
+
+        private final int m_min;
+
+        /** The maximum count, -1 for unbounded. */
+        private final int m_max;
+
+        RepeatNode(final Node node, final int min, final int max) {
+            m_node = node;
+            m_min = min;
+            m_max = max;
+        }
+
+        @Override
+        int emit(final RegexAutomaton a, final int next)
+                throws ParseException {
+            int state = next;
+            if (m_max < 0) {
+                // loop: either the node again or leave
+                int loop = a.newState(SPLIT, null, -1, next);
+                // emit first, it may reallocate the state arrays
+                int body = m_node.emit(a, loop);
+                a.m_out1[loop] = body;
+                state = loop;
+            } else {
+                // optional copies, skipping one skips all remaining ones
+                for (int i = m_min; i < m_max; i++) {
+                    state = a.newState(SPLIT, null, m_node.emit(a, state),
+                            next);
+                }
+            }
+            for (int i = 0; i < m_min; i++) {
+                state = m_node.emit(a, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Parses the syntax described in the class comment.
+     */
+    private static final class Parser {
+        private final String m_regex;
+
+        private int m_pos;
+
+        Parser(final String regex) {
+            m_regex = regex;
+        }
+
+        Node parse() throws ParseException {
+            Node node = parseAlternatives();
+            if (m_pos < m_regex.length()) {
+                throw new ParseException("Unmatched ')'", m_pos);
+            }
+            return node;
+        }
+
+        private int peek() {
+            return (m_pos < m_regex.length()) ? m_regex.charAt(m_pos) : -1;
+        }
+
+        private char next() throws ParseException {
+            if (m_pos >= m_regex.length()) {
+                throw new ParseException("Unexpected end of pattern", m_pos);
+            }
+            return m_regex.charAt(m_pos++);
+        }
+
+        private Node parseAlternatives() throws ParseException {
+            List<Node> nodes = new ArrayList<Node>();
+            nodes.add(parseConcatenation());
+            while (peek() == '|') {
+                m_pos++;
+                nodes.add(parseConcatenation());
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new AltNode(nodes);
+        }
+
+        private Node parseConcatenation() throws ParseException {
+            List<Node> nodes = new ArrayList<Node>();
+            while ((peek() != -1) && (peek() != '|') && (peek() != ')')) {
+                Node n = parseRepetition();
+                if (n != null) {
+                    nodes.add(n);
+                }
+            }
+            return (nodes.size() == 1) ? nodes.get(0) : new ConcatNode(nodes);
+        }
+
+        private Node parseRepetition() throws ParseException {
+            int start = m_pos;
+            Node node = parseAtom();
+            while (true) {
+                int min;
+                int max;
+                if (peek() == '*') {
+                    m_pos++;
+                    min = 0;
+                    max = -1;
+                } else if (peek() == '+') {
+                    m_pos++;
+                    min = 1;
+                    max = -1;
+                } else if (peek() == '?') {
+                    m_pos++;
+                    min = 0;
+                    max = 1;
+                } else if (peek() == '{') {
+                    m_pos++;
+                    min = parseCount();
+                    max = min;
+                    if (peek() == ',') {
+                        m_pos++;
+                        max = (peek() == '}') ? -1 : parseCount();
+                    }
+                    if (next() != '}') {
+                        throw new ParseException("Expected '}'", m_pos - 1);
+                    }
+                    if ((max >= 0) && (max < min)) {
+                        throw new ParseException("Invalid repetition count",
+                                start);
+                    }
+                } else {
+                    return node;
+                }
+                if (node == null) {
+                    throw new ParseException("Nothing to repeat", start);
+                }
+                // reluctant quantifiers match the same whole strings
+                if (peek() == '?') {
+                    m_pos++;
+                } else if (peek() == '+') {
+                    throw new ParseException(
+                            "Possessive quantifiers are not supported",
+                            m_pos);
+                }
+                node = new RepeatNode(node, min, max);
+            }
+        }
+
+        private int parseCount() throws ParseException {
+            int start = m_pos;
+            int n = 0;
+            while ((peek() >= '0') && (peek() <= '9')) {
+                n = 10 * n + (next() - '0');
+                if (n > MAX_REPEAT) {
+                    throw new ParseException("Repetition counts larger than "
+                            + MAX_REPEAT + " are not supported", start);
+                }
+            }
+            if (m_pos == start) {
+                throw new ParseException("Expected a number", m_pos);
+            }
+            return n;
+        }
+
+        /*
+         * Returns null for anchors, which match the empty string.
+         */
+        private Node parseAtom() throws ParseException {
+            int start = m_pos;
+            char c = next();
+            switch (c) {
+                case '(':
+                    if (peek() == '?') {
+                        m_pos++;
+                        if (peek() != ':') {
+                            throw new ParseException("Look-arounds and "
+                                    + "flags are not supported", start);
+                        }
+                        m_pos++;
+                    }
+                    Node group = parseAlternatives();
+                    if (next() != ')') {
+                        throw new ParseException("Expected ')'", m_pos - 1);
+                    }
+                    return group;
+                case '[':
+                    return new CharNode(parseClass());
+                case '.':
+                    return new CharNode(DOT);
+                case '^':
+                    // the whole string is always matched
+                    if (start != 0) {
+                        throw new ParseException(
+                                "'^' is only supported at the start", start);
+                    }
+                    return null;
+                case '$':
+                    if (m_pos != m_regex.length()) {
+                        throw new ParseException(
+                                "'$' is only supported at the end", start);
+                    }
+                    return null;
+                case '\\':
+                    return new CharNode(parseEscape(false));
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new ParseException("Nothing to repeat", start);
+                case ')':
+                    throw new ParseException("Unmatched ')'", start);
+                default:
+                    return new CharNode(CharClass.of(false, c, c));
+            }
+        }
+
+        private CharClass parseClass() throws ParseException {
+            boolean negate = false;
+            if (peek() == '^') {
+                m_pos++;
+                negate = true;
+            }
+            List<char[]> ranges = new ArrayList<char[]>();
+            boolean first = true;
+            while (first || (peek() != ']')) {
+                first = false;
+                int start = m_pos;
+                char c = next();
+                CharClass cls = null;
+                if (c == '\\') {
+                    cls = parseEscape(true);
+                } else if (c == '[') {
+                    throw new ParseException(
+                            "Nested character classes are not supported",
+                            start);
+                }
+                if ((peek() == '-') && (m_pos + 1 < m_regex.length())
+                        && (m_regex.charAt(m_pos + 1) != ']')) {
+                    m_pos++;
+                    int hiStart = m_pos;
+                    char hi = next();
+                    CharClass hiCls = null;
+                    if (hi == '\\') {
+                        hiCls = parseEscape(true);
+                    }
+                    char lo = c;
+                    if (cls != null) {
+                        lo = single(cls, start);
+                    }
+                    if (hiCls != null) {
+                        hi = single(hiCls, hiStart);
+                    }
+                    if (hi < lo) {
+                        throw new ParseException("Invalid range", start);
+                    }
+                    ranges.add(new char[]{lo, hi});
+                } else if (cls != null) {
+                    cls.addTo(ranges);
+                } else {
+                    ranges.add(new char[]{c, c});
+                }
+            }
+            m_pos++;
+            CharClass cls = CharClass.union(ranges);
+            return negate ? cls.complement() : cls;
+        }
+
+        private char single(final CharClass cls, final int pos)
+                throws ParseException {
+            if ((cls.m_ranges.length != 2)
+                    || (cls.m_ranges[0] != cls.m_ranges[1])) {
+                throw new ParseException("Invalid range", pos);
+            }
+            return cls.m_ranges[0];
+        }
+
+        private CharClass parseEscape(final boolean inClass)
+                throws ParseException {
+            int start = m_pos - 1;
+            char c = next();
+            switch (c) {
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return DIGIT.complement();
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return WORD.complement();
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return SPACE.complement();
+                case 't':
+                    return CharClass.of(false, '\t', '\t');
+                case 'n':
+                    return CharClass.of(false, '\n', '\n');
+                case 'r':
+                    return CharClass.of(false, '\r', '\r');
+                case 'f':
+                    return CharClass.of(false, '\f', '\f');
+                case 'x':
+                    return literal(parseHex(2));
+                case 'u':
+                    return literal(parseHex(4));
+                default:
+                    if ((c >= '1') && (c <= '9')) {
+                        throw new ParseException(
+                                "Back references are not supported", start);
+                    }
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new ParseException("Unsupported escape '\\"
+                                + c + "'", start);
+                    }
+                    return literal(c);
+            }
+        }
+
+        private CharClass literal(final char c) {
+            return CharClass.of(false, c, c);
+        }
+
+        private char parseHex(final int digits) throws ParseException {
+            int start = m_pos;
+            int n = 0;
+            for (int i = 0; i < digits; i++) {
+                int d = Character.digit(next(), 16);
+                if (d < 0) {
+                    throw new ParseException("Invalid hexadecimal escape",
+                            start);
+                }
+                n = 16 * n + d;
+            }
+            return (char)n;
+        }
+    }
+
+    /**
+     * A state of the deterministic automaton, i.e. a set of states of the
+     * nondeterministic automaton. The transitions are filled in as they are
+     * needed; concurrent updates may compute the same transition twice, but
+     * always store the same state.
+     */
+    private static final class DState {
+        /** The character and match states, sorted. */
+        private final int[] m_nfa;
+
+        /** The patterns that match if the string ends in this state. */
+        private final long[] m_accept;
+
+        private final AtomicReferenceArray<DState> m_ascii =
+                new AtomicReferenceArray<DState>(128);
+
+        private final ConcurrentHashMap<Character, DState> m_other =
+                new ConcurrentHashMap<Character, DState>();
+
+        DState(final int[] nfa, final long[] accept) {
+            m_nfa = nfa;
+            m_accept = accept;
+        }
+    }
+
+    /**
+     * Key of a state of the deterministic automaton.
+     */
+    private static final class StateSet {
+        private final int[] m_states;
+
+        private final int m_hash;
+
+        StateSet(final int[] states) {
+            m_states = states;
+            m_hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return (o instanceof StateSet)
+                    && Arrays.equals(m_states, ((StateSet)o).m_states);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+    }
+
+    /**
+     * The result for the last matched cell.
+     */
+    private static final class Memo {
+        private final DataCell m_cell;
+
+        private final long[] m_mask;
+
+        Memo(final DataCell cell, final long[] mask) {
+            m_cell = cell;
+            m_mask = mask;
+        }
+    }
+
+    /**
+     * Adds a regular expression.
+     *
+     * @param regex the expression
+     * @return the index of the pattern, used by {@link #matches}
+     * @throws ParseException if the expression is invalid or not supported,
+     *             the offset is the position in the expression
+     */
+    synchronized int addPattern(final String regex) throws ParseException {
+        if (m_start != null) {
+            throw new IllegalStateException(
+                    "Patterns cannot be added after matching");
+        }
+        Node node = new Parser(regex).parse();
+        int id = m_starts.size();
+        int match = newState(MATCH, null, id, -1);
+        m_starts.add((node == null) ? match : node.emit(this, match));
+        return id;
+    }
+
+    private int newState(final int type, final CharClass cls, final int out1,
+            final int out2) throws ParseException {
+        if (m_size == m_type.length) {
+            if (m_size >= MAX_NFA_STATES) {
+                throw new ParseException("Pattern is too complex", 0);
+            }
+            int n = 2 * m_size;
+            m_type = Arrays.copyOf(m_type, n);
+            m_class = Arrays.copyOf(m_class, n);
+            m_out1 = Arrays.copyOf(m_out1, n);
+            m_out2 = Arrays.copyOf(m_out2, n);
+        }
+        m_type[m_size] = type;
+        m_class[m_size] = cls;
+        m_out1[m_size] = out1;
+        m_out2[m_size] = out2;
+        return m_size++;
+    }
+
+    /**
+     * Returns if a cell matches a pattern. The patterns are matched all at
+     * once and the result is kept for the cell, so that other patterns on the
+     * same cell are answered without matching again.
+     *
+     * @param cell a non-missing cell
+     * @param id the index of the pattern
+     * @return <code>true</code> if the cell's string matches the pattern
+     */
+    boolean matches(final DataCell cell, final int id) {
+        Memo memo = m_last;
+        if ((memo == null) || (memo.m_cell != cell)) {
+            memo = new Memo(cell, match(cell.toString()));
+            m_last = memo;
+        }
+        return (memo.m_mask[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Matches a string against all patterns.
+     *
+     * @param str a string
+     * @return a bit set with the indices of the matching patterns, must not
+     *         be modified
+     */
+    long[] match(final CharSequence str) {
+        DState d = getStart();
+        for (int i = 0; i < str.length(); i++) {
+            if (d.m_nfa.length == 0) {
+                // no pattern can match anymore
+                break;
+            }
+            d = step(d, str.charAt(i));
+        }
+        return d.m_accept;
+    }
+
+    private DState getStart() {
+        DState start = m_start;
+        if (start == null) {
+            synchronized (this) {
+                if (m_start == null) {
+                    int[] seeds = new int[m_starts.size()];
+                    for (int i = 0; i < seeds.length; i++) {
+                        seeds[i] = m_starts.get(i);
+                    }
+                    m_start = intern(closure(seeds, seeds.length));
+                }
+                start = m_start;
+            }
+        }
+        return start;
+    }
+
+    private DState step(final DState d, final char c) {
+        DState next = (c < 128) ? d.m_ascii.get(c) : d.m_other.get(c);
+        if (next != null) {
+            return next;
+        }
+        int[] seeds = new int[d.m_nfa.length];
+        int n = 0;
+        for (int s : d.m_nfa) {
+            if ((m_type[s] == CHAR) && m_class[s].matches(c)) {
+                seeds[n++] = m_out1[s];
+            }
+        }
+        next = intern(closure(seeds, n));
+        if (m_states.get(new StateSet(next.m_nfa)) != next) {
+            // too many states, the transition is computed again next time
+            return next;
+        }
+        if (c < 128) {
+            d.m_ascii.set(c, next);
+        } else {
+            d.m_other.put(c, next);
+        }
+        return next;
+    }
+
+    /*
+     * Returns the cached state for the set, or a new uncached one if there are
+     * too many states already.
+     */
+    private DState intern(final int[] nfa) {
+        StateSet key = new StateSet(nfa);
+        DState d = m_states.get(key);
+        if (d != null) {
+            return d;
+        }
+        long[] accept = new long[(m_starts.size() + 63) >>> 6];
+        for (int s : nfa) {
+            if (m_type[s] == MATCH) {
+                accept[m_out1[s] >>> 6] |= 1L << m_out1[s];
+            }
+        }
+        d = new DState(nfa, accept);
+        if (m_states.size() >= MAX_DFA_STATES) {
+            return d;
+        }
+        DState old = m_states.putIfAbsent(key, d);
+        return (old != null) ? old : d;
+    }
+
+    /*
+     * The character and match states reachable from the seeds without
+     * consuming a character, sorted.
+     */
+    private int[] closure(final int[] seeds, final int count) {
+        boolean[] seen = new boolean[m_size];
+        int[] stack = new int[m_size];
+        int top = 0;
+        int[] result = new int[m_size];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (!seen[seeds[i]]) {
+                seen[seeds[i]] = true;
+                stack[top++] = seeds[i];
+            }
+        }
+        while (top > 0) {
+            int s = stack[--top];
+            if (m_type[s] == SPLIT) {
+                if (!seen[m_out1[s]]) {
+                    seen[m_out1[s]] = true;
+                    stack[top++] = m_out1[s];
+                }
+                if (!seen[m_out2[s]]) {
+                    seen[m_out2[s]] = true;
+                    stack[top++] = m_out2[s];
+                }
+            } else {
+                result[n++] = s;
+            }
+        }
+        int[] states = Arrays.copyOf(result, n);
+        Arrays.sort(states);
+        return states;
+    }
+}
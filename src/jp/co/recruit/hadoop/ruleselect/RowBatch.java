@@ -0,0 +1,292 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.RowIterator;
+
+/**
+ * A block of consecutive rows of the input table that is evaluated as a unit,
+ * possibly by another thread than the one reading the table. For the batch
+ * kernels the values of a column can be read into a primitive array; each
+ * column is read only once per batch, however many rules use it. If a
+ * {@link ColumnSource} such as the {@link ColumnCache} is set, the values are
+ * read from it instead of from the cells where possible; a batch can also be
+ * created from the source alone, without rows, in which case the rows are
+ * only created if the source can and a rule asks for them. A batch may be
+ * evaluated by several threads at once if the rules are split into shards,
+ * therefore the column arrays are created under the batch's lock.
+ *
+ * @author Krishna
+ */
+final class RowBatch {
+    /** The rows, <code>null</code> for a batch read from a source only. */
+    private final DataRow[] m_rows;
+
+    /** The rows created by the source, on first use. */
+    private DataRow[] m_sourceRows;
+
+    private final int m_firstIndex;
+
+    private int m_size;
+
+    private final Map<Integer, ColumnValues> m_columns =
+            new HashMap<Integer, ColumnValues>();
+
+    private ColumnSource m_source;
+
+    /** The shards of the rules of the scan the batch belongs to. */
+    private RuleEngine.Shards m_shards;
+
+    /**
+     * The primitive values of a column, created on first use. Missing cells
+     * have the value 0 and their bit set in the missing mask.
+     */
+    private static final class ColumnValues {
+        private long[] m_missing;
+
+        private long[] m_longs;
+
+        private double[] m_doubles;
+    }
+
+    /**
+     * Creates a new empty batch.
+     *
+     * @param capacity the maximum number of rows in the batch
+     * @param firstIndex the index of the batch's first row in the table
+     */
+    RowBatch(final int capacity, final int firstIndex) {
+        m_rows = new DataRow[capacity];
+        m_firstIndex = firstIndex;
+    }
+
+    private RowBatch(final ColumnSource source, final int firstIndex,
+            final int size) {
+        m_rows = null;
+        m_firstIndex = firstIndex;
+        m_size = size;
+        m_source = source;
+    }
+
+    /**
+     * Creates a batch without rows whose column values are all read from a
+     * source.
+     *
+     * @param source a source that contains all columns that will be read
+     * @param firstIndex the index of the batch's first row in the table
+     * @param size the number of rows
+     * @return a new batch
+     */
+    static RowBatch fromCache(final ColumnSource source, final int firstIndex,
+            final int size) {
+        return new RowBatch(source, firstIndex, size);
+    }
+
+    /**
+     * Sets the source the column values are read from, if it contains them.
+     *
+     * @param source a source, <code>null</code> if the values are read from
+     *            the cells
+     */
+    void setCache(final ColumnSource source) {
+        m_source = source;
+    }
+
+    /**
+     * Sets the shards of the rules the batch is evaluated with, see
+     * {@link RuleEngine#scan}.
+     *
+     * @param shards the shards of the scan the batch belongs to,
+     *            <code>null</code> if the rules are not split
+     */
+    void setShards(final RuleEngine.Shards shards) {
+        m_shards = shards;
+    }
+
+    /**
+     * Returns the shards of the rules the batch is evaluated with.
+     *
+     * @return the shards, <code>null</code> if the rules are not split
+     */
+    RuleEngine.Shards getShards() {
+        return m_shards;
+    }
+
+    /**
+     * Reads the next rows from the iterator into a new batch.
+     *
+     * @param it an iterator with at least one remaining row
+     * @param capacity the maximum number of rows to read
+     * @param firstIndex the index of the next row in the table
+     * @return a new batch
+     */
+    static RowBatch read(final RowIterator it, final int capacity,
+            final int firstIndex) {
+        RowBatch batch = new RowBatch(capacity, firstIndex);
+        while ((batch.m_size < capacity) && it.hasNext()) {
+            batch.m_rows[batch.m_size++] = it.next();
+        }
+        return batch;
+    }
+
+    /**
+     * Adds a row to the batch.
+     *
+     * @param row a row
+     * @throws IllegalStateException if the batch is full or has no rows
+     */
+    void add(final DataRow row) {
+        if ((m_rows == null) || (m_size >= m_rows.length)) {
+            throw new IllegalStateException("The batch is full");
+        }
+        m_rows[m_size++] = row;
+    }
+
+    /**
+     * Returns the number of rows in the batch.
+     *
+     * @return the number of rows
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Returns if the batch contains the rows, i.e. if it has not been created
+     * from a source or the source can create them.
+     *
+     * @return <code>true</code> if {@link #getRow(int)} can be called
+     */
+    boolean hasRows() {
+        return (m_rows != null) || ((m_source != null) && m_source.hasRows());
+    }
+
+    /**
+     * Returns a row of the batch.
+     *
+     * @param index the row's index in the batch
+     * @return the row
+     * @throws IllegalStateException if the batch has no rows
+     */
+    DataRow getRow(final int index) {
+        return (m_rows != null) ? m_rows[index] : getSourceRows()[index];
+    }
+
+    /*
+     * Returns the rows, which the source creates for all rows of the batch
+     * once one of them is needed.
+     */
+    private synchronized DataRow[] getSourceRows() {
+        if (m_rows != null) {
+            return m_rows;
+        }
+        if ((m_sourceRows == null) && (m_source != null)) {
+            m_sourceRows = m_source.getRows(m_firstIndex, m_size);
+        }
+        if (m_sourceRows == null) {
+            throw new IllegalStateException("The batch of row "
+                    + m_firstIndex + " has no rows");
+        }
+        return m_sourceRows;
+    }
+
+    /**
+     * Returns the index of the batch's first row in the table.
+     *
+     * @return the row index
+     */
+    int getFirstIndex() {
+        return m_firstIndex;
+    }
+
+    /**
+     * Returns the mask of the rows that have a missing value in a column.
+     *
+     * @param col the column's index
+     * @return the mask, must not be changed
+     */
+    synchronized long[] getMissing(final int col) {
+        ColumnValues values = getColumn(col);
+        if ((values.m_missing == null) && (m_source != null)) {
+            values.m_missing =
+                    m_source.getMissing(col, m_firstIndex, m_size);
+        }
+        if (values.m_missing == null) {
+            DataRow[] rows = getSourceRows();
+            long[] missing = new long[BatchKernels.words(m_size)];
+            for (int i = 0; i < m_size; i++) {
+                if (rows[i].getCell(col).isMissing()) {
+                    missing[i >>> 6] |= 1L << i;
+                }
+            }
+            values.m_missing = missing;
+        }
+        return values.m_missing;
+    }
+
+    /**
+     * Returns the values of a column as longs.
+     *
+     * @param col the column's index
+     * @param kind the kind of the column's values
+     * @return the values, must not be changed
+     */
+    synchronized long[] getLongs(final int col, final ValueKind kind) {
+        ColumnValues values = getColumn(col);
+        if ((values.m_longs == null) && (m_source != null)) {
+            values.m_longs =
+                    m_source.getLongs(col, kind, m_firstIndex, m_size);
+        }
+        if (values.m_longs == null) {
+            DataRow[] rows = getSourceRows();
+            long[] longs = new long[m_size];
+            for (int i = 0; i < m_size; i++) {
+                DataCell c = rows[i].getCell(col);
+                if (!c.isMissing()) {
+                    longs[i] = kind.longValue(c);
+                }
+            }
+            values.m_longs = longs;
+        }
+        return values.m_longs;
+    }
+
+    /**
+     * Returns the values of a numeric column as doubles.
+     *
+     * @param col the column's index
+     * @return the values, must not be changed
+     */
+    synchronized double[] getDoubles(final int col) {
+        ColumnValues values = getColumn(col);
+        if ((values.m_doubles == null) && (m_source != null)) {
+            values.m_doubles =
+                    m_source.getDoubles(col, m_firstIndex, m_size);
+        }
+        if (values.m_doubles == null) {
+            DataRow[] rows = getSourceRows();
+            double[] doubles = new double[m_size];
+            for (int i = 0; i < m_size; i++) {
+                DataCell c = rows[i].getCell(col);
+                if (!c.isMissing()) {
+                    doubles[i] = ((DoubleValue)c).getDoubleValue();
+                }
+            }
+            values.m_doubles = doubles;
+        }
+        return values.m_doubles;
+    }
+
+    private ColumnValues getColumn(final int col) {
+        ColumnValues values = m_columns.get(col);
+        if (values == null) {
+            values = new ColumnValues();
+            m_columns.put(col, values);
+        }
+        return values;
+    }
+}
@@ -1,21 +1,32 @@
 package jp.co.recruit.hadoop.ruleselect;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnDomain;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
 import org.knime.core.data.DataValueComparator;
-import org.knime.core.data.DoubleValue;
-import org.knime.core.data.IntValue;
+import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.data.def.IntCell;
 import org.knime.core.data.def.StringCell;
@@ -25,13 +36,13 @@ import org.knime.base.node.rules.RuleNode;
 
 
 /**
- * A rule consists of a condition part (antecedant) and an outcome (consequent).
- * The condition may consists of arithmetic or string comparisons combined by
- * boolean operators. The outcome is a simple string. The grammar for a rule is
- * as follow:
+ * A rule consists of a condition part (antecedant) and an optional outcome
+ * (consequent). The condition may consists of arithmetic or string comparisons
+ * combined by boolean operators. The outcome is a simple string that is only
+ * used when rows are labeled. The grammar for a rule is as follow:
  *
  * <pre>
- * RULE := BEXPR '=&gt;' STRING
+ * RULE := BEXPR ('=&gt;' STRING)?
  * BEXPR := '(' BEXPR ')' |
  *          'NOT' BEXPR |
  *          'MISSING' COL |
@@ -41,12 +52,20 @@ import org.knime.base.node.rules.RuleNode;
  *          COL OP NUMBER |
  *          STRING OP COL |
  *          COL OP STRING |
+ *          DATE OP COL |
+ *          COL OP DATE |
+ *          COL 'BETWEEN' NUMBER 'AND' NUMBER |
+ *          COL 'BETWEEN' DATE 'AND' DATE |
+ *          COL 'IN' 'LAST' NUMBER UNIT |
  *          COL LOP STRINGLIST
  * BOP := 'AND' | 'OR' | 'XOR'
- * OP := '&gt;' | '&lt;' | '&gt;=' | '&lt;=' | '=' | 'LIKE'
- * LOP := 'IN'
+ * OP := '&gt;' | '&lt;' | '&gt;=' | '&lt;=' | '=' | 'LIKE' | 'MATCHES' |
+ *       'I=' | 'ILIKE'
+ * LOP := 'IN' | 'IIN'
  * STRING := '&quot;' [&circ;&quot;]* '&quot;'
  * NUMBER := [1-9][0-9]*(\.[0-9]+)?
+ * DATE := 'DATE' '&quot;' yyyy-MM-dd( HH:mm(:ss(.SSS)?)?)? '&quot;'
+ * UNIT := 'DAYS' | 'HOURS' | 'MINUTES'
  * COL := '$' [&circ;$]+ '$'
  * STRINGLIST := '(' STRING (',' STRING)* ')'
  * </pre>
@@ -57,6 +76,18 @@ import org.knime.base.node.rules.RuleNode;
  * in fact done with numerical columns and throws an exception if not. Therefore
  * the constructor needs the spec of the table on which the rule will lateron be
  * used.
+ * <br />
+ * Dates are compared as milliseconds since the epoch (UTC), as they are stored
+ * in the date and time cells; date literals are therefore read as UTC. A
+ * relative window such as <tt>IN LAST 30 DAYS</tt> ends at the time the rule
+ * is parsed.
+ * <br />
+ * Each comparison is also checked against the domains of the columns in the
+ * spec, i.e. the bounds of numeric and date columns and the possible values
+ * of nominal columns. A comparison that matches none of the values in the
+ * domain, or all of them, is replaced by a constant and folded into the
+ * boolean operators above it; a rule whose condition becomes false can never
+ * match, see {@link #canMatch()}.
  *
  * @author Thorsten Meinl, University of Konstanz
  */
@@ -93,8 +124,18 @@ public class Rule {
         MISSING,
         /** Wildcard matching (* and ? as wildcards). */
         LIKE,
+        /** Regular expression matching, in linear time. */
+        MATCHES,
         /** Set matching. */
-        IN;
+        IN,
+        /** Range test, both bounds inclusive. */
+        BETWEEN,
+        /** Case-insensitive string equal. */
+        IEQ("I="),
+        /** Case-insensitive wildcard matching. */
+        ILIKE,
+        /** Case-insensitive set matching. */
+        IIN;
 
         private final String m_represent;
 
@@ -118,13 +159,33 @@ public class Rule {
             return super.toString();
         }
     }
-  // Changed by Krishna on 2011/03/03
-  //  private final String m_outcome;
-  //***************
+    private final String m_outcome;
+
     private final String m_condition;
 
     private final RuleNode m_root;
 
+    private final RuleContext m_context;
+
+    /** The columns of the comparison that is being parsed. */
+    private final Set<Integer> m_columns = new LinkedHashSet<Integer>();
+
+    /** All columns the rule refers to. */
+    private final Set<Integer> m_usedColumns = new LinkedHashSet<Integer>();
+
+    /**
+     * If the comparison that is being parsed may already be evaluated while
+     * the rules are parsed.
+     */
+    private boolean m_evaluable;
+
+    /** If the rule contains a relative date window, see #hasWindow(). */
+    private boolean m_window;
+
+    /** The formats accepted in date literals, the longest first. */
+    private static final String[] DATE_FORMATS = {"yyyy-MM-dd HH:mm:ss.SSS",
+            "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+
     private char[] s;
 
     private int p;
@@ -138,22 +199,41 @@ public class Rule {
      */
     public Rule(final String rule, final DataTableSpec spec)
             throws ParseException {
+        this(rule, spec, new RuleContext());
+    }
+
+    /**
+     * Creates a new rule by parsing a rule string. Rules that are created with
+     * the same context share work on the same columns, e.g. the automaton for
+     * the regular expressions of a column.
+     *
+     * @param rule the rule string
+     * @param spec the spec of the table on which the rule will be applied.
+     * @param context the context shared by the rules of a node
+     * @throws ParseException if the rule contains a syntax error
+     */
+    Rule(final String rule, final DataTableSpec spec,
+            final RuleContext context) throws ParseException {
         s = rule.toCharArray();
+        m_context = context;
 
         try {
             m_root = parseBooleanExpression(spec);
 
-            m_condition = rule.substring(0, p);
-         // Changed by Krishna on 2011/03/03
-         //   skipWS();
-         //   expect('=');
-         //   expect('>');
-         //***************
+            m_condition = rule.substring(0, p).trim();
             skipWS();
-         // Changed by Krishna on 2011/03/03
-         //           m_outcome = parseString();
+            // the outcome is optional, it is only used for labeling rows
+            if (s[p] == '=') {
+                p++;
+                expect('>');
+                skipWS();
+                m_outcome = parseString();
+                skipWS();
+            } else {
+                m_outcome = null;
+            }
+            // skip the terminating quote that is appended to each rule
             p++;
-         //***************
             if (p < s.length) {
                 throw new ParseException("Garbage at end of rule detected", p);
             }
@@ -226,22 +306,96 @@ public class Rule {
     }
 
     /**
-     * Parses an arithmetic expression (<tt>AEXPR</tt>).
+     * Parses an arithmetic expression (<tt>AEXPR</tt>) and checks it against
+     * the domains of its columns. If the rules are compiled, comparisons on a
+     * single string column are then evaluated through the column's
+     * {@link ValueMemo}.
      *
      * @param spec the table spec
-     * @return a rule node for the parsed expression
+     * @return a rule node for the parsed expression, a constant if the
+     *         expression's outcome is known from the domains
      * @throws ParseException if rule contains a syntax error
      */
     private RuleNode parseArithmeticExpression(final DataTableSpec spec)
             throws ParseException {
+        m_columns.clear();
+        m_evaluable = true;
+        RuleNode node = parseComparison(spec);
+        // the domains are checked in both tiers, so that the same rules are
+        // skipped whether they are interpreted or compiled
+        ZoneMap.Truth truth =
+                BatchKernels.prune(node, m_context.getDomain(spec));
+        int col = (m_columns.size() == 1) ? m_columns.iterator().next() : -1;
+        if ((truth == ZoneMap.Truth.UNKNOWN) && (col >= 0) && m_evaluable) {
+            truth = checkValues(spec, col, node);
+        }
+        if (truth != ZoneMap.Truth.UNKNOWN) {
+            return RuleNodeFactory.constant(truth == ZoneMap.Truth.ALWAYS);
+        } else if (m_context.isCompiling() && (col >= 0)
+                && !(node instanceof BatchNode)
+                && (ValueKind.of(spec.getColumnSpec(col).getType())
+                        == ValueKind.STRING)) {
+            return m_context.getMemo(col).memoize(node);
+        }
+        return node;
+    }
+
+    /**
+     * Evaluates a comparison on a single column for each of the column's
+     * possible values.
+     *
+     * @param spec the table spec
+     * @param col the column's index
+     * @param node the comparison
+     * @return {@link ZoneMap.Truth#NEVER} if the comparison matches neither
+     *         a possible value nor a missing value, otherwise
+     *         {@link ZoneMap.Truth#UNKNOWN}
+     */
+    private static ZoneMap.Truth checkValues(final DataTableSpec spec,
+            final int col, final RuleNode node) {
+        DataColumnDomain domain = spec.getColumnSpec(col).getDomain();
+        if (!domain.hasValues()) {
+            return ZoneMap.Truth.UNKNOWN;
+        }
+        DataCell[] cells = new DataCell[spec.getNumColumns()];
+        Arrays.fill(cells, DataType.getMissingCell());
+        if (node.evaluate(new DefaultRow("domain", cells))) {
+            return ZoneMap.Truth.UNKNOWN;
+        }
+        for (DataCell c : domain.getValues()) {
+            cells[col] = c;
+            if (node.evaluate(new DefaultRow("domain", cells))) {
+                return ZoneMap.Truth.UNKNOWN;
+            }
+        }
+        return ZoneMap.Truth.NEVER;
+    }
+
+    /**
+     * Parses a comparison, the body of an arithmetic expression.
+     *
+     * @param spec the table spec
+     * @return a rule node for the parsed expression
+     * @throws ParseException if rule contains a syntax error
+     */
+    private RuleNode parseComparison(final DataTableSpec spec)
+            throws ParseException {
         skipWS();
         if (s[p] == '$') {
             int start = p;
             int leftColIndex = parseColumn(spec);
             Operators op = parseOperator();
             skipWS();
-            if (op == Operators.IN) {
+            if ((op == Operators.IN) && (s[p] == 'L')) {
+                return parseWindow(spec, leftColIndex);
+            } else if (op == Operators.IN) {
                 return RuleNodeFactory.in(leftColIndex, parseStringList());
+            } else if (op == Operators.BETWEEN) {
+                return parseBetween(spec, leftColIndex);
+            } else if (op == Operators.IIN) {
+                return RuleNodeFactory.iin(leftColIndex,
+                        m_context.getNormalizer(leftColIndex),
+                        parseStringList());
             } else if (s[p] == '$') {
                 int rightColIndex = parseColumn(spec);
 
@@ -251,29 +405,38 @@ public class Rule {
                         DataType.getCommonSuperType(leftSpec.getType(),
                                 rightSpec.getType());
                 DataValueComparator comp = commonType.getComparator();
+                ValueKind leftKind = ValueKind.of(leftSpec.getType());
+                ValueKind rightKind = ValueKind.of(rightSpec.getType());
 
                 switch (op) {
                     case EQ:
-                        return RuleNodeFactory.eq(leftColIndex, rightColIndex);
+                        return RuleNodeFactory.eq(leftColIndex, leftKind,
+                                rightColIndex, rightKind);
                     case GE:
-                        return RuleNodeFactory.ge(leftColIndex, rightColIndex,
-                                comp);
+                        return RuleNodeFactory.ge(leftColIndex, leftKind,
+                                rightColIndex, rightKind, comp);
                     case GT:
-                        return RuleNodeFactory.gt(leftColIndex, rightColIndex,
-                                comp);
+                        return RuleNodeFactory.gt(leftColIndex, leftKind,
+                                rightColIndex, rightKind, comp);
                     case LE:
-                        return RuleNodeFactory.le(leftColIndex, rightColIndex,
-                                comp);
+                        return RuleNodeFactory.le(leftColIndex, leftKind,
+                                rightColIndex, rightKind, comp);
                     case LT:
-                        return RuleNodeFactory.lt(leftColIndex, rightColIndex,
-                                comp);
+                        return RuleNodeFactory.lt(leftColIndex, leftKind,
+                                rightColIndex, rightKind, comp);
                     case LIKE:
                         return RuleNodeFactory.like(leftColIndex, rightColIndex);
+                    case IEQ:
+                        return RuleNodeFactory.ieq(leftColIndex,
+                                m_context.getNormalizer(leftColIndex),
+                                rightColIndex,
+                                m_context.getNormalizer(rightColIndex));
                     default:
                         throw new ParseException("Unhandeled operator "
                                 + op, start);
                 }
             } else if (s[p] == '"') {
+                int stringStart = p + 1;
                 String t = parseString();
                 switch (op) {
                     case EQ:
@@ -288,34 +451,72 @@ public class Rule {
                         return RuleNodeFactory.lt(leftColIndex, t);
                     case LIKE:
                         return RuleNodeFactory.like(leftColIndex, t);
+                    case IEQ:
+                        return RuleNodeFactory.ieq(leftColIndex,
+                                m_context.getNormalizer(leftColIndex), t);
+                    case ILIKE:
+                        return RuleNodeFactory.ilike(leftColIndex,
+                                m_context.getNormalizer(leftColIndex), t);
+                    case MATCHES:
+                        RegexAutomaton automaton =
+                                m_context.getAutomaton(leftColIndex);
+                        int pattern;
+                        try {
+                            pattern = automaton.addPattern(t);
+                        } catch (ParseException ex) {
+                            throw new ParseException("Invalid regular "
+                                    + "expression: " + ex.getMessage(),
+                                    stringStart + ex.getErrorOffset());
+                        }
+                        // the automaton must not match before all rules are
+                        // parsed, so the possible values are not checked
+                        m_evaluable = false;
+                        return RuleNodeFactory.matches(leftColIndex,
+                                automaton, pattern, t);
+                    default:
+                        throw new ParseException("Unhandeled operator "
+                                + op, start);
+                }
+            } else if (s[p] == 'D') {
+                Date d = parseDate();
+                checkDateColumn(spec, leftColIndex, start);
+                switch (op) {
+                    case EQ:
+                        return RuleNodeFactory.eq(leftColIndex, d);
+                    case GE:
+                        return RuleNodeFactory.ge(leftColIndex, d);
+                    case GT:
+                        return RuleNodeFactory.gt(leftColIndex, d);
+                    case LE:
+                        return RuleNodeFactory.le(leftColIndex, d);
+                    case LT:
+                        return RuleNodeFactory.lt(leftColIndex, d);
                     default:
                         throw new ParseException("Unhandeled operator "
                                 + op, start);
                 }
             } else {
                 Number n = parseNumber();
-                DataType leftType = spec.getColumnSpec(leftColIndex).getType();
-                if (!leftType.isCompatible(DoubleValue.class)) {
+                ValueKind kind = ValueKind.of(spec.getColumnSpec(leftColIndex)
+                        .getType());
+                if (!kind.isNumeric()) {
                     throw new ParseException(spec.getColumnSpec(leftColIndex)
                             .getName()
                             + " is not a numeric column", start);
                 }
 
-                if ((n instanceof Integer)
-                        && !leftType.isCompatible(IntValue.class)) {
-                    n = new Double(n.doubleValue());
-                }
+                n = kind.widen(n);
                 switch (op) {
                     case EQ:
-                        return RuleNodeFactory.eq(leftColIndex, n);
+                        return RuleNodeFactory.eq(leftColIndex, kind, n);
                     case GE:
-                        return RuleNodeFactory.ge(leftColIndex, n);
+                        return RuleNodeFactory.ge(leftColIndex, kind, n);
                     case GT:
-                        return RuleNodeFactory.gt(leftColIndex, n);
+                        return RuleNodeFactory.gt(leftColIndex, kind, n);
                     case LE:
-                        return RuleNodeFactory.le(leftColIndex, n);
+                        return RuleNodeFactory.le(leftColIndex, kind, n);
                     case LT:
-                        return RuleNodeFactory.lt(leftColIndex, n);
+                        return RuleNodeFactory.lt(leftColIndex, kind, n);
                     default:
                         throw new ParseException("Unhandeled operator "
                                 + op, start);
@@ -338,6 +539,30 @@ public class Rule {
                     return RuleNodeFactory.ge(rightColIndex, t);
                 case LIKE:
                     return RuleNodeFactory.like(t, rightColIndex);
+                case IEQ:
+                    return RuleNodeFactory.ieq(rightColIndex,
+                            m_context.getNormalizer(rightColIndex), t);
+                default:
+                    throw new ParseException("Unhandeled operator " + op, p);
+            }
+        } else if (s[p] == 'D') {
+            Date d = parseDate();
+            Operators op = parseOperator();
+            skipWS();
+            int start = p;
+            int rightColIndex = parseColumn(spec);
+            checkDateColumn(spec, rightColIndex, start);
+            switch (op) {
+                case EQ:
+                    return RuleNodeFactory.eq(rightColIndex, d);
+                case GE:
+                    return RuleNodeFactory.le(rightColIndex, d);
+                case GT:
+                    return RuleNodeFactory.lt(rightColIndex, d);
+                case LE:
+                    return RuleNodeFactory.ge(rightColIndex, d);
+                case LT:
+                    return RuleNodeFactory.gt(rightColIndex, d);
                 default:
                     throw new ParseException("Unhandeled operator " + op, p);
             }
@@ -347,29 +572,26 @@ public class Rule {
             int start = p;
             int rightColIndex = parseColumn(spec);
 
-            DataType rightType = spec.getColumnSpec(rightColIndex).getType();
-            if (!rightType.isCompatible(DoubleValue.class)) {
+            ValueKind kind = ValueKind.of(spec.getColumnSpec(rightColIndex)
+                    .getType());
+            if (!kind.isNumeric()) {
                 throw new ParseException(spec.getColumnSpec(rightColIndex)
                         .getName()
                         + " is not a numeric column", start);
             }
 
-            if ((n instanceof Integer)
-                    && !rightType.isCompatible(IntValue.class)) {
-                n = new Double(n.doubleValue());
-            }
-
+            n = kind.widen(n);
             switch (op) {
                 case EQ:
-                    return RuleNodeFactory.eq(rightColIndex, n);
+                    return RuleNodeFactory.eq(rightColIndex, kind, n);
                 case GE:
-                    return RuleNodeFactory.lt(rightColIndex, n);
+                    return RuleNodeFactory.lt(rightColIndex, kind, n);
                 case GT:
-                    return RuleNodeFactory.le(rightColIndex, n);
+                    return RuleNodeFactory.le(rightColIndex, kind, n);
                 case LE:
-                    return RuleNodeFactory.gt(rightColIndex, n);
+                    return RuleNodeFactory.gt(rightColIndex, kind, n);
                 case LT:
-                    return RuleNodeFactory.ge(rightColIndex, n);
+                    return RuleNodeFactory.ge(rightColIndex, kind, n);
                 default:
                     throw new ParseException("Unhandeled operator " + op, start);
             }
@@ -380,14 +602,157 @@ public class Rule {
     }
 
     /**
-     * Parses a decimal number (<tt>NUMBER</tt>).
+     * Parses the bounds of a <tt>BETWEEN</tt>, either two numbers for a
+     * numeric column or two dates for a date column.
+     *
+     * @param spec the table spec
+     * @param col the column's index
+     * @return a rule node for the range test
+     * @throws ParseException if a syntax error has been found
+     */
+    private RuleNode parseBetween(final DataTableSpec spec, final int col)
+            throws ParseException {
+        int start = p;
+        if (s[p] == 'D') {
+            Date from = parseDate();
+            skipWS();
+            expect('A');
+            expect('N');
+            expect('D');
+            skipWS();
+            Date to = parseDate();
+            checkDateColumn(spec, col, start);
+            return RuleNodeFactory.between(col, from, to);
+        }
+
+        Number from = parseNumber();
+        skipWS();
+        expect('A');
+        expect('N');
+        expect('D');
+        Number to = parseNumber();
+        ValueKind kind = ValueKind.of(spec.getColumnSpec(col).getType());
+        if (!kind.isNumeric()) {
+            throw new ParseException(spec.getColumnSpec(col).getName()
+                    + " is not a numeric column", start);
+        }
+        return RuleNodeFactory.and(
+                RuleNodeFactory.ge(col, kind, kind.widen(from)),
+                RuleNodeFactory.le(col, kind, kind.widen(to)));
+    }
+
+    /**
+     * Parses a relative window (<tt>'LAST' NUMBER UNIT</tt>) after an
+     * <tt>IN</tt>. The window ends now.
+     *
+     * @param spec the table spec
+     * @param col the column's index
+     * @return a rule node for the window
+     * @throws ParseException if a syntax error has been found
+     */
+    private RuleNode parseWindow(final DataTableSpec spec, final int col)
+            throws ParseException {
+        int start = p;
+        expect('L');
+        expect('A');
+        expect('S');
+        expect('T');
+        skipWS();
+        int numberStart = p;
+        Number amount = parseNumber();
+        if (amount instanceof Double) {
+            throw new ParseException("Expected a whole number", numberStart);
+        } else if (amount.longValue() <= 0) {
+            throw new ParseException("Expected a positive number",
+                    numberStart);
+        }
+        skipWS();
+        TimeUnit unit;
+        if (s[p] == 'D') {
+            p++;
+            expect('A');
+            expect('Y');
+            expect('S');
+            unit = TimeUnit.DAYS;
+        } else if (s[p] == 'H') {
+            p++;
+            expect('O');
+            expect('U');
+            expect('R');
+            expect('S');
+            unit = TimeUnit.HOURS;
+        } else {
+            expect('M');
+            expect('I');
+            expect('N');
+            expect('U');
+            expect('T');
+            expect('E');
+            expect('S');
+            unit = TimeUnit.MINUTES;
+        }
+        checkDateColumn(spec, col, start);
+        m_window = true;
+        return RuleNodeFactory.inLast(col, amount.longValue(), unit,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Parses a date literal (<tt>DATE</tt>). The date is read as UTC.
+     *
+     * @return the date
+     * @throws ParseException if a syntax error has been found
+     */
+    private Date parseDate() throws ParseException {
+        expect('D');
+        expect('A');
+        expect('T');
+        expect('E');
+        skipWS();
+        int start = p + 1;
+        String t = parseString();
+        for (String pattern : DATE_FORMATS) {
+            SimpleDateFormat format =
+                    new SimpleDateFormat(pattern, Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            ParsePosition pos = new ParsePosition(0);
+            Date d = format.parse(t, pos);
+            if ((d != null) && (pos.getIndex() == t.length())) {
+                return d;
+            }
+        }
+        throw new ParseException("Invalid date '" + t
+                + "', expected yyyy-MM-dd HH:mm:ss.SSS", start);
+    }
+
+    /**
+     * Checks that a column compared to a date contains dates.
+     *
+     * @param spec the table spec
+     * @param col the column's index
+     * @param start the position of the comparison, for the error message
+     * @throws ParseException if the column does not contain dates
+     */
+    private void checkDateColumn(final DataTableSpec spec, final int col,
+            final int start) throws ParseException {
+        if (ValueKind.of(spec.getColumnSpec(col).getType())
+                != ValueKind.DATE) {
+            throw new ParseException(spec.getColumnSpec(col).getName()
+                    + " is not a date column", start);
+        }
+    }
+
+    /**
+     * Parses a decimal number (<tt>NUMBER</tt>). Whole numbers are returned as
+     * {@link Integer} if they fit into an int and as {@link Long} otherwise.
      *
      * @return the number
      * @throws ParseException if a syntax error has been found
      */
     private Number parseNumber() throws ParseException {
         skipWS();
-        int n = 0;
+        long n = 0;
         int sign = 1;
         if (s[p] == '-') {
             p++;
@@ -409,10 +774,12 @@ public class Rule {
                 digits *= 10;
             }
             return new Double(sign * (n + f / (double)digits));
+        } else if ((sign * n >= Integer.MIN_VALUE)
+                && (sign * n <= Integer.MAX_VALUE)) {
+            return new Integer((int)(sign * n));
         } else {
-            return new Integer(sign * n);
+            return new Long(sign * n);
         }
-        
     }
 
     /**
@@ -449,10 +816,42 @@ public class Rule {
             expect('K');
             expect('E');
             return Operators.LIKE;
-        } else if (s[p] == 'I') {
+        } else if (s[p] == 'B') {
             p++;
+            expect('E');
+            expect('T');
+            expect('W');
+            expect('E');
+            expect('E');
             expect('N');
-            return Operators.IN;
+            return Operators.BETWEEN;
+        } else if (s[p] == 'M') {
+            p++;
+            expect('A');
+            expect('T');
+            expect('C');
+            expect('H');
+            expect('E');
+            expect('S');
+            return Operators.MATCHES;
+        } else if (s[p] == 'I') {
+            p++;
+            if (s[p] == 'N') {
+                p++;
+                return Operators.IN;
+            } else if (s[p] == '=') {
+                p++;
+                return Operators.IEQ;
+            } else if (s[p] == 'I') {
+                p++;
+                expect('N');
+                return Operators.IIN;
+            }
+            expect('L');
+            expect('I');
+            expect('K');
+            expect('E');
+            return Operators.ILIKE;
         } else {
             throw new ParseException("Expected one of [<, >, <=, >=, =]", start);
         }
@@ -478,6 +877,8 @@ public class Rule {
             throw new ParseException("Column '" + colName + "' does not exist",
                     start);
         }
+        m_columns.add(colIndex);
+        m_usedColumns.add(colIndex);
         return colIndex;
     }
 
@@ -564,16 +965,93 @@ public class Rule {
         return m_root.evaluate(row);
     }
 
+    /**
+     * Evaluates this rule on the selected rows of a batch.
+     *
+     * @param batch a batch of rows
+     * @param selection the mask of the rows that have to be evaluated
+     * @param result the mask the matching rows are written to; bits are only
+     *            set for selected rows
+     * @see BatchNode
+     */
+    void matches(final RowBatch batch, final long[] selection,
+            final long[] result) {
+        BatchKernels.evaluate(m_root, batch, selection, result);
+    }
+
+    /**
+     * Decides from the statistics of a block if this rule matches all of its
+     * rows or none.
+     *
+     * @param zone the block's statistics
+     * @return the outcome for the block
+     */
+    ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+        return BatchKernels.prune(m_root, zone);
+    }
+
+    /**
+     * Returns if this rule needs the rows of a batch, or only the primitive
+     * values of the columns it compares.
+     *
+     * @return <code>true</code> if the rule reads rows
+     * @see BatchNode#needsRows()
+     */
+    boolean needsRows() {
+        return BatchKernels.needsRows(m_root);
+    }
+
+    /**
+     * Adds the columns whose block statistics this rule uses.
+     *
+     * @param columns a map from the column's index to the kind of its values
+     */
+    void addZoneColumns(final Map<Integer, ValueKind> columns) {
+        BatchKernels.addColumns(m_root, columns);
+    }
+
+    /**
+     * Adds the columns this rule refers to. Only the cells of these columns
+     * are read when the rule is evaluated.
+     *
+     * @param columns the set the columns' indices are added to
+     */
+    void addUsedColumns(final Set<Integer> columns) {
+        columns.addAll(m_usedColumns);
+    }
+
+    /**
+     * Returns if this rule contains a relative date window such as
+     * <tt>IN LAST 30 DAYS</tt>. The window ends at the time the rule has been
+     * parsed, so the rule must be parsed again to compare against the
+     * current time.
+     *
+     * @return <code>true</code> if the rule depends on the time of parsing
+     */
+    boolean hasWindow() {
+        return m_window;
+    }
+
+    /**
+     * Returns if this rule can match any row of a table with the spec it was
+     * parsed with. Rules that cannot match need not be evaluated.
+     *
+     * @return <code>false</code> if the domains of the columns show that the
+     *         condition is never true, <code>true</code> otherwise
+     */
+    public boolean canMatch() {
+        return !RuleNodeFactory.isConstant(m_root, false);
+    }
+
     /**
      * Returns the rule's outcome (consequent).
      *
-     * @return a string
+     * @return a string, or <code>null</code> if the rule has no outcome
      */
-  // Changed by Krishna on 2011/03/03
-  //  public String getOutcome() {
-  //      return m_outcome;
-  //  }
-  //*****************
+    public String getOutcome() {
+        return m_outcome;
+    }
+
     /**
      * Returns the rule's condition (antecedant).
      *
@@ -588,7 +1066,10 @@ public class Rule {
      */
     @Override
     public String toString() {
-        return m_condition;
+        if (m_outcome == null) {
+            return m_condition;
+        }
+        return m_condition + " => \"" + m_outcome + "\"";
     }
 
     /**
@@ -602,6 +1083,40 @@ public class Rule {
         return m_root.toString();
     }
 
+    /**
+     * Reads rules, one per line, for a table spec. Empty lines are skipped.
+     * The rules share a {@link RuleContext} and are compiled.
+     *
+     * @param in the reader the rules are read from
+     * @param spec the spec of the table on which the rules will be applied
+     * @return the rules in the order of the lines
+     * @throws IOException if the rules cannot be read
+     * @throws ParseException if a rule contains a syntax error, the message
+     *             contains the line number
+     */
+    static List<Rule> readRules(final BufferedReader in,
+            final DataTableSpec spec) throws IOException, ParseException {
+        List<Rule> rules = new ArrayList<Rule>();
+        RuleContext context = new RuleContext();
+        String line;
+        int lineNr = 0;
+        while ((line = in.readLine()) != null) {
+            lineNr++;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            try {
+                rules.add(new Rule(line + "\"", spec, context));
+            } catch (ParseException ex) {
+                ParseException e = new ParseException("Line " + lineNr + ": "
+                        + ex.getMessage(), ex.getErrorOffset());
+                e.initCause(ex);
+                throw e;
+            }
+        }
+        return rules;
+    }
+
     /**
      * Zum Testen...
      *
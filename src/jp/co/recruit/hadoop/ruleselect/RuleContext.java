@@ -0,0 +1,125 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.knime.core.data.DataTableSpec;
+
+/**
+ * State that is shared by all rules of a node, so that work that several
+ * rules need to do on the same column is only done once per row: all regular
+ * expressions of the <tt>MATCHES</tt> operator on a column are compiled into
+ * one automaton, which matches a cell against all of them at once, and the
+ * case-insensitive operators on a column share the normalized cell value.
+ * The statistics taken from the column domains of the input spec are also
+ * computed only once, and the comparisons on a string column share a memo of
+ * their results per distinct value.
+ * <br />
+ * If the rules are only interpreted, see {@link RuleEngine.Tier}, the
+ * comparisons are still checked against the domains, but not memoized.
+ * <br />
+ * All rules have to be parsed before the first row is evaluated.
+ *
+ * @author Krishna
+ */
+final class RuleContext {
+    private final Map<Integer, RegexAutomaton> m_automata =
+            new HashMap<Integer, RegexAutomaton>();
+
+    private final Map<Integer, StringNormalizer> m_normalizers =
+            new HashMap<Integer, StringNormalizer>();
+
+    private final Map<Integer, ValueMemo> m_memos =
+            new HashMap<Integer, ValueMemo>();
+
+    private ZoneMap.Zone m_domain;
+
+    private final boolean m_compile;
+
+    /**
+     * Creates a new context for rules that are compiled.
+     */
+    RuleContext() {
+        this(true);
+    }
+
+    /**
+     * Creates a new context.
+     *
+     * @param compile <code>true</code> if the rules are compiled,
+     *            <code>false</code> if they are only interpreted
+     */
+    RuleContext(final boolean compile) {
+        m_compile = compile;
+    }
+
+    /**
+     * Returns if the rules are compiled. Only compiled rules memoize their
+     * results.
+     *
+     * @return <code>true</code> if the rules are compiled
+     */
+    boolean isCompiling() {
+        return m_compile;
+    }
+
+    /**
+     * Returns the automaton for the regular expressions on a column.
+     *
+     * @param col the column's index
+     * @return the automaton
+     */
+    RegexAutomaton getAutomaton(final int col) {
+        RegexAutomaton a = m_automata.get(col);
+        if (a == null) {
+            a = new RegexAutomaton();
+            m_automata.put(col, a);
+        }
+        return a;
+    }
+
+    /**
+     * Returns the normalizer for the string values of a column.
+     *
+     * @param col the column's index
+     * @return the normalizer
+     */
+    StringNormalizer getNormalizer(final int col) {
+        StringNormalizer n = m_normalizers.get(col);
+        if (n == null) {
+            n = new StringNormalizer();
+            m_normalizers.put(col, n);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the memo for the results of the comparisons on a column.
+     *
+     * @param col the column's index
+     * @return the memo
+     */
+    ValueMemo getMemo(final int col) {
+        ValueMemo m = m_memos.get(col);
+        if (m == null) {
+            m = new ValueMemo(col);
+            m_memos.put(col, m);
+        }
+        return m;
+    }
+
+    /**
+     * Returns the statistics of the input table that are known from the
+     * domains of its columns.
+     *
+     * @param spec the input table's spec, the same for all rules
+     * @return the statistics
+     * @see ZoneMap#domain(DataTableSpec)
+     */
+    ZoneMap.Zone getDomain(final DataTableSpec spec) {
+        if (m_domain == null) {
+            m_domain = ZoneMap.domain(spec);
+        }
+        return m_domain;
+    }
+}
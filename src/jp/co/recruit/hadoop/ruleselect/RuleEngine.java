@@ -0,0 +1,1120 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.RowIterator;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Evaluates a list of rules on the rows of a table. The rows are read in
+ * batches by the calling thread; if there is enough data the batches are
+ * evaluated in parallel by worker threads, and the results are handed back
+ * to the calling thread in the order of the rows. If there are too few rows
+ * for that but many rules, the rules are split into shards instead, and the
+ * shards evaluate each batch in parallel; a row that a shard matches is not
+ * evaluated any further by the shards with later rules. If a {@link ZoneMap} is
+ * set, blocks that a rule matches entirely or not at all are decided without
+ * evaluating their rows. If the input is sorted by a column the rules
+ * compare, the range of that column in a batch is known from its first and
+ * last row, and the scan can stop as soon as no rule can match any later row.
+ * Rules that cannot match any row of the input according to its column
+ * domains are never evaluated. With a {@link ColumnCache} the compared
+ * columns are copied while they are evaluated, and a later scan of the same
+ * table reads their values from the copy, or does not read the table at all
+ * if no rule needs the rows.
+ * <br />
+ * All of this only pays off if there is enough work. On small inputs the
+ * rules are interpreted instead, row by row, see {@link Tier}.
+ *
+ * @author Krishna
+ */
+final class RuleEngine {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(RuleEngine.class);
+
+    /** The number of rows that are evaluated together. */
+    static final int BATCH_SIZE = 1024;
+
+    /** The minimum number of rules in a shard. */
+    static final int MIN_SHARD_RULES = 256;
+
+    /**
+     * The number of rule evaluations, rows times rules, from which the rules
+     * are compiled.
+     */
+    static final long MIN_COMPILED_EVALUATIONS = 65536;
+
+    /**
+     * The ways in which the rules are evaluated.
+     */
+    enum Tier {
+        /**
+         * Each row is evaluated by the rules' nodes one after the other. The
+         * rules that cannot match according to the column domains are
+         * skipped, but no column values or block statistics are collected.
+         */
+        INTERPRETED,
+        /**
+         * The rules are evaluated on whole batches by the column kernels, with
+         * block statistics, column cache and threads.
+         */
+        COMPILED;
+
+        /**
+         * Chooses the tier for an input.
+         *
+         * @param rowCount the number of rows
+         * @param nrRules the number of rules
+         * @return the tier
+         */
+        static Tier choose(final int rowCount, final int nrRules) {
+            return ((long)rowCount * nrRules < MIN_COMPILED_EVALUATIONS)
+                    ? INTERPRETED : COMPILED;
+        }
+
+        /**
+         * Explains why a tier is chosen for an input.
+         *
+         * @param rowCount the number of rows
+         * @param nrRules the number of rules
+         * @return a human-readable reason
+         */
+        static String getReason(final int rowCount, final int nrRules) {
+            long n = (long)rowCount * nrRules;
+            return rowCount + " rows x " + nrRules + " rules = " + n
+                    + " rule evaluations, "
+                    + ((n < MIN_COMPILED_EVALUATIONS) ? "fewer than "
+                            : "at least ")
+                    + MIN_COMPILED_EVALUATIONS;
+        }
+    }
+
+    private final Rule[] m_rules;
+
+    /** The indices of the rules that can match, in order. */
+    private final int[] m_active;
+
+    /** For each active rule, if it needs the rows, see #getRunEnd. */
+    private final boolean[] m_byRow;
+
+    private final int m_nrThreads;
+
+    private final Tier m_tier;
+
+    /** The columns whose block statistics the rules use. */
+    private final Map<Integer, ValueKind> m_zoneColumns =
+            new HashMap<Integer, ValueKind>();
+
+    private ZoneMap m_zoneMap;
+
+    private ColumnCache m_cache;
+
+    /** The column the input is sorted by, -1 if none. */
+    private int m_sortColumn = -1;
+
+    private ValueKind m_sortKind;
+
+    /** If all batches consumed so far have been in order. */
+    private boolean m_inOrder = true;
+
+    /** The last batch checked by {@link #canStop(RowBatch)}. */
+    private RowBatch m_lastBatch;
+
+    /** If it only matters whether a row matches, not which rule. */
+    private boolean m_anyMatch;
+
+    /**
+     * The shards of the rules during one scan: their number and the pool that
+     * evaluates them. Each batch of the scan refers to them, so that a batch
+     * is only evaluated with the pool of its own scan.
+     */
+    static final class Shards {
+        private final ExecutorService m_pool;
+
+        private final int m_count;
+
+        Shards(final ExecutorService pool, final int count) {
+            m_pool = pool;
+            m_count = count;
+        }
+    }
+
+    /**
+     * The rows the shards of the rules have matched in the current batch.
+     * Each shard only writes its own mask and reads the others' masks to skip
+     * rows that need not be evaluated any more.
+     */
+    private static final class ShardMatches {
+        private final AtomicLongArray[] m_matched;
+
+        private final boolean m_anyMatch;
+
+        ShardMatches(final int nrShards, final int words,
+                final boolean anyMatch) {
+            m_matched = new AtomicLongArray[nrShards];
+            for (int s = 0; s < nrShards; s++) {
+                m_matched[s] = new AtomicLongArray(words);
+            }
+            m_anyMatch = anyMatch;
+        }
+
+        /**
+         * Publishes rows a shard has matched.
+         *
+         * @param shard the shard's index
+         * @param rows the mask of the matched rows
+         */
+        void publish(final int shard, final long[] rows) {
+            AtomicLongArray matched = m_matched[shard];
+            for (int w = 0; w < rows.length; w++) {
+                if (rows[w] != 0) {
+                    matched.set(w, matched.get(w) | rows[w]);
+                }
+            }
+        }
+
+        /**
+         * Removes the rows that are already decided from the open rows of a
+         * shard: the rows matched by any other shard if only a match counts,
+         * otherwise the rows matched by the shards with earlier rules.
+         *
+         * @param shard the shard's index
+         * @param open the mask of the shard's open rows, changed in place
+         */
+        void cancel(final int shard, final long[] open) {
+            int end = m_anyMatch ? m_matched.length : shard;
+            for (int s = 0; s < end; s++) {
+                if (s == shard) {
+                    continue;
+                }
+                for (int w = 0; w < open.length; w++) {
+                    open[w] &= ~m_matched[s].get(w);
+                }
+            }
+        }
+    }
+
+    /**
+     * A task that evaluates a shard of the rules.
+     */
+    private interface ShardTask {
+        /**
+         * Evaluates the rules of a shard.
+         *
+         * @param shard the shard's index
+         * @param from the index of the shard's first rule in the active rules
+         * @param to the index after the shard's last rule
+         */
+        void run(int shard, int from, int to);
+    }
+
+    /**
+     * A job that is run on all batches of a table. {@link #evaluate} is
+     * called by the worker threads, {@link #consume} by the thread that
+     * started the scan, once for each batch and in the order of the batches.
+     *
+     * @param <T> the type of the evaluation result
+     */
+    abstract static class BatchJob<T> {
+        /**
+         * Evaluates the rules on a batch. This method may be called
+         * concurrently for different batches.
+         *
+         * @param batch a batch of rows
+         * @return the result for the batch
+         */
+        abstract T evaluate(RowBatch batch);
+
+        /**
+         * Processes the result of a batch.
+         *
+         * @param batch a batch of rows
+         * @param result the result of {@link #evaluate} for the batch
+         * @return <code>true</code> if the scan should continue,
+         *         <code>false</code> if it should stop after this batch
+         * @throws CanceledExecutionException if the execution has been
+         *             canceled
+         */
+        abstract boolean consume(RowBatch batch, T result)
+                throws CanceledExecutionException;
+    }
+
+    /**
+     * The per-rule result of {@link RuleEngine#countMatches(RowBatch)}.
+     */
+    static final class MatchCounts {
+        /** The number of rows each rule matches. */
+        final int[] m_counts;
+
+        /**
+         * The index in the batch of the first row each rule matches, -1 if it
+         * matches none.
+         */
+        final int[] m_firstRows;
+
+        MatchCounts(final int nrRules) {
+            m_counts = new int[nrRules];
+            m_firstRows = new int[nrRules];
+        }
+    }
+
+    /**
+     * Creates a new engine that uses one thread per available processor.
+     *
+     * @param rules the rules in the order in which they are tried
+     */
+    RuleEngine(final List<Rule> rules) {
+        this(rules, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new engine.
+     *
+     * @param rules the rules in the order in which they are tried
+     * @param nrThreads the maximum number of threads used for evaluating
+     */
+    RuleEngine(final List<Rule> rules, final int nrThreads) {
+        this(rules, nrThreads, Tier.COMPILED);
+    }
+
+    /**
+     * Creates a new engine. Interpreted rules have no block statistics,
+     * therefore zone maps, column caches and sort columns are ignored.
+     *
+     * @param rules the rules in the order in which they are tried
+     * @param nrThreads the maximum number of threads used for evaluating
+     * @param tier the way in which the rules are evaluated
+     */
+    RuleEngine(final List<Rule> rules, final int nrThreads,
+            final Tier tier) {
+        m_rules = rules.toArray(new Rule[rules.size()]);
+        m_nrThreads = nrThreads;
+        m_tier = tier;
+        int n = 0;
+        int[] active = new int[m_rules.length];
+        for (int i = 0; i < m_rules.length; i++) {
+            if (m_rules[i].canMatch()) {
+                if (tier == Tier.COMPILED) {
+                    m_rules[i].addZoneColumns(m_zoneColumns);
+                }
+                active[n++] = i;
+            }
+        }
+        m_active = Arrays.copyOf(active, n);
+        m_byRow = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            m_byRow[k] = m_rules[m_active[k]].needsRows();
+        }
+    }
+
+    /**
+     * Sets the zone map of the table the rules are evaluated on. The
+     * statistics of the evaluated blocks are added to the map.
+     *
+     * @param zoneMap the table's zone map, <code>null</code> if none should
+     *            be used
+     */
+    void setZoneMap(final ZoneMap zoneMap) {
+        m_zoneMap = (m_zoneColumns.isEmpty()) ? null : zoneMap;
+        if ((m_sortColumn < 0) && (m_zoneMap != null)) {
+            // a column that was sorted in an earlier scan of the same table
+            for (Map.Entry<Integer, ValueKind> e : m_zoneColumns.entrySet()) {
+                if (m_zoneMap.isSorted(e.getKey())) {
+                    setSortColumn(e.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Declares that it only matters whether a row matches any rule, not which
+     * rule matches first, e.g. when rows are selected for a single port. Rule
+     * shards can then skip the rows that any other shard has matched.
+     *
+     * @param anyMatch <code>true</code> if any matching rule may be reported
+     *            instead of the first one
+     */
+    void setAnyMatch(final boolean anyMatch) {
+        m_anyMatch = anyMatch;
+    }
+
+    /**
+     * Sets the column cache of the table the rules are evaluated on. The
+     * evaluated blocks of the compared columns are copied to the cache.
+     *
+     * @param cache the table's column cache, <code>null</code> if none should
+     *            be used
+     */
+    void setColumnCache(final ColumnCache cache) {
+        m_cache = (m_zoneColumns.isEmpty()) ? null : cache;
+    }
+
+    /**
+     * Returns if the rules can be evaluated on the column cache alone, see
+     * {@link #scanCache(int, BatchJob)}. This is the case if all compared
+     * columns have been copied completely and no rule needs the rows.
+     *
+     * @return <code>true</code> if the table does not have to be read
+     */
+    boolean canScanCache() {
+        if ((m_cache == null) || !m_cache.isComplete(m_zoneColumns)) {
+            return false;
+        }
+        for (int r : m_active) {
+            if (m_rules[r].needsRows()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Declares that the input is sorted in ascending order by a column. The
+     * order is verified while the table is read; if it does not hold, all
+     * rows are read. The column is ignored if no rule compares it to a
+     * constant.
+     *
+     * @param col the column's index
+     */
+    void setSortColumn(final int col) {
+        if (m_zoneColumns.containsKey(col)) {
+            m_sortColumn = col;
+            m_sortKind = m_zoneColumns.get(col);
+        }
+    }
+
+    /**
+     * Returns the column the input is sorted by.
+     *
+     * @return the column's index, -1 if the input is not known to be sorted
+     */
+    int getSortColumn() {
+        return m_sortColumn;
+    }
+
+    /**
+     * Checks if no rule can match any row after a batch, because the input is
+     * sorted and the sort column's values are already past the ranges of all
+     * rules. Has to be called for every batch in the order of the table.
+     *
+     * @param batch the last consumed batch
+     * @return <code>true</code> if the scan can stop after the batch
+     */
+    boolean canStop(final RowBatch batch) {
+        if ((m_sortColumn < 0) || !m_inOrder) {
+            return false;
+        }
+        RowBatch previous = m_lastBatch;
+        m_lastBatch = batch;
+        if (!ZoneMap.isSorted(batch, m_sortColumn, m_sortKind)
+                || ((previous != null) && (compareLastToFirst(previous,
+                        batch) > 0))) {
+            LOGGER.warn("The input is not sorted by column "
+                    + m_sortColumn + " at row " + (batch.getFirstIndex() + 1)
+                    + ", all rows are read");
+            m_inOrder = false;
+            return false;
+        }
+        ZoneMap.Zone tail = ZoneMap.tail(batch, m_sortColumn, m_sortKind);
+        for (int r : m_active) {
+            if (m_rules[r].prune(tail) != ZoneMap.Truth.NEVER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Compares the last sort value of a batch with the first of the next one.
+     */
+    private int compareLastToFirst(final RowBatch previous,
+            final RowBatch next) {
+        int last = previous.size() - 1;
+        if (m_sortKind == ValueKind.DOUBLE) {
+            return Double.compare(previous.getDoubles(m_sortColumn)[last],
+                    next.getDoubles(m_sortColumn)[0]);
+        }
+        long a = previous.getLongs(m_sortColumn, m_sortKind)[last];
+        long b = next.getLongs(m_sortColumn, m_sortKind)[0];
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    /*
+     * Returns the outcome of a rule for a whole block, UNKNOWN if there are no
+     * statistics for the block.
+     */
+    private ZoneMap.Truth prune(final Rule rule, final ZoneMap.Zone zone) {
+        return (zone == null) ? ZoneMap.Truth.UNKNOWN : rule.prune(zone);
+    }
+
+    /*
+     * Returns the statistics of a batch's block, null if none are known.
+     */
+    private ZoneMap.Zone getZone(final RowBatch batch) {
+        ZoneMap.Zone zone =
+                (m_zoneMap == null) ? null : m_zoneMap.getZone(batch);
+        if ((m_sortColumn >= 0)
+                && ZoneMap.isSorted(batch, m_sortColumn, m_sortKind)) {
+            zone = ZoneMap.sorted(zone, batch, m_sortColumn, m_sortKind);
+        }
+        return zone;
+    }
+
+    /*
+     * Records the statistics and the values of a batch's block for later
+     * executions.
+     */
+    private void record(final RowBatch batch) {
+        if (m_zoneMap != null) {
+            m_zoneMap.record(batch, m_zoneColumns);
+        }
+        if (m_cache != null) {
+            m_cache.record(batch, m_zoneColumns);
+        }
+    }
+
+    /**
+     * Returns the way in which the rules are evaluated.
+     *
+     * @return the tier
+     */
+    Tier getTier() {
+        return m_tier;
+    }
+
+    /**
+     * Returns the number of rules.
+     *
+     * @return the number of rules
+     */
+    int getNrRules() {
+        return m_rules.length;
+    }
+
+    /**
+     * Returns the number of rules that are never evaluated because they
+     * cannot match any row of the input.
+     *
+     * @return the number of pruned rules
+     * @see Rule#canMatch()
+     */
+    int getNrPrunedRules() {
+        return m_rules.length - m_active.length;
+    }
+
+    /**
+     * Returns a rule.
+     *
+     * @param index the rule's index
+     * @return the rule
+     */
+    Rule getRule(final int index) {
+        return m_rules[index];
+    }
+
+    /**
+     * Returns the first rule that matches the row.
+     *
+     * @param row a row
+     * @return the index of the first matching rule, -1 if no rule matches
+     */
+    int firstMatch(final DataRow row) {
+        for (int i : m_active) {
+            if (m_rules[i].matches(row)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns all matching rules for each row in a batch. Each rule with a
+     * batch kernel is evaluated on the whole batch at once, the other rules
+     * row by row.
+     *
+     * @param batch a batch of rows
+     * @return the indices of the rules that match each row, in ascending
+     *         order
+     */
+    int[][] allMatches(final RowBatch batch) {
+        int[][] matches = new int[batch.size()][];
+        if (m_tier == Tier.INTERPRETED) {
+            int[] rules = new int[m_active.length];
+            for (int i = 0; i < matches.length; i++) {
+                DataRow row = batch.getRow(i);
+                int n = 0;
+                for (int r : m_active) {
+                    if (m_rules[r].matches(row)) {
+                        rules[n++] = r;
+                    }
+                }
+                matches[i] = Arrays.copyOf(rules, n);
+            }
+            return matches;
+        }
+        ZoneMap.Zone zone = getZone(batch);
+        long[] all = BatchKernels.all(batch.size());
+        long[][] results = new long[m_active.length][];
+        long[][] run = new long[m_active.length][];
+        int k = 0;
+        while (k < m_active.length) {
+            int end = getRunEnd(k, m_active.length);
+            evaluateRun(batch, zone, k, end, all, false, run);
+            System.arraycopy(run, 0, results, k, end - k);
+            k = end;
+        }
+        int[] nrMatches = new int[batch.size()];
+        for (k = 0; k < m_active.length; k++) {
+            if (results[k] == null) {
+                continue;
+            }
+            for (int w = 0; w < all.length; w++) {
+                long bits = results[k][w];
+                while (bits != 0) {
+                    nrMatches[(w << 6) + Long.numberOfTrailingZeros(bits)]++;
+                    bits &= bits - 1;
+                }
+            }
+        }
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = new int[nrMatches[i]];
+            nrMatches[i] = 0;
+        }
+        for (k = 0; k < m_active.length; k++) {
+            if (results[k] == null) {
+                continue;
+            }
+            for (int w = 0; w < all.length; w++) {
+                long bits = results[k][w];
+                while (bits != 0) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    matches[i][nrMatches[i]++] = m_active[k];
+                    bits &= bits - 1;
+                }
+            }
+        }
+        record(batch);
+        return matches;
+    }
+
+    /**
+     * Returns the first matching rule for all rows in a batch. Each rule with
+     * a batch kernel is evaluated on the whole batch at once, the other rules
+     * row by row, but only on the rows that no earlier rule has matched. If
+     * the rules are split into shards, see {@link #setAnyMatch(boolean)} for
+     * which rule is reported.
+     *
+     * @param batch a batch of rows
+     * @return the index of the first matching rule for each row, -1 for
+     *         rows that no rule matches
+     */
+    int[] firstMatches(final RowBatch batch) {
+        int[] matches;
+        if (m_tier == Tier.INTERPRETED) {
+            matches = new int[batch.size()];
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = firstMatch(batch.getRow(i));
+            }
+            return matches;
+        }
+        final ZoneMap.Zone zone = getZone(batch);
+        Shards shards = batch.getShards();
+        if (shards == null) {
+            matches = new int[batch.size()];
+            Arrays.fill(matches, -1);
+            firstMatches(batch, zone, 0, m_active.length, matches, null, 0);
+        } else {
+            final int[][] shardMatches = new int[shards.m_count][batch.size()];
+            final ShardMatches matched = new ShardMatches(shards.m_count,
+                    BatchKernels.words(batch.size()), m_anyMatch);
+            runShards(shards, new ShardTask() {
+                public void run(final int shard, final int from,
+                        final int to) {
+                    Arrays.fill(shardMatches[shard], -1);
+                    firstMatches(batch, zone, from, to, shardMatches[shard],
+                            matched, shard);
+                }
+            });
+            // the match of the shard with the earliest rules wins
+            matches = shardMatches[0];
+            for (int s = 1; s < shards.m_count; s++) {
+                for (int i = 0; i < matches.length; i++) {
+                    if (matches[i] < 0) {
+                        matches[i] = shardMatches[s][i];
+                    }
+                }
+            }
+        }
+        record(batch);
+        return matches;
+    }
+
+    /*
+     * Evaluates the active rules from index from to index to on the rows of a
+     * batch no earlier rule has matched. With shards, rows another shard has
+     * decided are skipped.
+     */
+    private void firstMatches(final RowBatch batch, final ZoneMap.Zone zone,
+            final int from, final int to, final int[] matches,
+            final ShardMatches matched, final int shard) {
+        long[] open = BatchKernels.all(batch.size());
+        long[][] results = new long[to - from][];
+        int k = from;
+        while (k < to) {
+            if (matched != null) {
+                matched.cancel(shard, open);
+            }
+            if (BatchKernels.isEmpty(open)) {
+                break;
+            }
+            int start = k;
+            int end = getRunEnd(start, to);
+            evaluateRun(batch, zone, start, end, open, true, results);
+            for (; k < end; k++) {
+                long[] result = results[k - start];
+                if (result == null) {
+                    continue;
+                }
+                int r = m_active[k];
+                for (int w = 0; w < result.length; w++) {
+                    long bits = result[w];
+                    open[w] &= ~bits;
+                    while (bits != 0) {
+                        matches[(w << 6) + Long.numberOfTrailingZeros(bits)] =
+                                r;
+                        bits &= bits - 1;
+                    }
+                }
+                if (matched != null) {
+                    matched.publish(shard, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates all rules on all rows of a batch, without stopping at the
+     * first matching rule.
+     *
+     * @param batch a batch of rows
+     * @return the number of matches and the first match for each rule
+     */
+    MatchCounts countMatches(final RowBatch batch) {
+        final MatchCounts counts = new MatchCounts(m_rules.length);
+        Arrays.fill(counts.m_firstRows, -1);
+        if (m_tier == Tier.INTERPRETED) {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                DataRow row = batch.getRow(i);
+                for (int r : m_active) {
+                    if (m_rules[r].matches(row)) {
+                        counts.m_counts[r]++;
+                        counts.m_firstRows[r] = i;
+                    }
+                }
+            }
+            return counts;
+        }
+        final ZoneMap.Zone zone = getZone(batch);
+        Shards shards = batch.getShards();
+        if (shards == null) {
+            countMatches(batch, zone, 0, m_active.length, counts);
+        } else {
+            // the shards write the counts of different rules
+            runShards(shards, new ShardTask() {
+                public void run(final int shard, final int from,
+                        final int to) {
+                    countMatches(batch, zone, from, to, counts);
+                }
+            });
+        }
+        record(batch);
+        return counts;
+    }
+
+    /*
+     * Counts the matches of the active rules from index from to index to.
+     */
+    private void countMatches(final RowBatch batch, final ZoneMap.Zone zone,
+            final int from, final int to, final MatchCounts counts) {
+        long[] all = BatchKernels.all(batch.size());
+        long[][] results = new long[to - from][];
+        int k = from;
+        while (k < to) {
+            int start = k;
+            int end = getRunEnd(start, to);
+            evaluateRun(batch, zone, start, end, all, false, results);
+            for (; k < end; k++) {
+                long[] result = results[k - start];
+                if (result == null) {
+                    continue;
+                }
+                int first = -1;
+                int count = 0;
+                for (int w = 0; w < result.length; w++) {
+                    if ((first < 0) && (result[w] != 0)) {
+                        first = (w << 6)
+                                + Long.numberOfTrailingZeros(result[w]);
+                    }
+                    count += Long.bitCount(result[w]);
+                }
+                counts.m_counts[m_active[k]] = count;
+                counts.m_firstRows[m_active[k]] = first;
+            }
+        }
+    }
+
+    /*
+     * Returns the end of the run of active rules that starts at index from
+     * and ends at index to at the latest. A rule with a batch kernel is a run
+     * of its own; consecutive rules that need the rows form one run, which is
+     * evaluated row by row, see evaluateRun.
+     */
+    private int getRunEnd(final int from, final int to) {
+        int end = from + 1;
+        if (m_byRow[from]) {
+            while ((end < to) && m_byRow[end]) {
+                end++;
+            }
+        }
+        return end;
+    }
+
+    /*
+     * Evaluates a run of active rules, see getRunEnd, on the selected rows of
+     * a batch and writes the rows the rule at index k matches to
+     * results[k - from], null if it matches none. The rules of a run that
+     * needs the rows are all evaluated on a row before the next row is read,
+     * so that what they share on a row, e.g. the normalized string or the
+     * regular expression matches of a cell, is computed only once per row. If
+     * first is true, a row is not evaluated any more once a rule matched it.
+     */
+    private void evaluateRun(final RowBatch batch, final ZoneMap.Zone zone,
+            final int from, final int to, final long[] selection,
+            final boolean first, final long[][] results) {
+        ZoneMap.Truth[] truths = new ZoneMap.Truth[to - from];
+        for (int k = from; k < to; k++) {
+            truths[k - from] = prune(m_rules[m_active[k]], zone);
+            results[k - from] = (truths[k - from] == ZoneMap.Truth.NEVER)
+                    ? null : new long[selection.length];
+        }
+        if (!m_byRow[from]) {
+            if (truths[0] == ZoneMap.Truth.ALWAYS) {
+                System.arraycopy(selection, 0, results[0], 0,
+                        selection.length);
+            } else if (results[0] != null) {
+                m_rules[m_active[from]].matches(batch, selection,
+                        results[0]);
+            }
+            return;
+        }
+        for (int w = 0; w < selection.length; w++) {
+            long bits = selection[w];
+            while (bits != 0) {
+                long lowest = bits & -bits;
+                DataRow row = batch.getRow((w << 6)
+                        + Long.numberOfTrailingZeros(bits));
+                for (int k = 0; k < truths.length; k++) {
+                    if ((results[k] != null)
+                            && ((truths[k] == ZoneMap.Truth.ALWAYS)
+                                    || m_rules[m_active[from + k]]
+                                            .matches(row))) {
+                        results[k][w] |= lowest;
+                        if (first) {
+                            break;
+                        }
+                    }
+                }
+                bits ^= lowest;
+            }
+        }
+    }
+
+    /*
+     * Runs a task for each shard of the active rules and waits for all of
+     * them. The first shard is run by the calling thread.
+     */
+    private void runShards(final Shards shards, final ShardTask task) {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int s = 1; s < shards.m_count; s++) {
+            final int shard = s;
+            futures.add(shards.m_pool.submit(new Runnable() {
+                public void run() {
+                    task.run(shard, getShardStart(shard, shards.m_count),
+                            getShardStart(shard + 1, shards.m_count));
+                }
+            }));
+        }
+        boolean done = false;
+        try {
+            task.run(0, 0, getShardStart(1, shards.m_count));
+            for (Future<?> f : futures) {
+                getResult(f);
+            }
+            done = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while waiting for a rule shard", ex);
+        } finally {
+            if (!done) {
+                for (Future<?> f : futures) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the index of a shard's first rule in the active rules.
+     */
+    private int getShardStart(final int shard, final int nrShards) {
+        return (int)((long)shard * m_active.length / nrShards);
+    }
+
+    /*
+     * Returns the result of a task, rethrowing what the task has thrown.
+     */
+    private static <T> T getResult(final Future<T> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /*
+     * Shuts a pool down and waits until its tasks have ended, so that no task
+     * uses the engine after the scan. Running tasks are interrupted; a task
+     * that does not wait for anything ends with its batch.
+     */
+    private static void shutdown(final ExecutorService pool) {
+        pool.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Creates a pool of daemon threads.
+     */
+    private static ExecutorService newPool(final int nrThreads,
+            final String name) {
+        return Executors.newFixedThreadPool(nrThreads, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Runs a job on all rows of a table. Small tables are evaluated in the
+     * calling thread, larger ones by a pool of worker threads, one per full
+     * batch up to the maximum number of threads, that is shut down when the
+     * scan ends. If the batches cannot keep all threads busy, the spare
+     * threads evaluate shards of the rules instead: each batch is split into
+     * as many shards as there are threads per batch, as long as each shard
+     * gets at least {@link #MIN_SHARD_RULES} rules.
+     *
+     * @param it an iterator over the table's rows
+     * @param rowCount the number of rows in the table
+     * @param job the job
+     * @param <T> the type of the evaluation result
+     * @throws CanceledExecutionException if the execution has been canceled
+     * @throws InterruptedException if the thread has been interrupted while
+     *             waiting for a worker
+     */
+    <T> void scan(final RowIterator it, final int rowCount,
+            final BatchJob<T> job) throws CanceledExecutionException,
+            InterruptedException {
+        scanBatches(it, m_cache, rowCount, job);
+    }
+
+    /**
+     * Runs a job on all rows of a table without reading the table: the
+     * batches have no rows, the values of the compared columns are read from
+     * the column cache. May only be called if {@link #canScanCache()}
+     * returns <code>true</code>.
+     *
+     * @param rowCount the number of rows in the table
+     * @param job the job, it must not access the rows of the batches
+     * @param <T> the type of the evaluation result
+     * @throws CanceledExecutionException if the execution has been canceled
+     * @throws InterruptedException if the thread has been interrupted while
+     *             waiting for a worker
+     */
+    <T> void scanCache(final int rowCount, final BatchJob<T> job)
+            throws CanceledExecutionException, InterruptedException {
+        scanBatches(null, m_cache, rowCount, job);
+    }
+
+    /**
+     * Runs a job on all rows of a table that is read from a column source,
+     * e.g. a {@link ColumnarFile}: the batches read the column values from
+     * the source, and their rows are only created if a rule needs them.
+     *
+     * @param source the source of the table's columns
+     * @param rowCount the number of rows in the table
+     * @param job the job, it may only access the rows of the batches if the
+     *            source can create them
+     * @param <T> the type of the evaluation result
+     * @throws CanceledExecutionException if the execution has been canceled
+     * @throws InterruptedException if the thread has been interrupted while
+     *             waiting for a worker
+     */
+    <T> void scanSource(final ColumnSource source, final int rowCount,
+            final BatchJob<T> job) throws CanceledExecutionException,
+            InterruptedException {
+        scanBatches(null, source, rowCount, job);
+    }
+
+    /*
+     * Returns if there are more batches, from the iterator or, if it is null,
+     * from the source.
+     */
+    private static boolean hasNext(final RowIterator it, final int index,
+            final int rowCount) {
+        return (it != null) ? it.hasNext() : (index < rowCount);
+    }
+
+    /*
+     * Reads the next batch from the iterator or, if it is null, from the
+     * source.
+     */
+    private static RowBatch next(final RowIterator it,
+            final ColumnSource source, final int index, final int rowCount,
+            final Shards shards) {
+        RowBatch batch;
+        if (it == null) {
+            batch = RowBatch.fromCache(source, index,
+                    Math.min(BATCH_SIZE, rowCount - index));
+        } else {
+            batch = RowBatch.read(it, BATCH_SIZE, index);
+            batch.setCache(source);
+        }
+        batch.setShards(shards);
+        return batch;
+    }
+
+    /*
+     * Runs a job on the batches from the iterator or, if it is null, from the
+     * source.
+     */
+    private <T> void scanBatches(final RowIterator it,
+            final ColumnSource source, final int rowCount,
+            final BatchJob<T> job) throws CanceledExecutionException,
+            InterruptedException {
+        int nrThreads = Math.max(1,
+                Math.min(m_nrThreads, rowCount / BATCH_SIZE));
+        // the threads the batches leave idle evaluate shards of the rules
+        int nrShards = (m_tier == Tier.INTERPRETED) ? 1 : Math.min(
+                m_nrThreads / nrThreads, m_active.length / MIN_SHARD_RULES);
+        if (nrShards <= 1) {
+            scanBatches(it, source, rowCount, nrThreads, null, job);
+            return;
+        }
+        LOGGER.debug("Evaluating " + m_active.length + " rules in "
+                + nrShards + " shards on " + nrThreads
+                + " batches at a time");
+        ExecutorService shardPool =
+                newPool(nrThreads * (nrShards - 1), "RuleSelect shard");
+        try {
+            scanBatches(it, source, rowCount, nrThreads,
+                    new Shards(shardPool, nrShards), job);
+        } finally {
+            // the workers have ended, so no more shards are submitted
+            shutdown(shardPool);
+        }
+    }
+
+    /*
+     * Runs a job on the batches from the iterator or, if it is null, from the
+     * source, with the given number of worker threads and shards of the
+     * rules, which are null if the rules are not split.
+     */
+    private <T> void scanBatches(final RowIterator it,
+            final ColumnSource source, final int rowCount,
+            final int nrThreads, final Shards shards, final BatchJob<T> job)
+            throws CanceledExecutionException, InterruptedException {
+        int index = 0;
+        if (nrThreads <= 1) {
+            while (hasNext(it, index, rowCount)) {
+                RowBatch batch = next(it, source, index, rowCount, shards);
+                index += batch.size();
+                if (!job.consume(batch, job.evaluate(batch))) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        ExecutorService pool = newPool(nrThreads, "RuleSelect worker");
+        LinkedList<RowBatch> batches = new LinkedList<RowBatch>();
+        LinkedList<Future<T>> results = new LinkedList<Future<T>>();
+        try {
+            while (true) {
+                // keep all workers busy, but do not read too far ahead
+                while ((results.size() < 2 * nrThreads)
+                        && hasNext(it, index, rowCount)) {
+                    final RowBatch batch =
+                            next(it, source, index, rowCount, shards);
+                    index += batch.size();
+                    batches.add(batch);
+                    results.add(pool.submit(new Callable<T>() {
+                        public T call() {
+                            return job.evaluate(batch);
+                        }
+                    }));
+                }
+                if (results.isEmpty()) {
+                    return;
+                }
+
+                T result = getResult(results.removeFirst());
+                if (!job.consume(batches.removeFirst(), result)) {
+                    return;
+                }
+            }
+        } finally {
+            // after an early stop or an error, the batches read ahead are
+            // abandoned; they must not be recorded after the scan
+            for (Future<T> f : results) {
+                f.cancel(true);
+            }
+            shutdown(pool);
+        }
+    }
+}
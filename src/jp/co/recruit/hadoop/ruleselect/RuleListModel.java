@@ -0,0 +1,314 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The list model for the rules in the dialog. The rules are kept as strings
+ * and only parsed when they are needed, e.g. for editing, so that large rule
+ * sets can be loaded and saved without parsing every rule. The list can be
+ * filtered by a search string; if the search string is extended, only the
+ * rules that matched the previous search string are searched again. Every
+ * change fires an event only for the affected rows.
+ *
+ * @author Krishna
+ */
+final class RuleListModel extends AbstractListModel {
+    private final ArrayList<Entry> m_entries = new ArrayList<Entry>();
+
+    /** The entries that match the filter, <code>null</code> if unfiltered. */
+    private ArrayList<Entry> m_view;
+
+    private String m_filter = "";
+
+    /** The number of rules with each rule string. */
+    private final HashMap<String, Integer> m_texts =
+            new HashMap<String, Integer>();
+
+    /**
+     * An entry in the rule list: a rule together with the port it routes the
+     * matched rows to.
+     */
+    static final class Entry {
+        private final String m_text;
+
+        private final int m_port;
+
+        private String m_lowerText;
+
+        private RuleValidator.Result m_result;
+
+        /**
+         * The number of matches in the sample, -1 if not known yet, -2 while
+         * it is estimated or if the rule is invalid. Only used in the event
+         * dispatch thread.
+         */
+        int m_sampleMatches = -1;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param text the rule string
+         * @param port the port the rule routes to
+         */
+        Entry(final String text, final int port) {
+            m_text = text;
+            m_port = port;
+        }
+
+        /**
+         * Returns the rule string.
+         *
+         * @return the rule string
+         */
+        String getText() {
+            return m_text;
+        }
+
+        /**
+         * Returns the port the rule routes to.
+         *
+         * @return the port index
+         */
+        int getPort() {
+            return m_port;
+        }
+
+        /**
+         * Parses the rule on the first call and returns the result. A rule
+         * with a relative date window is parsed on every call, see
+         * {@link RuleValidator.Result#isReusable()}. This method may be
+         * called from any thread.
+         *
+         * @param validator the validator that parses the rule
+         * @return the result
+         */
+        synchronized RuleValidator.Result validate(
+                final RuleValidator validator) {
+            if ((m_result == null) || !m_result.isReusable()) {
+                m_result = validator.validate(m_text);
+            }
+            return m_result;
+        }
+
+        /**
+         * Returns the error message if the rule could not be parsed.
+         *
+         * @return an error message, <code>null</code> if the rule has not
+         *         been parsed yet or is valid
+         */
+        synchronized String getError() {
+            return (m_result == null) ? null : m_result.getError();
+        }
+
+        private String getLowerText() {
+            if (m_lowerText == null) {
+                m_lowerText = m_text.toLowerCase();
+            }
+            return m_lowerText;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return m_text;
+        }
+    }
+
+    /**
+     * Replaces all rules. The rules are not parsed.
+     *
+     * @param rules the rule strings
+     * @param ports the port of each rule
+     */
+    void setRules(final List<String> rules, final int[] ports) {
+        int oldSize = getSize();
+        m_entries.clear();
+        m_texts.clear();
+        m_view = null;
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        m_entries.ensureCapacity(rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            m_entries.add(new Entry(rules.get(i), ports[i]));
+            countText(rules.get(i), 1);
+        }
+        if (m_filter.length() > 0) {
+            m_view = filter(m_entries, m_filter);
+        }
+        if (getSize() > 0) {
+            fireIntervalAdded(this, 0, getSize() - 1);
+        }
+    }
+
+    /**
+     * Returns all rules, regardless of the filter.
+     *
+     * @return an unmodifiable list of all entries
+     */
+    List<Entry> getAllEntries() {
+        return Collections.unmodifiableList(m_entries);
+    }
+
+    /**
+     * Returns the shown entry at the given position.
+     *
+     * @param index the position in the (filtered) list
+     * @return the entry
+     */
+    Entry getEntry(final int index) {
+        return (m_view == null) ? m_entries.get(index) : m_view.get(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getElementAt(final int index) {
+        return getEntry(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getSize() {
+        return (m_view == null) ? m_entries.size() : m_view.size();
+    }
+
+    /**
+     * Appends a rule. If it does not match the filter, it is added but not
+     * shown.
+     *
+     * @param entry the new entry
+     */
+    void add(final Entry entry) {
+        m_entries.add(entry);
+        countText(entry.getText(), 1);
+        if (m_view == null) {
+            fireIntervalAdded(this, m_entries.size() - 1,
+                    m_entries.size() - 1);
+        } else if (entry.getLowerText().contains(m_filter)) {
+            m_view.add(entry);
+            fireIntervalAdded(this, m_view.size() - 1, m_view.size() - 1);
+        }
+    }
+
+    /**
+     * Removes a rule.
+     *
+     * @param index the position of the rule in the (filtered) list
+     */
+    void remove(final int index) {
+        Entry entry = getEntry(index);
+        if (m_view != null) {
+            m_view.remove(index);
+            m_entries.remove(indexOf(entry));
+        } else {
+            m_entries.remove(index);
+        }
+        countText(entry.getText(), -1);
+        fireIntervalRemoved(this, index, index);
+    }
+
+    /**
+     * Swaps a rule with its neighbor in the (filtered) list.
+     *
+     * @param index the position of the rule in the (filtered) list
+     * @param other the position of its neighbor
+     */
+    void swap(final int index, final int other) {
+        Entry a = getEntry(index);
+        Entry b = getEntry(other);
+        if (m_view != null) {
+            int ia = indexOf(a);
+            int ib = indexOf(b);
+            m_view.set(index, b);
+            m_view.set(other, a);
+            m_entries.set(ia, b);
+            m_entries.set(ib, a);
+        } else {
+            m_entries.set(index, b);
+            m_entries.set(other, a);
+        }
+        fireContentsChanged(this, Math.min(index, other),
+                Math.max(index, other));
+    }
+
+    /**
+     * Returns whether the list contains a rule with the given rule string,
+     * regardless of the filter.
+     *
+     * @param text a rule string
+     * @return <code>true</code> if there is such a rule
+     */
+    boolean contains(final String text) {
+        return m_texts.containsKey(text);
+    }
+
+    private void countText(final String text, final int delta) {
+        Integer count = m_texts.get(text);
+        int n = ((count == null) ? 0 : count) + delta;
+        if (n > 0) {
+            m_texts.put(text, n);
+        } else {
+            m_texts.remove(text);
+        }
+    }
+
+    /*
+     * Position of the entry in the unfiltered list, searched by identity.
+     */
+    private int indexOf(final Entry entry) {
+        for (int i = 0; i < m_entries.size(); i++) {
+            if (m_entries.get(i) == entry) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Rule is not in the list");
+    }
+
+    /**
+     * Shows only the rules that contain the search string, ignoring case.
+     *
+     * @param filter the search string, an empty string shows all rules
+     */
+    void setFilter(final String filter) {
+        String f = filter.toLowerCase();
+        if (f.equals(m_filter)) {
+            return;
+        }
+        int oldSize = getSize();
+        if (f.length() == 0) {
+            m_view = null;
+        } else if ((m_view != null) && f.startsWith(m_filter)) {
+            // a longer search string matches a subset of the current rules
+            m_view = filter(m_view, f);
+        } else {
+            m_view = filter(m_entries, f);
+        }
+        m_filter = f;
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        if (getSize() > 0) {
+            fireIntervalAdded(this, 0, getSize() - 1);
+        }
+    }
+
+    private static ArrayList<Entry> filter(final List<Entry> entries,
+            final String filter) {
+        ArrayList<Entry> result = new ArrayList<Entry>();
+        for (Entry e : entries) {
+            if (e.getLowerText().contains(filter)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+}
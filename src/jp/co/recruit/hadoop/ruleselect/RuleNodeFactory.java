@@ -1,20 +1,38 @@
 package jp.co.recruit.hadoop.ruleselect;
 
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import org.knime.base.node.rules.Rule.Operators;
+import jp.co.recruit.hadoop.ruleselect.Rule.Operators;
+
 import org.knime.base.util.WildcardMatcher;
+import org.knime.core.data.BooleanValue;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataValueComparator;
 import org.knime.core.data.DoubleValue;
 import org.knime.core.data.IntValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.date.DateAndTimeValue;
 import org.knime.base.node.rules.RuleNode;
 
 /**
- * This utility class has function to create all kinds of rule nodes.
+ * This utility class has function to create all kinds of rule nodes. The
+ * boolean operators and the comparisons of numeric and date columns with
+ * constants are {@link BatchNode}s, all other nodes are evaluated row by row
+ * also in batches. The boolean operators fold constant operands, so that a
+ * comparison that is known to be always true or false for the input table
+ * does not have to be evaluated.
  *
  * @author Thorsten Meinl, University of Konstanz
  */
@@ -23,7 +41,30 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Creates a new AND node.
+     * Returns a node that matches all rows or none.
+     *
+     * @param value <code>true</code> if the node matches all rows,
+     *            <code>false</code> if it matches none
+     * @return a constant node
+     */
+    static RuleNode constant(final boolean value) {
+        return value ? Constant.TRUE : Constant.FALSE;
+    }
+
+    /**
+     * Returns if a node is a constant with the given value.
+     *
+     * @param node a rule node
+     * @param value the value
+     * @return <code>true</code> if the node always has the value
+     */
+    static boolean isConstant(final RuleNode node, final boolean value) {
+        return node == constant(value);
+    }
+
+    /**
+     * Creates a new AND node. In batches the right node is only evaluated on
+     * the rows the left node matches.
      *
      * @param left the left node
      * @param right the right node
@@ -31,11 +72,39 @@ final class RuleNodeFactory {
      * @return a new AND node
      */
     public static RuleNode and(final RuleNode left, final RuleNode right) {
-        return new RuleNode() {
+        if (isConstant(left, false) || isConstant(right, true)) {
+            return left;
+        } else if (isConstant(right, false) || isConstant(left, true)) {
+            return right;
+        }
+        return new BatchNode() {
             public boolean evaluate(final DataRow row) {
                 return left.evaluate(row) && right.evaluate(row);
             }
 
+            public void evaluate(final RowBatch batch, final long[] selection,
+                    final long[] result) {
+                long[] l = new long[selection.length];
+                BatchKernels.evaluate(left, batch, selection, l);
+                // the right result is a subset of the left one
+                BatchKernels.evaluate(right, batch, l, result);
+            }
+
+            public void addColumns(final Map<Integer, ValueKind> columns) {
+                BatchKernels.addColumns(left, columns);
+                BatchKernels.addColumns(right, columns);
+            }
+
+            public ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+                return BatchKernels.prune(left, zone).and(
+                        BatchKernels.prune(right, zone));
+            }
+
+            public boolean needsRows() {
+                return BatchKernels.needsRows(left)
+                        || BatchKernels.needsRows(right);
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -47,7 +116,8 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Creates a new OR node.
+     * Creates a new OR node. In batches the right node is only evaluated on
+     * the rows the left node does not match.
      *
      * @param left the left node
      * @param right the right node
@@ -55,11 +125,45 @@ final class RuleNodeFactory {
      * @return a new OR node
      */
     public static RuleNode or(final RuleNode left, final RuleNode right) {
-        return new RuleNode() {
+        if (isConstant(left, true) || isConstant(right, false)) {
+            return left;
+        } else if (isConstant(right, true) || isConstant(left, false)) {
+            return right;
+        }
+        return new BatchNode() {
             public boolean evaluate(final DataRow row) {
                 return left.evaluate(row) || right.evaluate(row);
             }
 
+            public void evaluate(final RowBatch batch, final long[] selection,
+                    final long[] result) {
+                long[] l = new long[selection.length];
+                BatchKernels.evaluate(left, batch, selection, l);
+                long[] rest = new long[selection.length];
+                for (int w = 0; w < rest.length; w++) {
+                    rest[w] = selection[w] & ~l[w];
+                }
+                BatchKernels.evaluate(right, batch, rest, result);
+                for (int w = 0; w < result.length; w++) {
+                    result[w] |= l[w];
+                }
+            }
+
+            public void addColumns(final Map<Integer, ValueKind> columns) {
+                BatchKernels.addColumns(left, columns);
+                BatchKernels.addColumns(right, columns);
+            }
+
+            public ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+                return BatchKernels.prune(left, zone).or(
+                        BatchKernels.prune(right, zone));
+            }
+
+            public boolean needsRows() {
+                return BatchKernels.needsRows(left)
+                        || BatchKernels.needsRows(right);
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -79,11 +183,45 @@ final class RuleNodeFactory {
      * @return a new XOR node
      */
     public static RuleNode xor(final RuleNode left, final RuleNode right) {
-        return new RuleNode() {
+        if (isConstant(left, false)) {
+            return right;
+        } else if (isConstant(right, false)) {
+            return left;
+        } else if (isConstant(left, true)) {
+            return not(right);
+        } else if (isConstant(right, true)) {
+            return not(left);
+        }
+        return new BatchNode() {
             public boolean evaluate(final DataRow row) {
                 return left.evaluate(row) ^ right.evaluate(row);
             }
 
+            public void evaluate(final RowBatch batch, final long[] selection,
+                    final long[] result) {
+                long[] l = new long[selection.length];
+                BatchKernels.evaluate(left, batch, selection, l);
+                BatchKernels.evaluate(right, batch, selection, result);
+                for (int w = 0; w < result.length; w++) {
+                    result[w] ^= l[w];
+                }
+            }
+
+            public void addColumns(final Map<Integer, ValueKind> columns) {
+                BatchKernels.addColumns(left, columns);
+                BatchKernels.addColumns(right, columns);
+            }
+
+            public ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+                return BatchKernels.prune(left, zone).xor(
+                        BatchKernels.prune(right, zone));
+            }
+
+            public boolean needsRows() {
+                return BatchKernels.needsRows(left)
+                        || BatchKernels.needsRows(right);
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -102,11 +240,36 @@ final class RuleNodeFactory {
      * @return a new NOT node
      */
     public static RuleNode not(final RuleNode node) {
-        return new RuleNode() {
+        if (isConstant(node, true)) {
+            return constant(false);
+        } else if (isConstant(node, false)) {
+            return constant(true);
+        }
+        return new BatchNode() {
             public boolean evaluate(final DataRow row) {
                 return !node.evaluate(row);
             }
 
+            public void evaluate(final RowBatch batch, final long[] selection,
+                    final long[] result) {
+                BatchKernels.evaluate(node, batch, selection, result);
+                for (int w = 0; w < result.length; w++) {
+                    result[w] = selection[w] & ~result[w];
+                }
+            }
+
+            public void addColumns(final Map<Integer, ValueKind> columns) {
+                BatchKernels.addColumns(node, columns);
+            }
+
+            public ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+                return BatchKernels.prune(node, zone).not();
+            }
+
+            public boolean needsRows() {
+                return BatchKernels.needsRows(node);
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -118,32 +281,72 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Creates a new greater than node, that compares the values in two columns.
+     * Creates a new greater than node, that compares the values in two
+     * columns. Numeric columns are compared as primitives and string columns
+     * by their string values, only for all other columns the comparator is
+     * used.
      *
      * @param leftCol the left column's index
+     * @param leftKind the kind of the left column's values
      * @param rightCol the right column's index
+     * @param rightKind the kind of the right column's values
      * @param comp the comparator that should be used for comparing the two
-     *            columns
+     *            columns if they are neither numeric nor strings
      *
      * @return a new greater than node
      */
-    public static RuleNode gt(final int leftCol, final int rightCol,
+    public static RuleNode gt(final int leftCol, final ValueKind leftKind,
+            final int rightCol, final ValueKind rightKind,
             final DataValueComparator comp) {
-        return new RuleNode() {
-            public boolean evaluate(final DataRow row) {
-                return comp
-                        .compare(row.getCell(leftCol), row.getCell(rightCol)) > 0;
-            }
+        switch (ValueKind.common(leftKind, rightKind)) {
+            case INT:
+                return new IntPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GT) {
+                    @Override
+                    boolean test(final int a, final int b) {
+                        return a > b;
+                    }
+                };
+            case LONG:
+                return new LongPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GT) {
+                    @Override
+                    boolean test(final long a, final long b) {
+                        return a > b;
+                    }
+                };
+            case DOUBLE:
+                return new DoublePair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GT) {
+                    @Override
+                    boolean test(final double a, final double b) {
+                        return a > b;
+                    }
+                };
+            case STRING:
+                return new StringPair(leftCol, rightCol, Operators.GT) {
+                    @Override
+                    boolean test(final String a, final String b) {
+                        return a.compareTo(b) > 0;
+                    }
+                };
+            default:
+                return new RuleNode() {
+                    public boolean evaluate(final DataRow row) {
+                        return comp.compare(row.getCell(leftCol),
+                                row.getCell(rightCol)) > 0;
+                    }
 
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public String toString() {
-                return "$" + leftCol + "$ " + Operators.GT + " $" + rightCol
-                        + "$";
-            }
-        };
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public String toString() {
+                        return "$" + leftCol + "$ " + Operators.GT + " $"
+                                + rightCol + "$";
+                    }
+                };
+        }
     }
 
     /**
@@ -151,47 +354,39 @@ final class RuleNodeFactory {
      * fixed number.
      *
      * @param col the left column's index
-     * @param value the fixed number on the right side
+     * @param kind the kind of the column's values
+     * @param value the fixed number on the right side, already widened
+     *            to the column's kind
      *
      * @return a new greater than node
      */
-    public static RuleNode gt(final int col, final Number value) {
-        if (value instanceof Integer) {
+    public static RuleNode gt(final int col, final ValueKind kind,
+            final Number value) {
+        if (kind == ValueKind.BOOLEAN) {
+            final double v = value.doubleValue();
+            return new BooleanLeaf(col, Operators.GT, value, 1 > v, 0 > v);
+        } else if (value instanceof Integer) {
             final int v = value.intValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((IntValue)c).getIntValue() > v;
+            return new IntLeaf(col, Operators.GT, value) {
+                @Override
+                boolean test(final int x) {
+                    return x > v;
                 }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            };
+        } else if (value instanceof Long) {
+            final long v = value.longValue();
+            return new LongLeaf(col, Operators.GT, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.GT + " " + value;
+                boolean test(final long x) {
+                    return x > v;
                 }
             };
         } else {
             final double v = value.doubleValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((DoubleValue)c).getDoubleValue() > v;
-                }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            return new DoubleLeaf(col, kind, Operators.GT, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.GT + " " + value;
+                boolean test(final double x) {
+                    return x > v;
                 }
             };
         }
@@ -228,32 +423,71 @@ final class RuleNodeFactory {
 
     /**
      * Creates a new greater than or equal node, that compares the values in two
-     * columns.
+     * columns. Numeric columns are compared as primitives and string columns
+     * by their string values, only for all other columns the comparator is
+     * used.
      *
      * @param leftCol the left column's index
+     * @param leftKind the kind of the left column's values
      * @param rightCol the right column's index
+     * @param rightKind the kind of the right column's values
      * @param comp the comparator that should be used for comparing the two
-     *            columns
+     *            columns if they are neither numeric nor strings
      *
      * @return a new greater than or equal node
      */
-    public static RuleNode ge(final int leftCol, final int rightCol,
+    public static RuleNode ge(final int leftCol, final ValueKind leftKind,
+            final int rightCol, final ValueKind rightKind,
             final DataValueComparator comp) {
-        return new RuleNode() {
-            public boolean evaluate(final DataRow row) {
-                return comp
-                        .compare(row.getCell(leftCol), row.getCell(rightCol)) >= 0;
-            }
+        switch (ValueKind.common(leftKind, rightKind)) {
+            case INT:
+                return new IntPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GE) {
+                    @Override
+                    boolean test(final int a, final int b) {
+                        return a >= b;
+                    }
+                };
+            case LONG:
+                return new LongPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GE) {
+                    @Override
+                    boolean test(final long a, final long b) {
+                        return a >= b;
+                    }
+                };
+            case DOUBLE:
+                return new DoublePair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.GE) {
+                    @Override
+                    boolean test(final double a, final double b) {
+                        return a >= b;
+                    }
+                };
+            case STRING:
+                return new StringPair(leftCol, rightCol, Operators.GE) {
+                    @Override
+                    boolean test(final String a, final String b) {
+                        return a.compareTo(b) >= 0;
+                    }
+                };
+            default:
+                return new RuleNode() {
+                    public boolean evaluate(final DataRow row) {
+                        return comp.compare(row.getCell(leftCol),
+                                row.getCell(rightCol)) >= 0;
+                    }
 
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public String toString() {
-                return "$" + leftCol + "$ " + Operators.GE + " $" + rightCol
-                        + "$";
-            }
-        };
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public String toString() {
+                        return "$" + leftCol + "$ " + Operators.GE + " $"
+                                + rightCol + "$";
+                    }
+                };
+        }
     }
 
     /**
@@ -261,47 +495,39 @@ final class RuleNodeFactory {
      * column to a fixed number.
      *
      * @param col the left column's index
-     * @param value the fixed number on the right side
+     * @param kind the kind of the column's values
+     * @param value the fixed number on the right side, already widened
+     *            to the column's kind
      *
      * @return a new greater than or equal node
      */
-    public static RuleNode ge(final int col, final Number value) {
-        if (value instanceof Integer) {
+    public static RuleNode ge(final int col, final ValueKind kind,
+            final Number value) {
+        if (kind == ValueKind.BOOLEAN) {
+            final double v = value.doubleValue();
+            return new BooleanLeaf(col, Operators.GE, value, 1 >= v, 0 >= v);
+        } else if (value instanceof Integer) {
             final int v = value.intValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((IntValue)c).getIntValue() >= v;
+            return new IntLeaf(col, Operators.GE, value) {
+                @Override
+                boolean test(final int x) {
+                    return x >= v;
                 }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            };
+        } else if (value instanceof Long) {
+            final long v = value.longValue();
+            return new LongLeaf(col, Operators.GE, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.GE + " " + value;
+                boolean test(final long x) {
+                    return x >= v;
                 }
             };
         } else {
             final double v = value.doubleValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((DoubleValue)c).getDoubleValue() >= v;
-                }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            return new DoubleLeaf(col, kind, Operators.GE, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.GE + " " + value;
+                boolean test(final double x) {
+                    return x >= v;
                 }
             };
         }
@@ -337,32 +563,72 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Creates a new less than node, that compares the values in two columns.
+     * Creates a new less than node, that compares the values in two
+     * columns. Numeric columns are compared as primitives and string columns
+     * by their string values, only for all other columns the comparator is
+     * used.
      *
      * @param leftCol the left column's index
+     * @param leftKind the kind of the left column's values
      * @param rightCol the right column's index
+     * @param rightKind the kind of the right column's values
      * @param comp the comparator that should be used for comparing the two
-     *            columns
+     *            columns if they are neither numeric nor strings
      *
      * @return a new less than node
      */
-    public static RuleNode lt(final int leftCol, final int rightCol,
+    public static RuleNode lt(final int leftCol, final ValueKind leftKind,
+            final int rightCol, final ValueKind rightKind,
             final DataValueComparator comp) {
-        return new RuleNode() {
-            public boolean evaluate(final DataRow row) {
-                return comp
-                        .compare(row.getCell(leftCol), row.getCell(rightCol)) < 0;
-            }
+        switch (ValueKind.common(leftKind, rightKind)) {
+            case INT:
+                return new IntPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LT) {
+                    @Override
+                    boolean test(final int a, final int b) {
+                        return a < b;
+                    }
+                };
+            case LONG:
+                return new LongPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LT) {
+                    @Override
+                    boolean test(final long a, final long b) {
+                        return a < b;
+                    }
+                };
+            case DOUBLE:
+                return new DoublePair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LT) {
+                    @Override
+                    boolean test(final double a, final double b) {
+                        return a < b;
+                    }
+                };
+            case STRING:
+                return new StringPair(leftCol, rightCol, Operators.LT) {
+                    @Override
+                    boolean test(final String a, final String b) {
+                        return a.compareTo(b) < 0;
+                    }
+                };
+            default:
+                return new RuleNode() {
+                    public boolean evaluate(final DataRow row) {
+                        return comp.compare(row.getCell(leftCol),
+                                row.getCell(rightCol)) < 0;
+                    }
 
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public String toString() {
-                return "$" + leftCol + "$ " + Operators.LT + " $" + rightCol
-                        + "$";
-            }
-        };
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public String toString() {
+                        return "$" + leftCol + "$ " + Operators.LT + " $"
+                                + rightCol + "$";
+                    }
+                };
+        }
     }
 
     /**
@@ -370,48 +636,39 @@ final class RuleNodeFactory {
      * fixed number.
      *
      * @param col the left column's index
-     * @param value the fixed number on the right side
+     * @param kind the kind of the column's values
+     * @param value the fixed number on the right side, already widened
+     *            to the column's kind
      *
      * @return a new less than node
      */
-    public static RuleNode lt(final int col, final Number value) {
-        if (value instanceof Integer) {
+    public static RuleNode lt(final int col, final ValueKind kind,
+            final Number value) {
+        if (kind == ValueKind.BOOLEAN) {
+            final double v = value.doubleValue();
+            return new BooleanLeaf(col, Operators.LT, value, 1 < v, 0 < v);
+        } else if (value instanceof Integer) {
             final int v = value.intValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((IntValue)c).getIntValue() < v;
+            return new IntLeaf(col, Operators.LT, value) {
+                @Override
+                boolean test(final int x) {
+                    return x < v;
                 }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            };
+        } else if (value instanceof Long) {
+            final long v = value.longValue();
+            return new LongLeaf(col, Operators.LT, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.LT + " " + value;
+                boolean test(final long x) {
+                    return x < v;
                 }
-
             };
         } else {
             final double v = value.doubleValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((DoubleValue)c).getDoubleValue() < v;
-                }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            return new DoubleLeaf(col, kind, Operators.LT, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.LT + " " + value;
+                boolean test(final double x) {
+                    return x < v;
                 }
             };
         }
@@ -448,32 +705,71 @@ final class RuleNodeFactory {
 
     /**
      * Creates a new less than or equal node, that compares the values in two
-     * columns.
+     * columns. Numeric columns are compared as primitives and string columns
+     * by their string values, only for all other columns the comparator is
+     * used.
      *
      * @param leftCol the left column's index
+     * @param leftKind the kind of the left column's values
      * @param rightCol the right column's index
+     * @param rightKind the kind of the right column's values
      * @param comp the comparator that should be used for comparing the two
-     *            columns
+     *            columns if they are neither numeric nor strings
      *
      * @return a new less than or equal node
      */
-    public static RuleNode le(final int leftCol, final int rightCol,
+    public static RuleNode le(final int leftCol, final ValueKind leftKind,
+            final int rightCol, final ValueKind rightKind,
             final DataValueComparator comp) {
-        return new RuleNode() {
-            public boolean evaluate(final DataRow row) {
-                return comp
-                        .compare(row.getCell(leftCol), row.getCell(rightCol)) <= 0;
-            }
+        switch (ValueKind.common(leftKind, rightKind)) {
+            case INT:
+                return new IntPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LE) {
+                    @Override
+                    boolean test(final int a, final int b) {
+                        return a <= b;
+                    }
+                };
+            case LONG:
+                return new LongPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LE) {
+                    @Override
+                    boolean test(final long a, final long b) {
+                        return a <= b;
+                    }
+                };
+            case DOUBLE:
+                return new DoublePair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.LE) {
+                    @Override
+                    boolean test(final double a, final double b) {
+                        return a <= b;
+                    }
+                };
+            case STRING:
+                return new StringPair(leftCol, rightCol, Operators.LE) {
+                    @Override
+                    boolean test(final String a, final String b) {
+                        return a.compareTo(b) <= 0;
+                    }
+                };
+            default:
+                return new RuleNode() {
+                    public boolean evaluate(final DataRow row) {
+                        return comp.compare(row.getCell(leftCol),
+                                row.getCell(rightCol)) <= 0;
+                    }
 
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public String toString() {
-                return "$" + leftCol + "$ " + Operators.LE + " $" + rightCol
-                        + "$";
-            }
-        };
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public String toString() {
+                        return "$" + leftCol + "$ " + Operators.LE + " $"
+                                + rightCol + "$";
+                    }
+                };
+        }
     }
 
     /**
@@ -481,47 +777,39 @@ final class RuleNodeFactory {
      * column to a fixed number.
      *
      * @param col the left column's index
-     * @param value the fixed number on the right side
+     * @param kind the kind of the column's values
+     * @param value the fixed number on the right side, already widened
+     *            to the column's kind
      *
-     * @return a new greater than node
+     * @return a new less than or equal node
      */
-    public static RuleNode le(final int col, final Number value) {
-        if (value instanceof Integer) {
+    public static RuleNode le(final int col, final ValueKind kind,
+            final Number value) {
+        if (kind == ValueKind.BOOLEAN) {
+            final double v = value.doubleValue();
+            return new BooleanLeaf(col, Operators.LE, value, 1 <= v, 0 <= v);
+        } else if (value instanceof Integer) {
             final int v = value.intValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((IntValue)c).getIntValue() <= v;
+            return new IntLeaf(col, Operators.LE, value) {
+                @Override
+                boolean test(final int x) {
+                    return x <= v;
                 }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            };
+        } else if (value instanceof Long) {
+            final long v = value.longValue();
+            return new LongLeaf(col, Operators.LE, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.LE + " " + value;
+                boolean test(final long x) {
+                    return x <= v;
                 }
             };
         } else {
             final double v = value.doubleValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((DoubleValue)c).getDoubleValue() <= v;
-                }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            return new DoubleLeaf(col, kind, Operators.LE, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.LE + " " + value;
+                boolean test(final double x) {
+                    return x <= v;
                 }
             };
         }
@@ -557,28 +845,68 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Creates a equal node, that compares the values in two columns.
+     * Creates a equal node, that compares the values in two columns. Numeric
+     * columns are compared as primitives and string columns by their string
+     * values, all other columns are compared with {@link DataCell#equals}.
      *
      * @param leftCol the left column's index
+     * @param leftKind the kind of the left column's values
      * @param rightCol the right column's index
+     * @param rightKind the kind of the right column's values
      *
      * @return a new equal node
      */
-    public static RuleNode eq(final int leftCol, final int rightCol) {
-        return new RuleNode() {
-            public boolean evaluate(final DataRow row) {
-                return row.getCell(leftCol).equals(row.getCell(rightCol));
-            }
+    public static RuleNode eq(final int leftCol, final ValueKind leftKind,
+            final int rightCol, final ValueKind rightKind) {
+        switch (ValueKind.common(leftKind, rightKind)) {
+            case INT:
+                return new IntPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.EQ) {
+                    @Override
+                    boolean test(final int a, final int b) {
+                        return a == b;
+                    }
+                };
+            case LONG:
+                return new LongPair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.EQ) {
+                    @Override
+                    boolean test(final long a, final long b) {
+                        return a == b;
+                    }
+                };
+            case DOUBLE:
+                return new DoublePair(leftCol, leftKind, rightCol, rightKind,
+                        Operators.EQ) {
+                    @Override
+                    boolean test(final double a, final double b) {
+                        return a == b;
+                    }
+                };
+            case STRING:
+                return new StringPair(leftCol, rightCol, Operators.EQ) {
+                    @Override
+                    boolean test(final String a, final String b) {
+                        return a.equals(b);
+                    }
+                };
+            default:
+                return new RuleNode() {
+                    public boolean evaluate(final DataRow row) {
+                        return row.getCell(leftCol).equals(
+                                row.getCell(rightCol));
+                    }
 
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public String toString() {
-                return "$" + leftCol + "$ " + Operators.EQ + " $" + rightCol
-                        + "$";
-            }
-        };
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public String toString() {
+                        return "$" + leftCol + "$ " + Operators.EQ + " $"
+                                + rightCol + "$";
+                    }
+                };
+        }
     }
 
     /**
@@ -586,47 +914,39 @@ final class RuleNodeFactory {
      * number.
      *
      * @param col the left column's index
-     * @param value the fixed number on the right side
+     * @param kind the kind of the column's values
+     * @param value the fixed number on the right side, already widened
+     *            to the column's kind
      *
      * @return a new equal node
      */
-    public static RuleNode eq(final int col, final Number value) {
-        if (value instanceof Integer) {
+    public static RuleNode eq(final int col, final ValueKind kind,
+            final Number value) {
+        if (kind == ValueKind.BOOLEAN) {
+            final double v = value.doubleValue();
+            return new BooleanLeaf(col, Operators.EQ, value, 1 == v, 0 == v);
+        } else if (value instanceof Integer) {
             final int v = value.intValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((IntValue)c).getIntValue() == v;
+            return new IntLeaf(col, Operators.EQ, value) {
+                @Override
+                boolean test(final int x) {
+                    return x == v;
                 }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            };
+        } else if (value instanceof Long) {
+            final long v = value.longValue();
+            return new LongLeaf(col, Operators.EQ, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.EQ + " " + value;
+                boolean test(final long x) {
+                    return x == v;
                 }
             };
         } else {
             final double v = value.doubleValue();
-            return new RuleNode() {
-                public boolean evaluate(final DataRow row) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        return false;
-                    }
-                    return ((DoubleValue)c).getDoubleValue() == v;
-                }
-
-                /**
-                 * {@inheritDoc}
-                 */
+            return new DoubleLeaf(col, kind, Operators.EQ, value) {
                 @Override
-                public String toString() {
-                    return "$" + col + "$ " + Operators.EQ + " " + value;
+                boolean test(final double x) {
+                    return x == v;
                 }
             };
         }
@@ -763,31 +1083,25 @@ final class RuleNodeFactory {
     }
 
     /**
-     * Returns a new in node that checks if the the value in the column is equal
-     * to at least one string value from the list.
+     * Returns a new node that checks if the value in the column is equal to
+     * the given string, ignoring case. The string is normalized once here,
+     * the cell values by the column's normalizer.
      *
-     * @param col the left column's index
-     * @param list a list of strings
-     * @return a new in node
+     * @param col the column's index
+     * @param normalizer the column's normalizer
+     * @param value a string
+     * @return a new case-insensitive equal node
      */
-    public static RuleNode in(final int col, final List<String> list) {
-        final String[] temp = list.toArray(new String[list.size()]);
-
+    public static RuleNode ieq(final int col,
+            final StringNormalizer normalizer, final String value) {
+        final String normalized = StringNormalizer.normalize(value);
         return new RuleNode() {
-
             public boolean evaluate(final DataRow row) {
-                for (String s : temp) {
-                    DataCell c = row.getCell(col);
-                    if (c.isMissing()) {
-                        continue;
-                    }
-
-                    if (c.toString().equals(s)) {
-                        return true;
-                    }
+                DataCell c = row.getCell(col);
+                if (c.isMissing()) {
+                    return false;
                 }
-
-                return false;
+                return normalizer.normalize(c).equals(normalized);
             }
 
             /**
@@ -795,23 +1109,34 @@ final class RuleNodeFactory {
              */
             @Override
             public String toString() {
-                return "$" + col + "$ " + Operators.IN + " "
-                        + Arrays.toString(temp);
+                return "$" + col + "$ " + Operators.IEQ + " \"" + value
+                        + "\"";
             }
         };
     }
 
     /**
-     * Creates a new MISSING node.
-     *
-     * @param col the column int the row to be checked
+     * Returns a new node that checks if the values in two columns are equal,
+     * ignoring case.
      *
-     * @return a new MISSING node
+     * @param leftCol the left column's index
+     * @param leftNormalizer the left column's normalizer
+     * @param rightCol the right column's index
+     * @param rightNormalizer the right column's normalizer
+     * @return a new case-insensitive equal node
      */
-    public static RuleNode missing(final int col) {
+    public static RuleNode ieq(final int leftCol,
+            final StringNormalizer leftNormalizer, final int rightCol,
+            final StringNormalizer rightNormalizer) {
         return new RuleNode() {
             public boolean evaluate(final DataRow row) {
-                return row.getCell(col).isMissing();
+                DataCell l = row.getCell(leftCol);
+                DataCell r = row.getCell(rightCol);
+                if (l.isMissing() || r.isMissing()) {
+                    return false;
+                }
+                return leftNormalizer.normalize(l).equals(
+                        rightNormalizer.normalize(r));
             }
 
             /**
@@ -819,8 +1144,909 @@ final class RuleNodeFactory {
              */
             @Override
             public String toString() {
-                return Operators.MISSING + " $" + col + "$";
+                return "$" + leftCol + "$ " + Operators.IEQ + " $" + rightCol
+                        + "$";
             }
         };
     }
+
+    /**
+     * Returns a new node that checks if the value in the column matches the
+     * given wildcard pattern, ignoring case.
+     *
+     * @param col the column's index
+     * @param normalizer the column's normalizer
+     * @param value a wildcard pattern
+     * @return a new case-insensitive like node
+     */
+    public static RuleNode ilike(final int col,
+            final StringNormalizer normalizer, final String value) {
+        String regex = WildcardMatcher.wildcardToRegex(
+                StringNormalizer.normalize(value));
+        final Pattern p = Pattern.compile(regex);
+
+        return new RuleNode() {
+            public boolean evaluate(final DataRow row) {
+                DataCell c = row.getCell(col);
+                if (c.isMissing()) {
+                    return false;
+                }
+                return p.matcher(normalizer.normalize(c)).matches();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return "$" + col + "$ " + Operators.ILIKE + " \"" + value
+                        + "\"";
+            }
+        };
+    }
+
+    /**
+     * Returns a new node that checks if the value in the column is equal to
+     * at least one string from the list, ignoring case.
+     *
+     * @param col the column's index
+     * @param normalizer the column's normalizer
+     * @param list a list of strings
+     * @return a new case-insensitive in node
+     */
+    public static RuleNode iin(final int col,
+            final StringNormalizer normalizer, final List<String> list) {
+        final Set<String> values = new HashSet<String>();
+        for (String s : list) {
+            values.add(StringNormalizer.normalize(s));
+        }
+
+        return new RuleNode() {
+            public boolean evaluate(final DataRow row) {
+                DataCell c = row.getCell(col);
+                if (c.isMissing()) {
+                    return false;
+                }
+                return values.contains(normalizer.normalize(c));
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return "$" + col + "$ " + Operators.IIN + " " + list;
+            }
+        };
+    }
+
+    /**
+     * Returns a new matches node that checks if the value in the column
+     * matches a regular expression.
+     *
+     * @param col the column's index
+     * @param automaton the automaton for the column that contains the
+     *            expression
+     * @param pattern the index of the expression in the automaton
+     * @param regex the expression
+     * @return a new matches node
+     */
+    public static RuleNode matches(final int col,
+            final RegexAutomaton automaton, final int pattern,
+            final String regex) {
+        return new RuleNode() {
+            public boolean evaluate(final DataRow row) {
+                DataCell c = row.getCell(col);
+                if (c.isMissing()) {
+                    return false;
+                }
+                return automaton.matches(c, pattern);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return "$" + col + "$ " + Operators.MATCHES + " \"" + regex
+                        + "\"";
+            }
+        };
+    }
+
+    /**
+     * Returns a new in node that checks if the the value in the column is equal
+     * to at least one string value from the list.
+     *
+     * @param col the left column's index
+     * @param list a list of strings
+     * @return a new in node
+     */
+    public static RuleNode in(final int col, final List<String> list) {
+        final String[] temp = list.toArray(new String[list.size()]);
+
+        return new RuleNode() {
+
+            public boolean evaluate(final DataRow row) {
+                for (String s : temp) {
+                    DataCell c = row.getCell(col);
+                    if (c.isMissing()) {
+                        continue;
+                    }
+
+                    if (c.toString().equals(s)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return "$" + col + "$ " + Operators.IN + " "
+                        + Arrays.toString(temp);
+            }
+        };
+    }
+
+    /**
+     * Creates a new greater than node, that compares the value in a date
+     * column to a fixed date.
+     *
+     * @param col the left column's index
+     * @param value the fixed date on the right side
+     *
+     * @return a new greater than node
+     */
+    public static RuleNode gt(final int col, final Date value) {
+        final long v = value.getTime();
+        return new DateLeaf(col, Operators.GT, value) {
+            @Override
+            boolean test(final long x) {
+                return x > v;
+            }
+        };
+    }
+
+    /**
+     * Creates a new greater than or equal node, that compares the value in a
+     * date column to a fixed date.
+     *
+     * @param col the left column's index
+     * @param value the fixed date on the right side
+     *
+     * @return a new greater than or equal node
+     */
+    public static RuleNode ge(final int col, final Date value) {
+        final long v = value.getTime();
+        return new DateLeaf(col, Operators.GE, value) {
+            @Override
+            boolean test(final long x) {
+                return x >= v;
+            }
+        };
+    }
+
+    /**
+     * Creates a new lower than node, that compares the value in a date column
+     * to a fixed date.
+     *
+     * @param col the left column's index
+     * @param value the fixed date on the right side
+     *
+     * @return a new lower than node
+     */
+    public static RuleNode lt(final int col, final Date value) {
+        final long v = value.getTime();
+        return new DateLeaf(col, Operators.LT, value) {
+            @Override
+            boolean test(final long x) {
+                return x < v;
+            }
+        };
+    }
+
+    /**
+     * Creates a new lower than or equal node, that compares the value in a
+     * date column to a fixed date.
+     *
+     * @param col the left column's index
+     * @param value the fixed date on the right side
+     *
+     * @return a new lower than or equal node
+     */
+    public static RuleNode le(final int col, final Date value) {
+        final long v = value.getTime();
+        return new DateLeaf(col, Operators.LE, value) {
+            @Override
+            boolean test(final long x) {
+                return x <= v;
+            }
+        };
+    }
+
+    /**
+     * Creates a new equal node, that compares the value in a date column to a
+     * fixed date.
+     *
+     * @param col the left column's index
+     * @param value the fixed date on the right side
+     *
+     * @return a new equal node
+     */
+    public static RuleNode eq(final int col, final Date value) {
+        final long v = value.getTime();
+        return new DateLeaf(col, Operators.EQ, value) {
+            @Override
+            boolean test(final long x) {
+                return x == v;
+            }
+        };
+    }
+
+    /**
+     * Creates a new between node, that checks if the value in a date column
+     * lies between two fixed dates (both inclusive).
+     *
+     * @param col the column's index
+     * @param from the first date
+     * @param to the last date
+     *
+     * @return a new between node
+     */
+    public static RuleNode between(final int col, final Date from,
+            final Date to) {
+        final long f = from.getTime();
+        final long t = to.getTime();
+        return new DateLeaf(col, Operators.BETWEEN, from, f, t) {
+            @Override
+            boolean test(final long x) {
+                return (x >= f) && (x <= t);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return super.toString() + " " + Operators.AND + " "
+                        + formatDate(to);
+            }
+        };
+    }
+
+    /**
+     * Creates a new node that checks if the value in a date column lies in a
+     * window that ends at the given time, e.g. in the last 30 days. The window
+     * is fixed when the node is created, so that all rows are compared to the
+     * same bounds.
+     *
+     * @param col the column's index
+     * @param amount the length of the window
+     * @param unit the unit of the window's length
+     * @param now the end of the window in milliseconds since the epoch
+     *
+     * @return a new node
+     */
+    public static RuleNode inLast(final int col, final long amount,
+            final TimeUnit unit, final long now) {
+        final long f = now - unit.toMillis(amount);
+        return new DateLeaf(col, Operators.IN, null, f, now) {
+            @Override
+            boolean test(final long x) {
+                return (x >= f) && (x <= now);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return "$" + col + "$ " + Operators.IN + " LAST " + amount
+                        + " " + unit;
+            }
+        };
+    }
+
+    /**
+     * Formats a date as a date literal, as it is parsed by {@link Rule}.
+     *
+     * @param date a date
+     * @return the literal
+     */
+    static String formatDate(final Date date) {
+        SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return "DATE \"" + format.format(date) + "\"";
+    }
+
+    /**
+     * Creates a new MISSING node.
+     *
+     * @param col the column int the row to be checked
+     *
+     * @return a new MISSING node
+     */
+    public static RuleNode missing(final int col) {
+        return new RuleNode() {
+            public boolean evaluate(final DataRow row) {
+                return row.getCell(col).isMissing();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return Operators.MISSING + " $" + col + "$";
+            }
+        };
+    }
+
+    /**
+     * Node that matches all rows or none. There is only one node for each
+     * value, see {@link RuleNodeFactory#constant(boolean)}.
+     */
+    private static final class Constant implements BatchNode {
+        static final Constant TRUE = new Constant(true);
+
+        static final Constant FALSE = new Constant(false);
+
+        private final boolean m_value;
+
+        private Constant(final boolean value) {
+            m_value = value;
+        }
+
+        public boolean evaluate(final DataRow row) {
+            return m_value;
+        }
+
+        public void evaluate(final RowBatch batch, final long[] selection,
+                final long[] result) {
+            for (int w = 0; w < result.length; w++) {
+                result[w] = m_value ? selection[w] : 0;
+            }
+        }
+
+        public void addColumns(final Map<Integer, ValueKind> columns) {
+            // no column is used
+        }
+
+        public ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+            return m_value ? ZoneMap.Truth.ALWAYS : ZoneMap.Truth.NEVER;
+        }
+
+        public boolean needsRows() {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return m_value ? "TRUE" : "FALSE";
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the value of an int column to a
+     * constant. The missing value check and the access to the primitive value
+     * are done here once, subclasses only compare primitives.
+     */
+    private abstract static class IntLeaf implements BatchNode {
+        private final int m_col;
+
+        private final Operators m_op;
+
+        private final Number m_value;
+
+        IntLeaf(final int col, final Operators op, final Number value) {
+            m_col = col;
+            m_op = op;
+            m_value = value;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell c = row.getCell(m_col);
+            return !c.isMissing() && test(((IntValue)c).getIntValue());
+        }
+
+        public final void evaluate(final RowBatch batch,
+                final long[] selection, final long[] result) {
+            BatchKernels.compare(m_op, batch.getLongs(m_col, ValueKind.INT),
+                    batch.size(), m_value.intValue(), result);
+            BatchKernels.restrict(result, batch.getMissing(m_col), selection);
+        }
+
+        public final void addColumns(final Map<Integer, ValueKind> columns) {
+            columns.put(m_col, ValueKind.INT);
+        }
+
+        public final ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+            return zone.compare(m_col, m_op, m_value.longValue());
+        }
+
+        public final boolean needsRows() {
+            return false;
+        }
+
+        /**
+         * Compares the column's value to the constant.
+         *
+         * @param x the column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(int x);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_col + "$ " + m_op + " " + m_value;
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the value of a long column to a
+     * constant.
+     */
+    private abstract static class LongLeaf implements BatchNode {
+        private final int m_col;
+
+        private final Operators m_op;
+
+        private final Number m_value;
+
+        LongLeaf(final int col, final Operators op, final Number value) {
+            m_col = col;
+            m_op = op;
+            m_value = value;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell c = row.getCell(m_col);
+            return !c.isMissing() && test(((LongValue)c).getLongValue());
+        }
+
+        public final void evaluate(final RowBatch batch,
+                final long[] selection, final long[] result) {
+            BatchKernels.compare(m_op, batch.getLongs(m_col, ValueKind.LONG),
+                    batch.size(), m_value.longValue(), result);
+            BatchKernels.restrict(result, batch.getMissing(m_col), selection);
+        }
+
+        public final void addColumns(final Map<Integer, ValueKind> columns) {
+            columns.put(m_col, ValueKind.LONG);
+        }
+
+        public final ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+            return zone.compare(m_col, m_op, m_value.longValue());
+        }
+
+        public final boolean needsRows() {
+            return false;
+        }
+
+        /**
+         * Compares the column's value to the constant.
+         *
+         * @param x the column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(long x);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_col + "$ " + m_op + " " + m_value;
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the value of a numeric column to a
+     * double constant.
+     */
+    private abstract static class DoubleLeaf implements BatchNode {
+        private final int m_col;
+
+        /** The kind of the column, which need not be a double column. */
+        private final ValueKind m_kind;
+
+        private final Operators m_op;
+
+        private final Number m_value;
+
+        DoubleLeaf(final int col, final ValueKind kind, final Operators op,
+                final Number value) {
+            m_col = col;
+            m_kind = kind;
+            m_op = op;
+            m_value = value;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell c = row.getCell(m_col);
+            return !c.isMissing() && test(((DoubleValue)c).getDoubleValue());
+        }
+
+        public final void evaluate(final RowBatch batch,
+                final long[] selection, final long[] result) {
+            BatchKernels.compare(m_op, batch.getDoubles(m_col), batch.size(),
+                    m_value.doubleValue(), result);
+            BatchKernels.restrict(result, batch.getMissing(m_col), selection);
+        }
+
+        public final void addColumns(final Map<Integer, ValueKind> columns) {
+            // the statistics are kept in the column's own representation, as
+            // for the int and long nodes on the same column; long bounds are
+            // compared as doubles
+            columns.put(m_col, m_kind);
+        }
+
+        public final ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+            return zone.compare(m_col, m_op, m_value.doubleValue());
+        }
+
+        public final boolean needsRows() {
+            return false;
+        }
+
+        /**
+         * Compares the column's value to the constant.
+         *
+         * @param x the column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(double x);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_col + "$ " + m_op + " " + m_value;
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the value of a date column to
+     * constants. The value is read as milliseconds since the epoch, so that
+     * subclasses only compare longs.
+     */
+    private abstract static class DateLeaf implements BatchNode {
+        private final int m_col;
+
+        private final Operators m_op;
+
+        private final Date m_value;
+
+        private final long m_from;
+
+        private final long m_to;
+
+        DateLeaf(final int col, final Operators op, final Date value) {
+            this(col, op, value, value.getTime(), value.getTime());
+        }
+
+        /**
+         * Creates a node for a range test, whose bounds are used by the batch
+         * kernel and the zone maps.
+         *
+         * @param col the column's index
+         * @param op the operator
+         * @param value the date shown by {@link #toString()}, may be
+         *            <code>null</code> if the subclass overrides it
+         * @param from the lower bound in milliseconds since the epoch
+         * @param to the upper bound in milliseconds since the epoch
+         */
+        DateLeaf(final int col, final Operators op, final Date value,
+                final long from, final long to) {
+            m_col = col;
+            m_op = op;
+            m_value = value;
+            m_from = from;
+            m_to = to;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell c = row.getCell(m_col);
+            return !c.isMissing()
+                    && test(((DateAndTimeValue)c).getUTCTimeInMillis());
+        }
+
+        public final void evaluate(final RowBatch batch,
+                final long[] selection, final long[] result) {
+            long[] values = batch.getLongs(m_col, ValueKind.DATE);
+            if ((m_op == Operators.BETWEEN) || (m_op == Operators.IN)) {
+                BatchKernels.between(values, batch.size(), m_from, m_to,
+                        result);
+            } else {
+                BatchKernels.compare(m_op, values, batch.size(), m_from,
+                        result);
+            }
+            BatchKernels.restrict(result, batch.getMissing(m_col), selection);
+        }
+
+        public final void addColumns(final Map<Integer, ValueKind> columns) {
+            columns.put(m_col, ValueKind.DATE);
+        }
+
+        public final ZoneMap.Truth prune(final ZoneMap.Zone zone) {
+            if ((m_op == Operators.BETWEEN) || (m_op == Operators.IN)) {
+                return zone.between(m_col, m_from, m_to);
+            }
+            return zone.compare(m_col, m_op, m_from);
+        }
+
+        public final boolean needsRows() {
+            return false;
+        }
+
+        /**
+         * Compares the column's value to the constants.
+         *
+         * @param x the column's value in milliseconds since the epoch
+         * @return the result of the comparison
+         */
+        abstract boolean test(long x);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_col + "$ " + m_op + " " + formatDate(m_value);
+        }
+    }
+
+    /**
+     * Node that compares the value of a boolean column to a number. Since the
+     * column can only be 0 or 1, the outcome of the comparison for both values
+     * is already computed when the node is created.
+     */
+    private static final class BooleanLeaf implements RuleNode {
+        private final int m_col;
+
+        private final Operators m_op;
+
+        private final Number m_value;
+
+        private final boolean m_ifTrue;
+
+        private final boolean m_ifFalse;
+
+        BooleanLeaf(final int col, final Operators op, final Number value,
+                final boolean ifTrue, final boolean ifFalse) {
+            m_col = col;
+            m_op = op;
+            m_value = value;
+            m_ifTrue = ifTrue;
+            m_ifFalse = ifFalse;
+        }
+
+        public boolean evaluate(final DataRow row) {
+            DataCell c = row.getCell(m_col);
+            if (c.isMissing()) {
+                return false;
+            }
+            return ((BooleanValue)c).getBooleanValue() ? m_ifTrue : m_ifFalse;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_col + "$ " + m_op + " " + m_value;
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the values of two columns as ints.
+     * The missing value checks and the access to the primitive values are done
+     * here once, subclasses only compare primitives.
+     */
+    private abstract static class IntPair implements RuleNode {
+        private final int m_leftCol;
+
+        private final ValueKind m_leftKind;
+
+        private final int m_rightCol;
+
+        private final ValueKind m_rightKind;
+
+        private final Operators m_op;
+
+        IntPair(final int leftCol, final ValueKind leftKind,
+                final int rightCol, final ValueKind rightKind,
+                final Operators op) {
+            m_leftCol = leftCol;
+            m_leftKind = leftKind;
+            m_rightCol = rightCol;
+            m_rightKind = rightKind;
+            m_op = op;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell l = row.getCell(m_leftCol);
+            DataCell r = row.getCell(m_rightCol);
+            if (l.isMissing() || r.isMissing()) {
+                return false;
+            }
+            return test(m_leftKind.intValue(l), m_rightKind.intValue(r));
+        }
+
+        /**
+         * Compares the two column values.
+         *
+         * @param a the left column's value
+         * @param b the right column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(int a, int b);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_leftCol + "$ " + m_op + " $" + m_rightCol + "$";
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the values of two columns as longs.
+     */
+    private abstract static class LongPair implements RuleNode {
+        private final int m_leftCol;
+
+        private final ValueKind m_leftKind;
+
+        private final int m_rightCol;
+
+        private final ValueKind m_rightKind;
+
+        private final Operators m_op;
+
+        LongPair(final int leftCol, final ValueKind leftKind,
+                final int rightCol, final ValueKind rightKind,
+                final Operators op) {
+            m_leftCol = leftCol;
+            m_leftKind = leftKind;
+            m_rightCol = rightCol;
+            m_rightKind = rightKind;
+            m_op = op;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell l = row.getCell(m_leftCol);
+            DataCell r = row.getCell(m_rightCol);
+            if (l.isMissing() || r.isMissing()) {
+                return false;
+            }
+            return test(m_leftKind.longValue(l), m_rightKind.longValue(r));
+        }
+
+        /**
+         * Compares the two column values.
+         *
+         * @param a the left column's value
+         * @param b the right column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(long a, long b);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_leftCol + "$ " + m_op + " $" + m_rightCol + "$";
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the values of two columns as doubles.
+     */
+    private abstract static class DoublePair implements RuleNode {
+        private final int m_leftCol;
+
+        private final ValueKind m_leftKind;
+
+        private final int m_rightCol;
+
+        private final ValueKind m_rightKind;
+
+        private final Operators m_op;
+
+        DoublePair(final int leftCol, final ValueKind leftKind,
+                final int rightCol, final ValueKind rightKind,
+                final Operators op) {
+            m_leftCol = leftCol;
+            m_leftKind = leftKind;
+            m_rightCol = rightCol;
+            m_rightKind = rightKind;
+            m_op = op;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell l = row.getCell(m_leftCol);
+            DataCell r = row.getCell(m_rightCol);
+            if (l.isMissing() || r.isMissing()) {
+                return false;
+            }
+            return test(m_leftKind.doubleValue(l), m_rightKind.doubleValue(r));
+        }
+
+        /**
+         * Compares the two column values.
+         *
+         * @param a the left column's value
+         * @param b the right column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(double a, double b);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_leftCol + "$ " + m_op + " $" + m_rightCol + "$";
+        }
+    }
+
+    /**
+     * Base class for nodes that compare the values of two string columns.
+     */
+    private abstract static class StringPair implements RuleNode {
+        private final int m_leftCol;
+
+        private final int m_rightCol;
+
+        private final Operators m_op;
+
+        StringPair(final int leftCol, final int rightCol, final Operators op) {
+            m_leftCol = leftCol;
+            m_rightCol = rightCol;
+            m_op = op;
+        }
+
+        public final boolean evaluate(final DataRow row) {
+            DataCell l = row.getCell(m_leftCol);
+            DataCell r = row.getCell(m_rightCol);
+            if (l.isMissing() || r.isMissing()) {
+                return false;
+            }
+            return test(((StringValue)l).getStringValue(),
+                    ((StringValue)r).getStringValue());
+        }
+
+        /**
+         * Compares the two column values.
+         *
+         * @param a the left column's value
+         * @param b the right column's value
+         * @return the result of the comparison
+         */
+        abstract boolean test(String a, String b);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "$" + m_leftCol + "$ " + m_op + " $" + m_rightCol + "$";
+        }
+    }
 }
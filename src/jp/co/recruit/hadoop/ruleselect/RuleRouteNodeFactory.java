@@ -0,0 +1,21 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+/**
+ * <code>NodeFactory</code> for the "RuleRoute" Node.
+ * Splits a table into segments in a single pass: every row is routed to the
+ * output port of the first rule that matches it, the last port collects the
+ * rows that are matched by no rule.
+ *
+ * @author Krishna
+ */
+public class RuleRouteNodeFactory extends RuleSelectNodeFactory {
+    /** The number of output ports that rules can route rows to. */
+    static final int NR_ROUTE_PORTS = 3;
+
+    /**
+     * Creates a new factory.
+     */
+    public RuleRouteNodeFactory() {
+        super(NR_ROUTE_PORTS + 1);
+    }
+}
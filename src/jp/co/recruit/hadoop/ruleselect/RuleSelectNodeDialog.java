@@ -1,31 +1,51 @@
 package jp.co.recruit.hadoop.ruleselect;
 
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JSplitPane;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
 
 import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.def.StringCell;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeDialogPane;
 import org.knime.core.node.NodeLogger;
@@ -46,17 +66,34 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
 
     private static final String RULE_LABEL = "Enter rule...";
 
+    /** The delay after the last key stroke until the rule is checked. */
+    private static final int PREVIEW_DELAY = 300;
+
+    private static final Highlighter.HighlightPainter ERROR_PAINTER =
+            new DefaultHighlighter.DefaultHighlightPainter(
+                    new Color(255, 200, 200));
+
+    private static final Color WARNING_COLOR = new Color(204, 102, 0);
+
     private JTextField m_ruleEditor;
 
+    private JTextField m_outcome;
+
     private JList m_variableList;
 
     private JList m_operatorList;
 
-    private DefaultListModel m_variableModel;
+    private ColumnListModel m_variableModel;
+
+    private JTextField m_variableSearch;
+
+    private JComboBox m_variableType;
 
     private DefaultListModel m_operatorModel;
 
-    private DefaultListModel m_ruleModel;
+    private RuleListModel m_ruleModel;
+
+    private JTextField m_search;
 
     private JList m_rules;
 
@@ -64,10 +101,50 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
 
     private DataTableSpec m_spec;
 
+    private final int m_nrOutPorts;
+
+    private JComboBox m_port;
+
+    private JComboBox m_mode;
+
+    private JSpinner m_maxRows;
+
+    private JTextField m_labelColumn;
+
+    private JTextField m_sortColumn;
+
+    private JCheckBox m_cacheColumns;
+
+    private JLabel m_preview;
+
+    private Timer m_previewTimer;
+
+    private SwingWorker<Preview, Void> m_previewWorker;
+
+    private final RuleValidator m_validator = new RuleValidator();
+
+    /** Sample of the last input table, <code>null</code> if there is none. */
+    private List<DataRow> m_sampleRows;
+
+    /** Estimates the matches of the shown rules, see #updateSampleMatches. */
+    private Timer m_estimateTimer;
+
     /**
      *
      */
     public RuleSelectNodeDialog() {
+        this(1);
+    }
+
+    /**
+     * Creates a new dialog for a node with the given number of output ports.
+     * With more than one port, each rule is assigned the port it routes its
+     * rows to.
+     *
+     * @param nrOutPorts the number of output ports
+     */
+    public RuleSelectNodeDialog(final int nrOutPorts) {
+        m_nrOutPorts = nrOutPorts;
         initializeComponent();
     }
 
@@ -76,6 +153,62 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
                 new JSplitPane(JSplitPane.VERTICAL_SPLIT, createTopPart(),
                         createBottomPart());
         addTab("Rule Editor", horizontalSplit);
+        addTab("Options", createOptionsPart());
+    }
+
+    /*
+     * Options (from top to bottom): execution mode, row limit, label column,
+     * sort column, column cache
+     */
+    private Box createOptionsPart() {
+        m_mode = new JComboBox(RuleSelectSettings.Mode.values());
+        m_mode.setMaximumSize(m_mode.getPreferredSize());
+
+        Box modeBox = Box.createHorizontalBox();
+        modeBox.add(new JLabel("Mode: "));
+        modeBox.add(m_mode);
+        modeBox.add(Box.createHorizontalGlue());
+
+        m_maxRows = new JSpinner(new SpinnerNumberModel(0, 0,
+                Integer.MAX_VALUE, 1));
+        m_maxRows.setMaximumSize(new Dimension(150, 25));
+        Box limitBox = Box.createHorizontalBox();
+        limitBox.add(new JLabel("Stop after matching rows (0 = read all): "));
+        limitBox.add(m_maxRows);
+        limitBox.add(Box.createHorizontalGlue());
+
+        m_labelColumn = new JTextField(20);
+        m_labelColumn.setMaximumSize(new Dimension(250, 25));
+        Box labelBox = Box.createHorizontalBox();
+        labelBox.add(new JLabel("Label column (label mode): "));
+        labelBox.add(m_labelColumn);
+        labelBox.add(Box.createHorizontalGlue());
+
+        m_sortColumn = new JTextField(20);
+        m_sortColumn.setMaximumSize(new Dimension(250, 25));
+        Box sortBox = Box.createHorizontalBox();
+        sortBox.add(new JLabel("Input sorted by column (empty = detect): "));
+        sortBox.add(m_sortColumn);
+        sortBox.add(Box.createHorizontalGlue());
+
+        m_cacheColumns = new JCheckBox(
+                "Cache compared columns for repeated executions");
+        Box cacheBox = Box.createHorizontalBox();
+        cacheBox.add(m_cacheColumns);
+        cacheBox.add(Box.createHorizontalGlue());
+
+        Box options = Box.createVerticalBox();
+        options.add(modeBox);
+        options.add(Box.createVerticalStrut(10));
+        options.add(limitBox);
+        options.add(Box.createVerticalStrut(10));
+        options.add(labelBox);
+        options.add(Box.createVerticalStrut(10));
+        options.add(sortBox);
+        options.add(Box.createVerticalStrut(10));
+        options.add(cacheBox);
+        options.add(Box.createVerticalGlue());
+        return options;
     }
 
     /*
@@ -85,10 +218,13 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
         /*
          * Variable list (column names)
          */
-        m_variableModel = new DefaultListModel();
+        m_variableModel = new ColumnListModel();
         m_variableList = new JList(m_variableModel);
         m_variableList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         m_variableList.setCellRenderer(new DataColumnSpecListCellRenderer());
+        // a prototype value spares measuring every column for the list's size
+        m_variableList.setPrototypeCellValue(new DataColumnSpecCreator(
+                String.format("%30s", ""), StringCell.TYPE).createSpec());
         m_variableList.addListSelectionListener(new ListSelectionListener() {
             public void valueChanged(final ListSelectionEvent arg0) {
                 if (!arg0.getValueIsAdjusting()) {
@@ -130,15 +266,47 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
             }
         });
 
+        /*
+         * Column search (name and type)
+         */
+        m_variableSearch = new JTextField();
+        m_variableSearch.setMaximumSize(new Dimension(Integer.MAX_VALUE, 20));
+        m_variableSearch.getDocument().addDocumentListener(
+                new DocumentListener() {
+                    public void insertUpdate(final DocumentEvent e) {
+                        m_variableModel.setFilter(m_variableSearch.getText());
+                    }
+
+                    public void removeUpdate(final DocumentEvent e) {
+                        m_variableModel.setFilter(m_variableSearch.getText());
+                    }
+
+                    public void changedUpdate(final DocumentEvent e) {
+                        m_variableModel.setFilter(m_variableSearch.getText());
+                    }
+                });
+        m_variableType = new JComboBox(ColumnListModel.TypeFilter.values());
+        m_variableType.setMaximumSize(m_variableType.getPreferredSize());
+        m_variableType.addActionListener(new ActionListener() {
+            public void actionPerformed(final ActionEvent e) {
+                m_variableModel.setTypeFilter((ColumnListModel.TypeFilter)
+                        m_variableType.getSelectedItem());
+            }
+        });
+
         Box editorBox = createEditorPart();
         Box listBox = Box.createHorizontalBox();
-        JScrollPane variableScroller = new JScrollPane(m_variableList);
-        variableScroller.setBorder(BorderFactory
-                .createTitledBorder("Variables"));
+        Box variableBox = Box.createVerticalBox();
+        Box variableSearchBox = Box.createHorizontalBox();
+        variableSearchBox.add(m_variableSearch);
+        variableSearchBox.add(m_variableType);
+        variableBox.add(variableSearchBox);
+        variableBox.add(new JScrollPane(m_variableList));
+        variableBox.setBorder(BorderFactory.createTitledBorder("Variables"));
         JScrollPane operatorScroller = new JScrollPane(m_operatorList);
         operatorScroller.setBorder(BorderFactory
                 .createTitledBorder("Operators"));
-        listBox.add(variableScroller);
+        listBox.add(variableBox);
         listBox.add(operatorScroller);
 
         JSplitPane splitPane =
@@ -175,6 +343,38 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
             }
         });
 
+        /*
+         * Outcome, used as the row's label in label mode
+         */
+        m_outcome = new JTextField(10);
+        m_outcome.setMaximumSize(new Dimension(150, 20));
+
+        /*
+         * The edited rule is checked and its matches are estimated in the
+         * background shortly after the user stops typing
+         */
+        m_previewTimer = new Timer(PREVIEW_DELAY, new ActionListener() {
+            public void actionPerformed(final ActionEvent e) {
+                checkEditedRule();
+            }
+        });
+        m_previewTimer.setRepeats(false);
+        DocumentListener restartTimer = new DocumentListener() {
+            public void insertUpdate(final DocumentEvent e) {
+                m_previewTimer.restart();
+            }
+
+            public void removeUpdate(final DocumentEvent e) {
+                m_previewTimer.restart();
+            }
+
+            public void changedUpdate(final DocumentEvent e) {
+                m_previewTimer.restart();
+            }
+        };
+        m_ruleEditor.getDocument().addDocumentListener(restartTimer);
+        m_outcome.getDocument().addDocumentListener(restartTimer);
+
         /*
          * Add Button
          */
@@ -194,15 +394,34 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
         clear.addActionListener(new ActionListener() {
             public void actionPerformed(final ActionEvent arg0) {
                 m_ruleEditor.setText("");
+                m_outcome.setText("");
             }
         });
         
         /*
-         * Putting the rule editor together (rule, outcome, add, clear)
+         * Port the rule routes to, the last port is reserved for the rows
+         * matched by no rule
+         */
+        m_port = new JComboBox();
+        for (int i = 0; i < m_nrOutPorts - 1; i++) {
+            m_port.addItem(i);
+        }
+        m_port.setMaximumSize(m_port.getPreferredSize());
+
+        /*
+         * Putting the rule editor together (rule, outcome, port, add, clear)
          */
         ruleBox.add(Box.createHorizontalStrut(20));
         ruleBox.add(m_ruleEditor);
         ruleBox.add(Box.createHorizontalStrut(10));
+        ruleBox.add(new JLabel("=> "));
+        ruleBox.add(m_outcome);
+        ruleBox.add(Box.createHorizontalStrut(10));
+        if (m_nrOutPorts > 1) {
+            ruleBox.add(new JLabel("Port: "));
+            ruleBox.add(m_port);
+            ruleBox.add(Box.createHorizontalStrut(10));
+        }
         ruleBox.add(add);
         ruleBox.add(Box.createHorizontalStrut(10));
         ruleBox.add(clear);
@@ -219,6 +438,9 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
         m_error = new JLabel();
         m_error.setForeground(Color.RED);
         editorBox.add(m_error);
+        editorBox.add(Box.createVerticalStrut(10));
+        m_preview = new JLabel();
+        editorBox.add(m_preview);
         editorBox.setBorder(BorderFactory.createEtchedBorder());
         return editorBox;
     }
@@ -232,13 +454,84 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
          */
         Box bottom = Box.createHorizontalBox();
         /*
-         * Rule List
+         * Rule List, only the visible rules are rendered
          */
-        m_ruleModel = new DefaultListModel();
+        m_ruleModel = new RuleListModel();
         m_rules = new JList(m_ruleModel);
         m_rules.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // a prototype value spares measuring every rule for the list's size
+        m_rules.setPrototypeCellValue(String.format("%100s", ""));
+        m_rules.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(final JList list,
+                    final Object value, final int index,
+                    final boolean isSelected, final boolean cellHasFocus) {
+                if (!(value instanceof RuleListModel.Entry)) {
+                    return super.getListCellRendererComponent(list, value,
+                            index, isSelected, cellHasFocus);
+                }
+                RuleListModel.Entry r = (RuleListModel.Entry)value;
+                Component c = super.getListCellRendererComponent(list,
+                        describe(r), index, isSelected, cellHasFocus);
+                if ((r.getError() != null) && !isSelected) {
+                    c.setForeground(Color.RED);
+                }
+                return c;
+            }
+        });
+        m_estimateTimer = new Timer(50, new ActionListener() {
+            public void actionPerformed(final ActionEvent e) {
+                updateSampleMatches();
+            }
+        });
+        m_estimateTimer.setRepeats(false);
+        // other rules may be shown after the list has changed
+        m_ruleModel.addListDataListener(new ListDataListener() {
+            public void intervalAdded(final ListDataEvent e) {
+                m_estimateTimer.restart();
+            }
+
+            public void intervalRemoved(final ListDataEvent e) {
+                m_estimateTimer.restart();
+            }
+
+            public void contentsChanged(final ListDataEvent e) {
+                m_estimateTimer.restart();
+            }
+        });
+
+        /*
+         * Search field, shows only the rules containing the text
+         */
+        m_search = new JTextField();
+        m_search.setMaximumSize(new Dimension(Integer.MAX_VALUE, 20));
+        m_search.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(final DocumentEvent e) {
+                m_ruleModel.setFilter(m_search.getText());
+            }
+
+            public void removeUpdate(final DocumentEvent e) {
+                m_ruleModel.setFilter(m_search.getText());
+            }
+
+            public void changedUpdate(final DocumentEvent e) {
+                m_ruleModel.setFilter(m_search.getText());
+            }
+        });
+        Box searchBox = Box.createHorizontalBox();
+        searchBox.add(new JLabel("Search: "));
+        searchBox.add(m_search);
+
         Box bottomLeft = Box.createVerticalBox();
-        bottomLeft.add(new JScrollPane(m_rules));
+        bottomLeft.add(searchBox);
+        JScrollPane ruleScroller = new JScrollPane(m_rules);
+        // ... or after it has been scrolled or resized
+        ruleScroller.getViewport().addChangeListener(new ChangeListener() {
+            public void stateChanged(final ChangeEvent e) {
+                m_estimateTimer.restart();
+            }
+        });
+        bottomLeft.add(ruleScroller);
         bottomLeft.add(Box.createVerticalGlue());
         bottom.add(bottomLeft);
         bottom.add(createButtonPart());
@@ -258,9 +551,7 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
             public void actionPerformed(final ActionEvent arg0) {
                 int pos = m_rules.getSelectedIndex();
                 if (pos > 0) {
-                    Rule r = (Rule)m_rules.getSelectedValue();
-                    m_ruleModel.remove(pos);
-                    m_ruleModel.insertElementAt(r, pos - 1);
+                    m_ruleModel.swap(pos, pos - 1);
                     m_rules.setSelectedIndex(pos - 1);
                 }
             }
@@ -273,9 +564,7 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
             public void actionPerformed(final ActionEvent arg0) {
                 int pos = m_rules.getSelectedIndex();
                 if (pos != -1 && pos < m_ruleModel.getSize() - 1) {
-                    Rule r = (Rule)m_rules.getSelectedValue();
-                    m_ruleModel.remove(pos);
-                    m_ruleModel.insertElementAt(r, pos + 1);
+                    m_ruleModel.swap(pos, pos + 1);
                     m_rules.setSelectedIndex(pos + 1);
                 }
             }
@@ -306,9 +595,25 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
                     }
                 }
                 int rPos = m_rules.getSelectedIndex();
-                Rule r = (Rule)m_ruleModel.get(rPos);
-                m_ruleEditor.setText(r.getCondition());
-                m_ruleModel.removeElement(r);
+                if (rPos < 0) {
+                    return;
+                }
+                RuleListModel.Entry r = m_ruleModel.getEntry(rPos);
+                Rule rule = r.validate(m_validator).getRule();
+                if (rule != null) {
+                    m_ruleEditor.setText(rule.getCondition());
+                    m_outcome.setText((rule.getOutcome() == null) ? ""
+                            : rule.getOutcome());
+                } else {
+                    // let the user fix the rule, the error is shown when
+                    // the editor is checked
+                    m_ruleEditor.setText(r.getText());
+                    m_outcome.setText("");
+                }
+                if (m_nrOutPorts > 1) {
+                    m_port.setSelectedItem(r.getPort());
+                }
+                m_ruleModel.remove(rPos);
             }
 
         });
@@ -354,35 +659,319 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
      * Adds a rule to the rule list.
      */
     private void addRule() {
-        try {
-            String antecedent = m_ruleEditor.getText();
-            
-            /*
-             * Tries to create rule. If fails: set error message and caret to
-             * referring position
-             */
-            m_ruleModel.addElement(new Rule(antecedent + "\"", m_spec));
-            m_error.setText("");
-            getPanel().repaint();
-        } catch (ParseException e) {
-            m_error.setText(e.getMessage());
-            int offset = e.getErrorOffset();
+        if (m_outcome.getText().indexOf('"') >= 0) {
+            m_error.setForeground(Color.RED);
+            m_error.setText("The outcome must not contain '\"'");
+            m_outcome.requestFocusInWindow();
+            return;
+        }
+        String text = getEditedRule();
+
+        /*
+         * Tries to create rule. If fails: set error message and caret to
+         * referring position. The rule has usually been parsed in the
+         * background already.
+         */
+        RuleValidator.Result result = m_validator.validate(text);
+        if (result.getError() != null) {
+            showValidation(result, text);
             m_ruleEditor.requestFocusInWindow();
-            m_ruleEditor.setCaretPosition(offset);
+            m_ruleEditor.setCaretPosition(Math.min(
+                    Math.max(result.getOffset(), 0),
+                    m_ruleEditor.getText().length()));
+            return;
+        }
+        int port = (m_nrOutPorts > 1) ? (Integer)m_port.getSelectedItem() : 0;
+        RuleListModel.Entry entry = new RuleListModel.Entry(text, port);
+        entry.validate(m_validator);
+        m_ruleModel.add(entry);
+        showValidation(null, null);
+        getPanel().repaint();
+    }
+
+    /*
+     * The rule string for the contents of the rule editor and the outcome
+     * field, an empty string if the editor is empty.
+     */
+    private String getEditedRule() {
+        String text = m_ruleEditor.getText();
+        if (text.equals(RULE_LABEL)) {
+            text = "";
+        }
+        String outcome = m_outcome.getText().trim();
+        if (outcome.length() > 0) {
+            text += " => \"" + outcome + "\"";
+        }
+        return text;
+    }
+
+    /*
+     * Shows the error in the edited rule at its position, or warnings about
+     * a valid rule. Clears the message if the result is null.
+     */
+    private void showValidation(final RuleValidator.Result result,
+            final String text) {
+        Highlighter highlighter = m_ruleEditor.getHighlighter();
+        highlighter.removeAllHighlights();
+        if (result == null) {
+            m_error.setText("");
+            return;
+        }
+        if (result.getError() != null) {
+            int length = m_ruleEditor.getText().length();
+            int offset = Math.min(Math.max(result.getOffset(), 0), length);
+            m_error.setForeground(Color.RED);
+            m_error.setText("Error at position " + (offset + 1) + ": "
+                    + result.getError());
+            if (offset < length) {
+                try {
+                    highlighter.addHighlight(offset, length, ERROR_PAINTER);
+                } catch (BadLocationException e) {
+                    // the text has changed in the meantime
+                }
+            }
+            return;
+        }
+        String warning = "";
+        if (m_ruleModel.contains(text)) {
+            warning = "Warning: the same rule is already in the list";
+        } else if (!result.getRule().canMatch()) {
+            warning = "Warning: the rule can never match the values in the "
+                    + "input's domain";
+        } else if ((m_mode.getSelectedItem() == RuleSelectSettings.Mode.LABEL)
+                && (result.getRule().getOutcome() == null)) {
+            warning = "Warning: the rule has no outcome, the rows it matches "
+                    + "get a missing label";
+        }
+        m_error.setForeground(WARNING_COLOR);
+        m_error.setText(warning);
+    }
+
+    /*
+     * Counts the rows of the sample that a rule matches.
+     */
+    private static int countMatches(final Rule rule,
+            final List<DataRow> rows, final SwingWorker<?, ?> worker) {
+        int count = 0;
+        for (DataRow row : rows) {
+            if (worker.isCancelled()) {
+                break;
+            }
+            if (rule.matches(row)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Describes the number of matches in the sample.
+     */
+    private static String formatEstimate(final int matches,
+            final int sampleSize) {
+        return String.format("~%.1f%% (%d of %d sampled rows)",
+                100.0 * matches / sampleSize, matches, sampleSize);
+    }
+
+    /*
+     * Checks the rule in the editor and estimates its selectivity on the
+     * sample in a background thread. A running check of an older text is
+     * canceled.
+     */
+    private void checkEditedRule() {
+        if (m_previewWorker != null) {
+            m_previewWorker.cancel(true);
+            m_previewWorker = null;
+        }
+        final String text = getEditedRule();
+        if ((text.trim().length() == 0)
+                || (m_outcome.getText().indexOf('"') >= 0)) {
+            showValidation(null, null);
+            return;
+        }
+        final List<DataRow> rows = m_sampleRows;
+        m_previewWorker = new SwingWorker<Preview, Void>() {
+            @Override
+            protected Preview doInBackground() {
+                RuleValidator.Result result = m_validator.validate(text);
+                int matches = -1;
+                if ((result.getRule() != null) && (rows != null)
+                        && !rows.isEmpty()) {
+                    matches = countMatches(result.getRule(), rows, this);
+                }
+                return new Preview(result, matches);
+            }
+
+            @Override
+            protected void done() {
+                if ((m_previewWorker != this) || isCancelled()) {
+                    return;
+                }
+                try {
+                    Preview preview = get();
+                    showValidation(preview.m_result, text);
+                    if (preview.m_matches >= 0) {
+                        m_preview.setText("Estimated matches: "
+                                + formatEstimate(preview.m_matches,
+                                        rows.size()));
+                    }
+                } catch (InterruptedException e) {
+                    // the dialog is closed
+                } catch (ExecutionException e) {
+                    LOGGER.debug("Could not check rule", e.getCause());
+                }
+            }
+        };
+        m_previewWorker.execute();
+    }
+
+    /*
+     * Parses all rules in the list in a background thread, so that invalid
+     * rules are marked. Rules that have been parsed before are not parsed
+     * again.
+     */
+    private void validateRules() {
+        final List<RuleListModel.Entry> entries =
+                new ArrayList<RuleListModel.Entry>(
+                        m_ruleModel.getAllEntries());
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                for (RuleListModel.Entry e : entries) {
+                    e.validate(m_validator);
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                m_rules.repaint();
+            }
+        }.execute();
+    }
+
+    /*
+     * Text shown for a rule in the list. The estimate of its matches is shown
+     * once updateSampleMatches has computed it.
+     */
+    private String describe(final RuleListModel.Entry r) {
+        String s = r.getText();
+        if (m_nrOutPorts > 1) {
+            s = r.getPort() + ": " + s;
+        }
+        if (r.getError() != null) {
+            return s + "    [invalid: " + r.getError() + "]";
         }
+        if ((m_sampleRows == null) || m_sampleRows.isEmpty()) {
+            return s;
+        }
+        if (r.m_sampleMatches >= 0) {
+            s += "    [" + formatEstimate(r.m_sampleMatches,
+                    m_sampleRows.size()) + "]";
+        }
+        return s;
     }
 
     /*
-     * Variables are the available column names
+     * Estimates the matches on the sample for the shown rules that have not
+     * been estimated yet in a background thread, so only the rules that are
+     * actually shown are parsed and evaluated on the sample. The estimate
+     * timer calls this whenever other rules may be shown.
      */
-    private List<DataColumnSpec> getVariables() {
-        List<DataColumnSpec> variables = new ArrayList<DataColumnSpec>();
-        if (m_spec != null) {
-            for (DataColumnSpec colSpec : m_spec) {
-                variables.add(colSpec);
+    private void updateSampleMatches() {
+        final List<DataRow> rows = m_sampleRows;
+        if ((rows == null) || rows.isEmpty()) {
+            return;
+        }
+        final List<RuleListModel.Entry> entries =
+                new ArrayList<RuleListModel.Entry>();
+        int last = m_rules.getLastVisibleIndex();
+        for (int i = Math.max(m_rules.getFirstVisibleIndex(), 0); i <= last;
+                i++) {
+            RuleListModel.Entry r = m_ruleModel.getEntry(i);
+            if (r.m_sampleMatches == -1) {
+                // pending, so that it is not estimated twice
+                r.m_sampleMatches = -2;
+                entries.add(r);
             }
         }
-        return variables;
+        if (entries.isEmpty()) {
+            return;
+        }
+        new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                int[] counts = new int[entries.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    Rule rule = entries.get(i).validate(m_validator).getRule();
+                    // invalid rules are marked by the list instead
+                    counts[i] = (rule != null)
+                            ? countMatches(rule, rows, this) : -2;
+                }
+                return counts;
+            }
+
+            @Override
+            protected void done() {
+                if (m_sampleRows != rows) {
+                    // another sample has been loaded in the meantime
+                    return;
+                }
+                try {
+                    int[] counts = get();
+                    for (int i = 0; i < counts.length; i++) {
+                        entries.get(i).m_sampleMatches = counts[i];
+                    }
+                    m_rules.repaint();
+                } catch (InterruptedException e) {
+                    // the dialog is closed
+                } catch (ExecutionException e) {
+                    LOGGER.debug("Could not estimate matches", e.getCause());
+                }
+            }
+        }.execute();
+    }
+
+    /*
+     * Reads the sample of the last table with the given spec in a background
+     * thread and estimates the matches of all rules on it.
+     */
+    private void loadSample(final DataTableSpec spec) {
+        m_sampleRows = null;
+        // the estimates of the previous sample are no longer valid
+        for (RuleListModel.Entry r : m_ruleModel.getAllEntries()) {
+            r.m_sampleMatches = -1;
+        }
+        m_preview.setText("");
+        new SwingWorker<List<DataRow>, Void>() {
+            @Override
+            protected List<DataRow> doInBackground() {
+                return SampleCache.load(spec);
+            }
+
+            @Override
+            protected void done() {
+                if (m_spec != spec) {
+                    // the dialog has been reopened in the meantime
+                    return;
+                }
+                try {
+                    m_sampleRows = get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    LOGGER.debug("Could not load sample", e.getCause());
+                }
+                if (m_sampleRows == null) {
+                    m_preview.setText("No sample available, execute the "
+                            + "node to estimate the matches of the rules.");
+                } else {
+                    m_preview.setText("Estimates are based on a sample of "
+                            + m_sampleRows.size() + " rows.");
+                    m_estimateTimer.restart();
+                }
+            }
+        }.execute();
     }
 
     /*
@@ -409,26 +998,34 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
             throw new NotConfigurableException("No columns available!");
         }
         m_spec = specs[0];
-        m_variableModel.clear();
-        for (DataColumnSpec s : getVariables()) {
-            m_variableModel.addElement(s);
-        }
+        // the columns are taken from the spec when they are shown
+        m_variableModel.setSpec(m_spec);
         m_operatorModel.clear();
         for (String op : getOperators()) {
             m_operatorModel.addElement(op);
         }
         RuleSelectSettings ruleSettings = new RuleSelectSettings();
         ruleSettings.loadSettingsForDialog(settings);
-        m_ruleModel.clear();
+        m_mode.setSelectedItem(ruleSettings.getMode());
+        m_maxRows.setValue(ruleSettings.getMaxRows());
+        m_labelColumn.setText(ruleSettings.getLabelColumn());
+        m_sortColumn.setText(ruleSettings.getSortColumn());
+        m_cacheColumns.setSelected(ruleSettings.getCacheColumns());
+        // the rules are parsed when they are shown or edited, invalid rules
+        // are marked in the list
+        List<String> rules = new ArrayList<String>();
         for (String rs : ruleSettings.rules()) {
-            try {
-                Rule r = new Rule(rs + "\"", m_spec);
-                m_ruleModel.addElement(r);
-            } catch (ParseException e) {
-                LOGGER.warn("Rule '" + rs + "' removed, because of "
-                        + e.getMessage());
-            }
+            rules.add(rs);
+        }
+        int[] ports = new int[rules.size()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = Math.min(ruleSettings.getPort(i),
+                    Math.max(0, m_nrOutPorts - 2));
         }
+        m_validator.setSpec(m_spec);
+        m_ruleModel.setRules(rules, ports);
+        validateRules();
+        loadSample(m_spec);
     }
 
     /**
@@ -438,10 +1035,31 @@ public class RuleSelectNodeDialog extends NodeDialogPane {
     protected void saveSettingsTo(final NodeSettingsWO settings)
             throws InvalidSettingsException {
         RuleSelectSettings ruleSettings = new RuleSelectSettings();
-        for (int i = 0; i < m_ruleModel.getSize(); i++) {
-            Rule r = (Rule)m_ruleModel.getElementAt(i);
-            ruleSettings.addRule(r.toString());
+        // the rule strings are saved as they are, without parsing them again
+        for (RuleListModel.Entry r : m_ruleModel.getAllEntries()) {
+            ruleSettings.addRule(r.getText(), r.getPort());
         }
+        ruleSettings.setMode((RuleSelectSettings.Mode)m_mode
+                .getSelectedItem());
+        ruleSettings.setMaxRows((Integer)m_maxRows.getValue());
+        ruleSettings.setLabelColumn(m_labelColumn.getText().trim());
+        ruleSettings.setSortColumn(m_sortColumn.getText().trim());
+        ruleSettings.setCacheColumns(m_cacheColumns.isSelected());
         ruleSettings.saveSettings(settings);
     }
+
+    /**
+     * The result of checking the edited rule.
+     */
+    private static final class Preview {
+        private final RuleValidator.Result m_result;
+
+        /** The number of matches in the sample, -1 if not known. */
+        private final int m_matches;
+
+        Preview(final RuleValidator.Result result, final int matches) {
+            m_result = result;
+            m_matches = matches;
+        }
+    }
 }
@@ -12,13 +12,31 @@ import org.knime.core.node.NodeView;
  */
 public class RuleSelectNodeFactory 
         extends NodeFactory<RuleSelectNodeModel> {
+    private final int m_nrOutPorts;
+
+    /**
+     * Creates a factory for the node with a single output port.
+     */
+    public RuleSelectNodeFactory() {
+        this(1);
+    }
+
+    /**
+     * Creates a factory for a node with the given number of output ports. With
+     * more than one port the node routes the rows to the ports of the rules.
+     *
+     * @param nrOutPorts the number of output ports
+     */
+    protected RuleSelectNodeFactory(final int nrOutPorts) {
+        m_nrOutPorts = nrOutPorts;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public RuleSelectNodeModel createNodeModel() {
-        return new RuleSelectNodeModel();
+        return new RuleSelectNodeModel(m_nrOutPorts);
     }
 
     /**
@@ -51,7 +69,7 @@ public class RuleSelectNodeFactory
      */
     @Override
     public NodeDialogPane createNodeDialogPane() {
-        return new RuleSelectNodeDialog();
+        return new RuleSelectNodeDialog(m_nrOutPorts);
     }
 
 }
@@ -1,43 +1,90 @@
 package jp.co.recruit.hadoop.ruleselect;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
+import jp.co.recruit.hadoop.ruleselect.RuleSelectSettings.Mode;
+
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.RowKey;
 import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.data.container.SingleCellFactory;
 import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettings;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 
 
 /**
  * This is the model for the business rule node. It takes the user-defined rules
- * and assigns the outcome of the first matching rule to the new cell.
+ * and selects all rows that are matched by at least one of the rules. If the
+ * node has more than one output port, the rows are routed instead: each row is
+ * added to the port of the first rule that matches it, and rows that are
+ * matched by no rule are added to the last port.
  *
  * @author Krishna
  */
 public class RuleSelectNodeModel extends NodeModel {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(RuleSelectNodeModel.class);
+
+    /** The file in the internals directory with the execution tier. */
+    private static final String INTERNALS_FILE = "internals.xml";
+
+    private static final String CFG_TIER = "tier";
+
+    private static final String CFG_TIER_REASON = "tierReason";
+
     private final RuleSelectSettings m_settings = new RuleSelectSettings();
 
+    /** The tier of the last execution, <code>null</code> if none. */
+    private RuleEngine.Tier m_tier;
+
+    /** Why the tier of the last execution was chosen. */
+    private String m_tierReason;
+
     /**
-     * Creates a new model.
+     * Creates a new model with a single output port for the selected rows.
      */
     public RuleSelectNodeModel() {
-        super(1, 1);
+        this(1);
+    }
+
+    /**
+     * Creates a new model. With more than one output port the rows are routed
+     * to the ports of the matching rules, the last port receives the rows
+     * that are matched by no rule.
+     *
+     * @param nrOutPorts the number of output ports
+     */
+    public RuleSelectNodeModel(final int nrOutPorts) {
+        super(1, nrOutPorts);
     }
 
     /**
@@ -49,15 +96,136 @@ public class RuleSelectNodeModel extends NodeModel {
      */
     private List<Rule> parseRules(final DataTableSpec spec)
             throws ParseException {
+        return parseRules(spec, RuleEngine.Tier.COMPILED);
+    }
+
+    /**
+     * Parses all rules in the settings object for a tier.
+     *
+     * @param spec the spec of the table on which the rules are applied.
+     * @param tier the way in which the rules will be evaluated
+     * @return a list of parsed rules
+     * @throws ParseException if a rule cannot be parsed
+     */
+    private List<Rule> parseRules(final DataTableSpec spec,
+            final RuleEngine.Tier tier) throws ParseException {
         ArrayList<Rule> rules = new ArrayList<Rule>();
+        // the rules share the work on common columns
+        RuleContext context =
+                new RuleContext(tier == RuleEngine.Tier.COMPILED);
 
         for (String s : m_settings.rules()) {
-            rules.add(new Rule(s +"\"", spec));
+            rules.add(new Rule(s +"\"", spec, context));
         }
 
         return rules;
     }
 
+    /**
+     * Warns about the rules that can never match according to the domains of
+     * the input's columns. These rules are not evaluated.
+     *
+     * @param nrPruned the number of rules that can never match
+     * @param nrRules the number of all rules
+     */
+    private void reportPrunedRules(final int nrPruned, final int nrRules) {
+        if (nrPruned > 0) {
+            setWarningMessage(nrPruned + " of " + nrRules
+                    + " rules can never match the values in the input's "
+                    + "domain and are skipped");
+        }
+    }
+
+    /**
+     * Returns the output port for each rule in the settings object.
+     *
+     * @return an array with the port index of each rule
+     * @throws InvalidSettingsException if a rule routes to a port that does
+     *             not exist
+     */
+    private int[] getRulePorts() throws InvalidSettingsException {
+        ArrayList<Integer> ports = new ArrayList<Integer>();
+        int i = 0;
+        for (String s : m_settings.rules()) {
+            int port = (getNrOutPorts() > 1) ? m_settings.getPort(i) : 0;
+            if ((port < 0) || (port > Math.max(0, getNrOutPorts() - 2))) {
+                throw new InvalidSettingsException("Rule '" + s
+                        + "' routes to the non-existing port " + port);
+            }
+            ports.add(port);
+            i++;
+        }
+
+        int[] a = new int[ports.size()];
+        for (i = 0; i < a.length; i++) {
+            a[i] = ports.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Creates the spec of the summary table that is created in count mode.
+     *
+     * @return the summary table's spec
+     */
+    private static DataTableSpec createSummarySpec() {
+        return new DataTableSpec(
+                new DataColumnSpecCreator("Rule", StringCell.TYPE)
+                        .createSpec(),
+                new DataColumnSpecCreator("Matches", LongCell.TYPE)
+                        .createSpec(),
+                new DataColumnSpecCreator("Selectivity", DoubleCell.TYPE)
+                        .createSpec(),
+                new DataColumnSpecCreator("First match", StringCell.TYPE)
+                        .createSpec());
+    }
+
+    /**
+     * Creates the spec of the label column that is appended in label mode.
+     *
+     * @param inSpec the input table's spec
+     * @return the label column's spec
+     * @throws InvalidSettingsException if the input table already contains a
+     *             column with the label column's name
+     */
+    private DataColumnSpec createLabelColumnSpec(final DataTableSpec inSpec)
+            throws InvalidSettingsException {
+        String name = m_settings.getLabelColumn();
+        if (inSpec.containsName(name)) {
+            throw new InvalidSettingsException("The input table already "
+                    + "contains a column named '" + name + "'");
+        }
+        return new DataColumnSpecCreator(name, StringCell.TYPE).createSpec();
+    }
+
+    /**
+     * Returns the column the input table is declared to be sorted by.
+     *
+     * @param inSpec the input table's spec
+     * @return the column's index, -1 if no column is declared
+     * @throws InvalidSettingsException if the column does not exist or is
+     *             neither numeric nor a date column
+     */
+    private int getSortColumn(final DataTableSpec inSpec)
+            throws InvalidSettingsException {
+        String name = m_settings.getSortColumn();
+        if (name.length() == 0) {
+            return -1;
+        }
+        int col = inSpec.findColumnIndex(name);
+        if (col < 0) {
+            throw new InvalidSettingsException("The sort column '" + name
+                    + "' does not exist");
+        }
+        ValueKind kind = ValueKind.of(inSpec.getColumnSpec(col).getType());
+        if ((kind == ValueKind.BOOLEAN)
+                || (!kind.isNumeric() && (kind != ValueKind.DATE))) {
+            throw new InvalidSettingsException("The sort column '" + name
+                    + "' is neither a numeric nor a date column");
+        }
+        return col;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -65,12 +233,29 @@ public class RuleSelectNodeModel extends NodeModel {
     protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
             throws InvalidSettingsException {
         try {
-            parseRules(inSpecs[0]);
+            List<Rule> rules = parseRules(inSpecs[0]);
+            int nrPruned = 0;
+            for (Rule r : rules) {
+                if (!r.canMatch()) {
+                    nrPruned++;
+                }
+            }
+            reportPrunedRules(nrPruned, rules.size());
         } catch (ParseException ex) {
             throw new InvalidSettingsException(ex);
         }
+        getRulePorts();
+        getSortColumn(inSpecs[0]);
 
-        return new DataTableSpec[]{inSpecs[0]};
+        DataTableSpec[] outSpecs = new DataTableSpec[getNrOutPorts()];
+        Arrays.fill(outSpecs, inSpecs[0]);
+        if (m_settings.getMode() == Mode.COUNT) {
+            outSpecs[0] = createSummarySpec();
+        } else if (m_settings.getMode() == Mode.LABEL) {
+            outSpecs[0] = new DataTableSpec(inSpecs[0], new DataTableSpec(
+                    createLabelColumnSpec(inSpecs[0])));
+        }
+        return outSpecs;
     }
 
     /**
@@ -79,50 +264,339 @@ public class RuleSelectNodeModel extends NodeModel {
     @Override
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
-            List<Rule> rules = parseRules(inData[0].getDataTableSpec());
-       
-         
-              DataTableSpec inputTableSpec = inData[0].getDataTableSpec();
-        	  DataColumnSpec[] outputColumnSpecs = new DataColumnSpec[inputTableSpec.getNumColumns()];
-        	  
-              for (int i = 0; i < inputTableSpec.getNumColumns(); i++) {
-        	    DataColumnSpec columnSpec = inputTableSpec.getColumnSpec(i);    
-        	    outputColumnSpecs[i] = columnSpec;
-              } 
-       	  
-        	  DataTableSpec outputTableSpec = new DataTableSpec(outputColumnSpecs);
-        	  BufferedDataContainer outputContainer = exec.createDataContainer(outputTableSpec);
-
-        	  CloseableRowIterator it = inData[0].iterator();
-        	  int rowNumber = 1;
-
-        	  while (it.hasNext()) {
-   
-        	    DataRow inputRow = it.next();
-        	    RowKey key = inputRow.getKey();	
-        	    DataCell[] cells = new DataCell[inputRow.getNumCells()];
-
-        	    for (int i = 0; i < inputRow.getNumCells(); i++) {
-        	      cells[i] = inputRow.getCell(i);
-        	    }
-       	  
-          	    for (Rule r : rules) {
-                    if (r.matches(inputRow)) {
-                  	  DataRow outputRow = new DefaultRow(key, cells);
-               	      outputContainer.addRowToTable(outputRow);
+        DataTableSpec inputTableSpec = inData[0].getDataTableSpec();
+        int nrRules = m_settings.getNrRules();
+        // tiny inputs are interpreted, compiling the rules costs more than
+        // it saves
+        RuleEngine.Tier tier =
+                RuleEngine.Tier.choose(inData[0].getRowCount(), nrRules);
+        String reason =
+                RuleEngine.Tier.getReason(inData[0].getRowCount(), nrRules);
+        LOGGER.info("Rules are " + tier.toString().toLowerCase() + ": "
+                + reason);
+        m_tier = tier;
+        m_tierReason = reason;
+        final RuleEngine engine = new RuleEngine(
+                parseRules(inputTableSpec, tier),
+                Runtime.getRuntime().availableProcessors(), tier);
+        reportPrunedRules(engine.getNrPrunedRules(), engine.getNrRules());
+        int sortColumn = getSortColumn(inputTableSpec);
+        if (sortColumn >= 0) {
+            engine.setSortColumn(sortColumn);
+        }
+        // block statistics of the input, kept for the next execution; they
+        // also tell if the input is sorted
+        engine.setZoneMap(ZoneMap.get(inData[0]));
+        if (m_settings.getCacheColumns()) {
+            engine.setColumnCache(ColumnCache.get(inData[0]));
+        }
+        // sample of the input rows for the match count preview in the
+        // dialog, null if the input has been sampled before
+        final SampleCache.Reservoir sample =
+                SampleCache.newReservoir(inData[0]);
+        if (m_settings.getMode() == Mode.COUNT) {
+            return executeCount(inData[0], engine, sample, exec);
+        } else if (m_settings.getMode() == Mode.LABEL) {
+            return executeLabel(inData[0], engine, sample, exec);
+        }
+        // the number of matching rows after which the scan stops
+        final int maxRows = (m_settings.getMaxRows() > 0)
+                ? m_settings.getMaxRows() : Integer.MAX_VALUE;
+        final int[] selectedRows = new int[1];
+
+        final int[] rulePorts = getRulePorts();
+        // in routing mode the last port receives the rows no rule matches,
+        // otherwise they are dropped
+        final int rejectedPort =
+                (getNrOutPorts() > 1) ? getNrOutPorts() - 1 : -1;
+        // with a single port it does not matter which rule matches a row
+        engine.setAnyMatch(rejectedPort < 0);
+
+        // the output spec is the input spec, therefore the input rows can be
+        // added to the containers as they are instead of copying their cells
+        final BufferedDataContainer[] containers =
+                new BufferedDataContainer[getNrOutPorts()];
+        for (int i = 0; i < containers.length; i++) {
+            containers[i] = exec.createDataContainer(inputTableSpec);
+        }
+
+        final double rowCount = inData[0].getRowCount();
+        CloseableRowIterator it = inData[0].iterator();
+        try {
+            engine.scan(it, inData[0].getRowCount(),
+                    new RuleEngine.BatchJob<int[]>() {
+                @Override
+                int[] evaluate(final RowBatch batch) {
+                    return engine.firstMatches(batch);
+                }
+
+                @Override
+                boolean consume(final RowBatch batch, final int[] matches)
+                        throws CanceledExecutionException {
+                    if (sample != null) {
+                        sample.offer(batch);
+                    }
+                    // a row is added only once, to the port of the first rule
+                    // that matches it
+                    for (int i = 0; i < batch.size(); i++) {
+                        int port = (matches[i] >= 0) ? rulePorts[matches[i]]
+                                : rejectedPort;
+                        if (port >= 0) {
+                            containers[port].addRowToTable(batch.getRow(i));
+                        }
+                        if ((matches[i] >= 0)
+                                && (++selectedRows[0] >= maxRows)) {
+                            exec.setProgress(1, "Stopped after "
+                                    + selectedRows[0] + " matching rows at row "
+                                    + (batch.getFirstIndex() + i + 1));
+                            return false;
+                        }
                     }
+                    // on sorted input the rows after the last possible match
+                    // are not read, unless they are routed to the last port
+                    if ((rejectedPort < 0) && engine.canStop(batch)) {
+                        exec.setProgress(1, "Stopped at row "
+                                + (batch.getFirstIndex() + batch.size())
+                                + ", no later row can match");
+                        return false;
+                    }
+
+                    exec.checkCanceled();
+                    int rowNumber = batch.getFirstIndex() + batch.size();
+                    exec.setProgress(rowNumber / rowCount, "Adding row "
+                            + rowNumber);
+                    return true;
                 }
- 	   
-          	    exec.checkCanceled();
-        	    exec.setProgress(rowNumber / (double)inData[0].getRowCount(), "Adding row " + rowNumber);
+            });
+        } finally {
+            // also releases the table's resources if the scan has stopped
+            // early
+            it.close();
+        }
+        SampleCache.store(sample, exec);
 
-        	    rowNumber++;
-        	  }
-     	 
-      outputContainer.close();
-   	  BufferedDataTable outputTable = outputContainer.getTable();
-   	  return new BufferedDataTable[]{outputTable};
+        BufferedDataTable[] outTables = new BufferedDataTable[containers.length];
+        for (int i = 0; i < containers.length; i++) {
+            containers[i].close();
+            outTables[i] = containers[i].getTable();
+        }
+        return outTables;
     }
+
+    /**
+     * Appends a column with the outcome of the first matching rule to the
+     * input table. Rows that are matched by no rule, or by a rule without an
+     * outcome, get a missing value.
+     *
+     * @param table the input table
+     * @param engine the engine with the parsed rules
+     * @param sample the sample the input rows are offered to,
+     *            <code>null</code> if the input is not sampled
+     * @param exec the execution context
+     * @return the output tables, the labeled table in the first port and empty
+     *         tables in all other ports
+     * @throws Exception if the execution fails or has been canceled
+     */
+    private BufferedDataTable[] executeLabel(final BufferedDataTable table,
+            final RuleEngine engine, final SampleCache.Reservoir sample,
+            final ExecutionContext exec) throws Exception {
+        // one cell per distinct outcome that is shared by all rows with this
+        // label, instead of a new cell for every row
+        HashMap<String, DataCell> dictionary = new HashMap<String, DataCell>();
+        final DataCell[] labels = new DataCell[engine.getNrRules()];
+        for (int r = 0; r < labels.length; r++) {
+            String outcome = engine.getRule(r).getOutcome();
+            if (outcome == null) {
+                labels[r] = DataType.getMissingCell();
+            } else {
+                labels[r] = dictionary.get(outcome);
+                if (labels[r] == null) {
+                    labels[r] = new StringCell(outcome);
+                    dictionary.put(outcome, labels[r]);
+                }
+            }
+        }
+
+        // only the label column is written, the input columns are referenced
+        ColumnRearranger rearranger =
+                new ColumnRearranger(table.getDataTableSpec());
+        rearranger.append(new SingleCellFactory(
+                createLabelColumnSpec(table.getDataTableSpec())) {
+            @Override
+            public DataCell getCell(final DataRow row) {
+                // the cells are created in the order of the rows, by one
+                // thread
+                if (sample != null) {
+                    sample.offer(row);
+                }
+                int r = engine.firstMatch(row);
+                return (r >= 0) ? labels[r] : DataType.getMissingCell();
+            }
+        });
+
+        BufferedDataTable[] outTables =
+                new BufferedDataTable[getNrOutPorts()];
+        outTables[0] =
+                exec.createColumnRearrangeTable(table, rearranger, exec);
+        SampleCache.store(sample, exec);
+        for (int i = 1; i < outTables.length; i++) {
+            BufferedDataContainer empty =
+                    exec.createDataContainer(table.getDataTableSpec());
+            empty.close();
+            outTables[i] = empty.getTable();
+        }
+        return outTables;
+    }
+
+    /**
+     * Evaluates all rules on all rows without writing the rows and creates a
+     * table with the number of matches, the selectivity and the first
+     * matching row of each rule. If the compared columns are in the column
+     * cache and no rule needs the rows, the table is not read; only the keys
+     * of the first matches are looked up afterwards.
+     *
+     * @param table the input table
+     * @param engine the engine with the parsed rules
+     * @param sample the sample the input rows are offered to,
+     *            <code>null</code> if the input is not sampled
+     * @param exec the execution context
+     * @return the output tables, the summary in the first port and empty
+     *         tables in all other ports
+     * @throws Exception if the execution fails or has been canceled
+     */
+    private BufferedDataTable[] executeCount(final BufferedDataTable table,
+            final RuleEngine engine, final SampleCache.Reservoir sample,
+            final ExecutionContext exec) throws Exception {
+        final int nrRules = engine.getNrRules();
+        final long[] counts = new long[nrRules];
+        final String[] firstMatches = new String[nrRules];
+        // the index of the first match, its key is looked up later if the
+        // batch has no rows
+        final int[] firstRows = new int[nrRules];
+        Arrays.fill(firstRows, -1);
+        final double rowCount = table.getRowCount();
+
+        RuleEngine.BatchJob<RuleEngine.MatchCounts> job =
+                new RuleEngine.BatchJob<RuleEngine.MatchCounts>() {
+            @Override
+            RuleEngine.MatchCounts evaluate(final RowBatch batch) {
+                return engine.countMatches(batch);
+            }
+
+            @Override
+            boolean consume(final RowBatch batch,
+                    final RuleEngine.MatchCounts result)
+                    throws CanceledExecutionException {
+                if ((sample != null) && batch.hasRows()) {
+                    sample.offer(batch);
+                }
+                for (int r = 0; r < nrRules; r++) {
+                    counts[r] += result.m_counts[r];
+                    // the batches arrive in order, so the first one with a
+                    // match contains the first match
+                    if ((firstRows[r] < 0) && (result.m_firstRows[r] >= 0)) {
+                        firstRows[r] =
+                                batch.getFirstIndex() + result.m_firstRows[r];
+                        if (batch.hasRows()) {
+                            firstMatches[r] = batch.getRow(
+                                    result.m_firstRows[r]).getKey()
+                                    .getString();
+                        }
+                    }
+                }
+
+                exec.checkCanceled();
+                int rowNumber = batch.getFirstIndex() + batch.size();
+                if (engine.canStop(batch)) {
+                    exec.setProgress(1, "Stopped at row " + rowNumber
+                            + ", no later row can match");
+                    return false;
+                }
+                exec.setProgress(rowNumber / rowCount, "Evaluated "
+                        + rowNumber + " rows");
+                return true;
+            }
+        };
+
+        if (engine.canScanCache()) {
+            exec.setMessage("Evaluating the cached columns");
+            engine.scanCache(table.getRowCount(), job);
+            findKeys(table, firstRows, firstMatches);
+            // the sample of the earlier execution on this table is kept
+        } else {
+            CloseableRowIterator it = table.iterator();
+            try {
+                engine.scan(it, table.getRowCount(), job);
+            } finally {
+                it.close();
+            }
+            SampleCache.store(sample, exec);
+        }
+
+        BufferedDataContainer summary =
+                exec.createDataContainer(createSummarySpec());
+        int r = 0;
+        for (String rule : m_settings.rules()) {
+            DataCell selectivity = (rowCount > 0)
+                    ? new DoubleCell(counts[r] / rowCount)
+                    : DataType.getMissingCell();
+            DataCell first = (firstMatches[r] != null)
+                    ? new StringCell(firstMatches[r])
+                    : DataType.getMissingCell();
+            summary.addRowToTable(new DefaultRow(new RowKey("Rule " + r),
+                    new StringCell(rule), new LongCell(counts[r]),
+                    selectivity, first));
+            r++;
+        }
+        summary.close();
+
+        BufferedDataTable[] outTables =
+                new BufferedDataTable[getNrOutPorts()];
+        outTables[0] = summary.getTable();
+        for (int i = 1; i < outTables.length; i++) {
+            BufferedDataContainer empty =
+                    exec.createDataContainer(table.getDataTableSpec());
+            empty.close();
+            outTables[i] = empty.getTable();
+        }
+        return outTables;
+    }
+
+    /**
+     * Looks up the keys of the first matching rows that are only known by
+     * their index. The table is read up to the last of these rows.
+     *
+     * @param table the input table
+     * @param firstRows the index of each rule's first match, -1 if none
+     * @param keys the key of each rule's first match, the missing keys are
+     *            filled in
+     */
+    private static void findKeys(final BufferedDataTable table,
+            final int[] firstRows, final String[] keys) {
+        int last = -1;
+        for (int r = 0; r < keys.length; r++) {
+            if (keys[r] == null) {
+                last = Math.max(last, firstRows[r]);
+            }
+        }
+        if (last < 0) {
+            return;
+        }
+        CloseableRowIterator it = table.iterator();
+        try {
+            for (int i = 0; (i <= last) && it.hasNext(); i++) {
+                DataRow row = it.next();
+                for (int r = 0; r < keys.length; r++) {
+                    if ((keys[r] == null) && (firstRows[r] == i)) {
+                        keys[r] = row.getKey().getString();
+                    }
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -130,6 +604,23 @@ public class RuleSelectNodeModel extends NodeModel {
     protected void loadInternals(final File nodeInternDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
+        File file = new File(nodeInternDir, INTERNALS_FILE);
+        if (!file.exists()) {
+            // saved by an earlier version without the tier
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            NodeSettingsRO internals = NodeSettings.loadFromXML(in);
+            String tier = internals.getString(CFG_TIER, null);
+            m_tier = (tier != null) ? RuleEngine.Tier.valueOf(tier) : null;
+            m_tierReason = internals.getString(CFG_TIER_REASON, null);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unknown execution tier: "
+                    + ex.getMessage());
+        } finally {
+            in.close();
+        }
     }
 
     /**
@@ -146,6 +637,27 @@ public class RuleSelectNodeModel extends NodeModel {
      */
     @Override
     protected void reset() {
+        m_tier = null;
+        m_tierReason = null;
+    }
+
+    /**
+     * Returns the way in which the rules were evaluated in the last
+     * execution.
+     *
+     * @return the tier, <code>null</code> if the node has not been executed
+     */
+    RuleEngine.Tier getTier() {
+        return m_tier;
+    }
+
+    /**
+     * Returns why the tier of the last execution was chosen.
+     *
+     * @return the reason, <code>null</code> if the node has not been executed
+     */
+    String getTierReason() {
+        return m_tierReason;
     }
 
     /**
@@ -155,6 +667,17 @@ public class RuleSelectNodeModel extends NodeModel {
     protected void saveInternals(final File nodeInternDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
+        NodeSettings internals = new NodeSettings("internals");
+        internals.addString(CFG_TIER,
+                (m_tier != null) ? m_tier.name() : null);
+        internals.addString(CFG_TIER_REASON, m_tierReason);
+        OutputStream out = new FileOutputStream(
+                new File(nodeInternDir, INTERNALS_FILE));
+        try {
+            internals.saveToXML(out);
+        } finally {
+            out.close();
+        }
     }
 
     /**
@@ -1,25 +1,37 @@
 package jp.co.recruit.hadoop.ruleselect;
 
+import java.awt.BorderLayout;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
 import org.knime.core.node.NodeView;
 
 /**
  * <code>NodeView</code> for the "RuleSelect" Node.
- * File row filter. 
+ * Shows how the rules were evaluated in the last execution.
  *
  * @author Krishna
  */
 public class RuleSelectNodeView extends NodeView<RuleSelectNodeModel> {
+    private final JLabel m_tier = new JLabel();
+
+    private final JLabel m_reason = new JLabel();
 
     /**
      * Creates a new view.
-     * 
+     *
      * @param nodeModel The model (class: {@link RuleSelectNodeModel})
      */
     protected RuleSelectNodeView(final RuleSelectNodeModel nodeModel) {
         super(nodeModel);
 
-        // TODO instantiate the components of the view here.
-
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(m_tier, BorderLayout.NORTH);
+        panel.add(m_reason, BorderLayout.CENTER);
+        setComponent(panel);
     }
 
     /**
@@ -27,16 +39,23 @@ public class RuleSelectNodeView extends NodeView<RuleSelectNodeModel> {
      */
     @Override
     protected void modelChanged() {
-
-        // TODO retrieve the new model from your nodemodel and 
-        // update the view.
-        RuleSelectNodeModel nodeModel = 
+        RuleSelectNodeModel nodeModel =
             (RuleSelectNodeModel)getNodeModel();
         assert nodeModel != null;
-        
+
         // be aware of a possibly not executed nodeModel! The data you retrieve
         // from your nodemodel could be null, emtpy, or invalid in any kind.
-        
+        RuleEngine.Tier tier = nodeModel.getTier();
+        if (tier == null) {
+            m_tier.setText("The rules have not been evaluated yet");
+            m_reason.setText("");
+        } else if (tier == RuleEngine.Tier.INTERPRETED) {
+            m_tier.setText("Execution tier: interpreted, row by row");
+            m_reason.setText(nodeModel.getTierReason());
+        } else {
+            m_tier.setText("Execution tier: compiled, batch by batch");
+            m_reason.setText(nodeModel.getTierReason());
+        }
     }
 
     /**
@@ -44,8 +63,6 @@ public class RuleSelectNodeView extends NodeView<RuleSelectNodeModel> {
      */
     @Override
     protected void onClose() {
-    
-        // TODO things to do when closing the view
     }
 
     /**
@@ -53,9 +70,7 @@ public class RuleSelectNodeView extends NodeView<RuleSelectNodeModel> {
      */
     @Override
     protected void onOpen() {
-
-        // TODO things to do when opening the view
+        modelChanged();
     }
 
 }
-
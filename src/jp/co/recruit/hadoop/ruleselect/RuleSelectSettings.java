@@ -12,16 +12,66 @@ import org.knime.core.node.NodeSettingsWO;
  * @author Krishna
  */
 public class RuleSelectSettings {
+    /**
+     * The ways in which the node can process the input table.
+     */
+    public enum Mode {
+        /** Selects (or routes) the rows matched by the rules. */
+        FILTER("Select matching rows"),
+        /** Only counts the rows each rule matches. */
+        COUNT("Count matches only"),
+        /**
+         * Keeps all rows and appends the outcome of the first matching rule.
+         */
+        LABEL("Append outcome of first matching rule");
+
+        private final String m_description;
+
+        private Mode(final String description) {
+            m_description = description;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return m_description;
+        }
+    }
 
     private final ArrayList<String> m_rules = new ArrayList<String>();
 
+    private Mode m_mode = Mode.FILTER;
+
+    private int m_maxRows;
+
+    private String m_labelColumn = "Label";
+
+    private String m_sortColumn = "";
+
+    private boolean m_cacheColumns;
+
+    private final ArrayList<Integer> m_ports = new ArrayList<Integer>();
+
     /**
-     * Adds a rule.
+     * Adds a rule that selects rows for the first output port.
      *
      * @param rule the rule string
      */
     public void addRule(final String rule) {
+        addRule(rule, 0);
+    }
+
+    /**
+     * Adds a rule that routes the rows it matches to the given output port.
+     *
+     * @param rule the rule string
+     * @param port the index of the output port
+     */
+    public void addRule(final String rule, final int port) {
         m_rules.add(rule);
+        m_ports.add(port);
     }
 
     /**
@@ -29,6 +79,113 @@ public class RuleSelectSettings {
      */
     public void clearRules() {
         m_rules.clear();
+        m_ports.clear();
+    }
+
+    /**
+     * Returns the output port to which the rows matched by a rule are routed.
+     *
+     * @param index the rule's index
+     * @return the index of the output port
+     */
+    public int getPort(final int index) {
+        return m_ports.get(index);
+    }
+
+    /**
+     * Returns the way in which the input table is processed.
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return m_mode;
+    }
+
+    /**
+     * Sets the way in which the input table is processed.
+     *
+     * @param mode the mode
+     */
+    public void setMode(final Mode mode) {
+        m_mode = mode;
+    }
+
+    /**
+     * Returns the number of matching rows after which the node stops reading
+     * the input table.
+     *
+     * @return the maximum number of output rows, 0 if there is no limit
+     */
+    public int getMaxRows() {
+        return m_maxRows;
+    }
+
+    /**
+     * Sets the number of matching rows after which the node stops reading the
+     * input table.
+     *
+     * @param maxRows the maximum number of output rows, 0 for no limit
+     */
+    public void setMaxRows(final int maxRows) {
+        m_maxRows = maxRows;
+    }
+
+    /**
+     * Returns the name of the column with the rule outcomes in label mode.
+     *
+     * @return the column name
+     */
+    public String getLabelColumn() {
+        return m_labelColumn;
+    }
+
+    /**
+     * Sets the name of the column with the rule outcomes in label mode.
+     *
+     * @param labelColumn the column name
+     */
+    public void setLabelColumn(final String labelColumn) {
+        m_labelColumn = labelColumn;
+    }
+
+    /**
+     * Returns the name of the column the input table is sorted by.
+     *
+     * @return the column name, an empty string if the sort order is not
+     *         known
+     */
+    public String getSortColumn() {
+        return m_sortColumn;
+    }
+
+    /**
+     * Sets the name of the column the input table is sorted by (ascending).
+     *
+     * @param sortColumn the column name, an empty string if the sort order is
+     *            not known
+     */
+    public void setSortColumn(final String sortColumn) {
+        m_sortColumn = sortColumn;
+    }
+
+    /**
+     * Returns if a columnar copy of the compared columns is kept for
+     * repeated executions on the same input table.
+     *
+     * @return <code>true</code> if the columns are cached
+     */
+    public boolean getCacheColumns() {
+        return m_cacheColumns;
+    }
+
+    /**
+     * Sets if a columnar copy of the compared columns is kept for repeated
+     * executions on the same input table.
+     *
+     * @param cacheColumns <code>true</code> if the columns should be cached
+     */
+    public void setCacheColumns(final boolean cacheColumns) {
+        m_cacheColumns = cacheColumns;
     }
 
     /**
@@ -40,6 +197,15 @@ public class RuleSelectSettings {
         return m_rules;
     }
 
+    /**
+     * Returns the number of rules.
+     *
+     * @return the number of rules
+     */
+    public int getNrRules() {
+        return m_rules.size();
+    }
+
     /**
      * Loads the settings from the settings object.
      *
@@ -49,11 +215,34 @@ public class RuleSelectSettings {
     public void loadSettings(final NodeSettingsRO settings)
             throws InvalidSettingsException {
         String[] rules = settings.getStringArray("rules");
+        // added with the routing mode, older settings route everything to
+        // the first port
+        int[] ports = settings.getIntArray("rulePorts", new int[0]);
 
-        m_rules.clear();
-        for (String r : rules) {
-            m_rules.add(r);
+        clearRules();
+        for (int i = 0; i < rules.length; i++) {
+            addRule(rules[i], (i < ports.length) ? ports[i] : 0);
+        }
+        try {
+            m_mode = Mode.valueOf(settings.getString("mode",
+                    Mode.FILTER.name()));
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidSettingsException("Unknown mode: "
+                    + settings.getString("mode", null));
         }
+        m_maxRows = settings.getInt("maxRows", 0);
+        if (m_maxRows < 0) {
+            throw new InvalidSettingsException(
+                    "The maximum number of rows must not be negative: "
+                            + m_maxRows);
+        }
+        m_labelColumn = settings.getString("labelColumn", "Label");
+        if ((m_labelColumn == null) || (m_labelColumn.trim().length() == 0)) {
+            throw new InvalidSettingsException(
+                    "The label column needs a name");
+        }
+        m_sortColumn = settings.getString("sortColumn", "");
+        m_cacheColumns = settings.getBoolean("cacheColumns", false);
     }
 
     /**
@@ -64,11 +253,22 @@ public class RuleSelectSettings {
      */
     public void loadSettingsForDialog(final NodeSettingsRO settings) {
         String[] rules = settings.getStringArray("rules", new String[0]);
+        int[] ports = settings.getIntArray("rulePorts", new int[0]);
 
-        m_rules.clear();
-        for (String r : rules) {
-            m_rules.add(r);
+        clearRules();
+        for (int i = 0; i < rules.length; i++) {
+            addRule(rules[i], (i < ports.length) ? ports[i] : 0);
         }
+        try {
+            m_mode = Mode.valueOf(settings.getString("mode",
+                    Mode.FILTER.name()));
+        } catch (IllegalArgumentException ex) {
+            m_mode = Mode.FILTER;
+        }
+        m_maxRows = Math.max(0, settings.getInt("maxRows", 0));
+        m_labelColumn = settings.getString("labelColumn", "Label");
+        m_sortColumn = settings.getString("sortColumn", "");
+        m_cacheColumns = settings.getBoolean("cacheColumns", false);
      }
 
     /**
@@ -79,6 +279,16 @@ public class RuleSelectSettings {
     public void saveSettings(final NodeSettingsWO settings) {
         settings.addStringArray("rules", m_rules.toArray(new String[m_rules
                 .size()]));
+        int[] ports = new int[m_ports.size()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = m_ports.get(i);
+        }
+        settings.addIntArray("rulePorts", ports);
+        settings.addString("mode", m_mode.name());
+        settings.addInt("maxRows", m_maxRows);
+        settings.addString("labelColumn", m_labelColumn);
+        settings.addString("sortColumn", m_sortColumn);
+        settings.addBoolean("cacheColumns", m_cacheColumns);
      }
 }
 
@@ -0,0 +1,539 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.NodeLogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A headless server that evaluates rules on single records or small sets of
+ * records, outside of KNIME. The server only listens on the loopback
+ * interface. It answers the following HTTP requests:
+ * <dl>
+ * <dt><tt>POST /match</tt></dt>
+ * <dd>Evaluates the rules on the records in the body and returns the indices
+ * of the rules each record matches, in ascending order; the index of a rule
+ * is its position among the non-empty lines of the rules. With the content
+ * type <tt>application/json</tt> the body is a JSON object, or an array of
+ * objects, whose keys are column names; missing keys are missing values. The
+ * answer is <tt>{"matches":[[0,3],[]]}</tt>. With the content type
+ * <tt>application/octet-stream</tt> the body is the number of records as an
+ * int followed by the records in the binary format of
+ * {@link RecordSchema}; the answer is, for each record, the number of
+ * matching rules as an int followed by their indices as ints.</dd>
+ * <dt><tt>PUT /rules</tt></dt>
+ * <dd>Replaces the rules by the rules in the body, one per line. Requests
+ * that are being evaluated still use the old rules.</dd>
+ * <dt><tt>GET /stats</tt></dt>
+ * <dd>Returns the latency histograms of the requests and of the evaluated
+ * batches in microseconds, see {@link LatencyHistogram}.</dd>
+ * </dl>
+ * Records of concurrent requests are evaluated together: while the workers
+ * evaluate a batch, new requests queue up, and a free worker takes all
+ * queued requests at once as its next batch. A request is never delayed to
+ * wait for others, so a single request is evaluated as soon as it arrives.
+ * Requests with more records than a batch holds are evaluated in several
+ * batches.
+ * <br />
+ * The server uses the HTTP server of the JDK, <tt>com.sun.net.httpserver</tt>,
+ * which is not part of the JavaSE-1.6 execution environment. It therefore
+ * needs a Sun, Oracle or OpenJDK runtime; the bundle imports the package
+ * optionally, so that the nodes also resolve on other runtimes.
+ * <br />
+ * Usage: <tt>RuleServer &lt;port&gt; &lt;schema&gt; &lt;rule file&gt;</tt>,
+ * the port 0 selects a free port.
+ *
+ * @author Krishna
+ */
+public final class RuleServer {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(RuleServer.class);
+
+    /** The number of records up to which queued requests are combined. */
+    static final int MAX_BATCH_SIZE = RuleEngine.BATCH_SIZE;
+
+    private static final String JSON = "application/json";
+
+    private static final String BINARY = "application/octet-stream";
+
+    private final RecordSchema m_schema;
+
+    /** The rules, replaced as a whole. */
+    private final AtomicReference<RuleEngine> m_engine =
+            new AtomicReference<RuleEngine>();
+
+    private final BlockingQueue<Request> m_queue =
+            new LinkedBlockingQueue<Request>();
+
+    private final LatencyHistogram m_requestLatency = new LatencyHistogram();
+
+    private final LatencyHistogram m_batchLatency = new LatencyHistogram();
+
+    private final AtomicLong m_nrRecords = new AtomicLong();
+
+    private final AtomicLong m_nrBatches = new AtomicLong();
+
+    private final HttpServer m_server;
+
+    private final ExecutorService m_handlers;
+
+    private final List<Thread> m_workers = new ArrayList<Thread>();
+
+    /**
+     * Records that wait to be evaluated and, once they are, their matches.
+     */
+    private static final class Request {
+        private final DataRow[] m_rows;
+
+        private final CountDownLatch m_done = new CountDownLatch(1);
+
+        private int[][] m_matches;
+
+        private RuntimeException m_error;
+
+        Request(final DataRow[] rows) {
+            m_rows = rows;
+        }
+    }
+
+    /**
+     * Creates a new server and starts it.
+     *
+     * @param port the port, 0 for any free port
+     * @param schema the columns of the records
+     * @param rules the rules, one per line
+     * @param nrWorkers the number of threads that evaluate the rules
+     * @throws IOException if the port cannot be bound
+     * @throws ParseException if a rule contains a syntax error
+     */
+    RuleServer(final int port, final RecordSchema schema, final String rules,
+            final int nrWorkers) throws IOException, ParseException {
+        m_schema = schema;
+        setRules(rules);
+        m_server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port), 0);
+        m_server.createContext("/match", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                handleMatch(exchange);
+            }
+        });
+        m_server.createContext("/rules", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                handleRules(exchange);
+            }
+        });
+        m_server.createContext("/stats", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                handleStats(exchange);
+            }
+        });
+        // the handlers wait for the workers, therefore they need own threads
+        m_handlers = Executors.newCachedThreadPool(
+                newThreadFactory("RuleServer handler"));
+        m_server.setExecutor(m_handlers);
+        ThreadFactory factory = newThreadFactory("RuleServer worker");
+        for (int i = 0; i < nrWorkers; i++) {
+            Thread t = factory.newThread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+            m_workers.add(t);
+            t.start();
+        }
+        m_server.start();
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the port
+     */
+    int getPort() {
+        return m_server.getAddress().getPort();
+    }
+
+    /**
+     * Replaces the rules.
+     *
+     * @param rules the new rules, one per line
+     * @return the number of rules
+     * @throws ParseException if a rule contains a syntax error; the old rules
+     *             are kept
+     */
+    int setRules(final String rules) throws ParseException {
+        List<Rule> list;
+        try {
+            list = Rule.readRules(new BufferedReader(new StringReader(rules)),
+                    m_schema.getSpec());
+        } catch (IOException ex) {
+            // cannot happen with a string
+            throw new IllegalStateException(ex);
+        }
+        // records are evaluated in small batches by the workers themselves
+        m_engine.set(new RuleEngine(list, 1));
+        LOGGER.info("Serving " + list.size() + " rules");
+        return list.size();
+    }
+
+    /**
+     * Stops the server. Requests that are being handled are answered.
+     */
+    void stop() {
+        m_server.stop(1);
+        for (Thread t : m_workers) {
+            t.interrupt();
+        }
+        m_handlers.shutdown();
+    }
+
+    /**
+     * Evaluates the rules on records. The records are queued and evaluated
+     * together with the records of other requests.
+     *
+     * @param rows the records
+     * @return the indices of the rules each record matches
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    int[][] match(final DataRow[] rows) throws InterruptedException {
+        Request request = new Request(rows);
+        m_queue.put(request);
+        request.m_done.await();
+        if (request.m_error != null) {
+            throw request.m_error;
+        }
+        return request.m_matches;
+    }
+
+    /*
+     * Evaluates the queued requests, all that are waiting at once.
+     */
+    private void work() {
+        List<Request> requests = new ArrayList<Request>();
+        try {
+            while (true) {
+                requests.clear();
+                Request r = m_queue.take();
+                int size = 0;
+                do {
+                    requests.add(r);
+                    size += r.m_rows.length;
+                } while ((size < MAX_BATCH_SIZE)
+                        && ((r = m_queue.poll()) != null));
+                evaluate(requests, size);
+            }
+        } catch (InterruptedException ex) {
+            // the server stops
+        }
+    }
+
+    private void evaluate(final List<Request> requests, final int size) {
+        long start = System.nanoTime();
+        try {
+            DataRow[] rows = new DataRow[size];
+            int i = 0;
+            for (Request r : requests) {
+                System.arraycopy(r.m_rows, 0, rows, i, r.m_rows.length);
+                i += r.m_rows.length;
+            }
+            // all records are evaluated with the same rules, a request with
+            // more records than a batch holds in several batches
+            RuleEngine engine = m_engine.get();
+            int[][] matches = new int[size][];
+            for (int from = 0; from < size; from += MAX_BATCH_SIZE) {
+                int n = Math.min(MAX_BATCH_SIZE, size - from);
+                RowBatch batch = new RowBatch(n, from);
+                for (int k = from; k < from + n; k++) {
+                    batch.add(rows[k]);
+                }
+                System.arraycopy(engine.allMatches(batch), 0, matches, from,
+                        n);
+            }
+            i = 0;
+            for (Request r : requests) {
+                r.m_matches = new int[r.m_rows.length][];
+                System.arraycopy(matches, i, r.m_matches, 0, r.m_rows.length);
+                i += r.m_rows.length;
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.error("Could not evaluate the rules: " + ex.getMessage(),
+                    ex);
+            for (Request r : requests) {
+                r.m_error = ex;
+            }
+        }
+        for (Request r : requests) {
+            r.m_done.countDown();
+        }
+        m_batchLatency.record(System.nanoTime() - start);
+        m_nrBatches.incrementAndGet();
+        m_nrRecords.addAndGet(size);
+    }
+
+    private void handleMatch(final HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use POST");
+                return;
+            }
+            byte[] body = readAll(exchange.getRequestBody());
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean binary = (type != null) && type.startsWith(BINARY);
+            DataRow[] rows;
+            try {
+                rows = binary ? readBinary(body)
+                        : readJson(new String(body, "UTF-8"));
+            } catch (ParseException ex) {
+                send(exchange, 400, ex.getMessage());
+                return;
+            }
+            int[][] matches;
+            try {
+                matches = match(rows);
+            } catch (InterruptedException ex) {
+                send(exchange, 503, "The server is stopping");
+                return;
+            } catch (RuntimeException ex) {
+                send(exchange, 500, String.valueOf(ex.getMessage()));
+                return;
+            }
+            if (binary) {
+                send(exchange, 200, BINARY, writeBinary(matches));
+            } else {
+                send(exchange, 200, JSON,
+                        writeJson(matches).getBytes("UTF-8"));
+            }
+        } finally {
+            exchange.close();
+            m_requestLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void handleRules(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"PUT".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use PUT");
+                return;
+            }
+            String rules =
+                    new String(readAll(exchange.getRequestBody()), "UTF-8");
+            try {
+                send(exchange, 200, JSON, ("{\"rules\":" + setRules(rules)
+                        + "}").getBytes("UTF-8"));
+            } catch (ParseException ex) {
+                send(exchange, 400, ex.getMessage());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(final HttpExchange exchange) throws IOException {
+        try {
+            String stats = "{\"rules\":" + m_engine.get().getNrRules()
+                    + ",\"records\":" + m_nrRecords.get() + ",\"batches\":"
+                    + m_nrBatches.get() + ",\"requestLatency\":"
+                    + m_requestLatency.toJson() + ",\"batchLatency\":"
+                    + m_batchLatency.toJson() + "}";
+            send(exchange, 200, JSON, stats.getBytes("UTF-8"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final int status,
+            final String message) throws IOException {
+        send(exchange, status, "text/plain; charset=UTF-8",
+                message.getBytes("UTF-8"));
+    }
+
+    private static void send(final HttpExchange exchange, final int status,
+            final String type, final byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts JSON records into rows.
+     *
+     * @param json an object or an array of objects
+     * @return the rows
+     * @throws ParseException if the JSON is invalid or does not fit the schema
+     */
+    DataRow[] readJson(final String json) throws ParseException {
+        Object value = JsonReader.parse(json);
+        List<?> records = (value instanceof List) ? (List<?>)value : null;
+        int n = (records == null) ? 1 : records.size();
+        DataRow[] rows = new DataRow[n];
+        for (int i = 0; i < n; i++) {
+            Object record = (records == null) ? value : records.get(i);
+            if (!(record instanceof Map)) {
+                throw new ParseException("Record " + i
+                        + " is not a JSON object", 0);
+            }
+            Map<?, ?> map = (Map<?, ?>)record;
+            for (Object key : map.keySet()) {
+                if (m_schema.findColumn((String)key) < 0) {
+                    throw new ParseException("Unknown column '" + key + "'",
+                            0);
+                }
+            }
+            DataCell[] cells = new DataCell[m_schema.getNrColumns()];
+            for (int c = 0; c < cells.length; c++) {
+                cells[c] = m_schema.convert(c, map.get(m_schema.getName(c)));
+            }
+            rows[i] = new DefaultRow("Record" + i, cells);
+        }
+        return rows;
+    }
+
+    /**
+     * Converts binary records into rows.
+     *
+     * @param body the number of records followed by the records
+     * @return the rows
+     * @throws ParseException if the body ends too early
+     */
+    DataRow[] readBinary(final byte[] body) throws ParseException {
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(body));
+        try {
+            int n = in.readInt();
+            if ((n < 0) || (n > body.length)) {
+                throw new ParseException("Invalid number of records " + n, 0);
+            }
+            DataRow[] rows = new DataRow[n];
+            for (int i = 0; i < n; i++) {
+                DataCell[] cells = new DataCell[m_schema.getNrColumns()];
+                for (int c = 0; c < cells.length; c++) {
+                    cells[c] = m_schema.read(c, in);
+                }
+                rows[i] = new DefaultRow("Record" + i, cells);
+            }
+            return rows;
+        } catch (EOFException ex) {
+            throw new ParseException("The records end too early",
+                    body.length);
+        } catch (IOException ex) {
+            throw new ParseException(ex.getMessage(), 0);
+        }
+    }
+
+    private static String writeJson(final int[][] matches) {
+        StringBuilder b = new StringBuilder("{\"matches\":[");
+        for (int i = 0; i < matches.length; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append('[');
+            for (int j = 0; j < matches[i].length; j++) {
+                if (j > 0) {
+                    b.append(',');
+                }
+                b.append(matches[i][j]);
+            }
+            b.append(']');
+        }
+        return b.append("]}").toString();
+    }
+
+    private static byte[] writeBinary(final int[][] matches)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int[] m : matches) {
+            out.writeInt(m.length);
+            for (int r : m) {
+                out.writeInt(r);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Starts a server.
+     *
+     * @param args the port, the schema and the rule file
+     * @throws Exception if the server cannot be started
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: RuleServer <port> <schema> "
+                    + "<rule file>");
+            System.err.println("  schema: name:kind,... with kind one of "
+                    + "boolean, int, long, double, date, string");
+            System.exit(1);
+        }
+        RecordSchema schema = RecordSchema.parse(args[1]);
+        String rules;
+        InputStream in = new FileInputStream(args[2]);
+        try {
+            rules = new String(readAll(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+        RuleServer server = new RuleServer(Integer.parseInt(args[0]), schema,
+                rules, Runtime.getRuntime().availableProcessors());
+        // the server's dispatcher thread keeps the VM running
+        System.out.println("Listening on http://127.0.0.1:"
+                + server.getPort() + "/");
+    }
+}
@@ -0,0 +1,134 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.knime.core.data.DataTableSpec;
+
+/**
+ * Parses rules for the dialog and remembers the result for each rule string,
+ * so that after an edit only the changed rule has to be parsed again. The
+ * results are only valid for one table spec; if the spec changes, all rules
+ * are parsed again. Rules with a relative date window are not remembered,
+ * since their window is fixed when they are parsed. This class may be used
+ * from several threads.
+ *
+ * @author Krishna
+ */
+final class RuleValidator {
+    /** The maximum number of remembered results. */
+    private static final int MAX_RESULTS = 100000;
+
+    private final Map<String, Result> m_results =
+            new LinkedHashMap<String, Result>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, Result> eldest) {
+                    return size() > MAX_RESULTS;
+                }
+            };
+
+    private DataTableSpec m_spec;
+
+    /**
+     * The result of parsing a rule: either the rule, or the error message and
+     * its position in the rule string.
+     */
+    static final class Result {
+        private final Rule m_rule;
+
+        private final String m_error;
+
+        private final int m_offset;
+
+        private Result(final Rule rule, final String error, final int offset) {
+            m_rule = rule;
+            m_error = error;
+            m_offset = offset;
+        }
+
+        /**
+         * Returns the parsed rule.
+         *
+         * @return the rule, <code>null</code> if the rule is invalid
+         */
+        Rule getRule() {
+            return m_rule;
+        }
+
+        /**
+         * Returns if the result stays valid. The result of a rule with a
+         * relative date window is only valid at the time it is parsed.
+         *
+         * @return <code>true</code> if the result may be kept
+         * @see Rule#hasWindow()
+         */
+        boolean isReusable() {
+            return (m_rule == null) || !m_rule.hasWindow();
+        }
+
+        /**
+         * Returns the error message.
+         *
+         * @return the message, <code>null</code> if the rule is valid
+         */
+        String getError() {
+            return m_error;
+        }
+
+        /**
+         * Returns the position of the error in the rule string.
+         *
+         * @return the position, -1 if the rule is valid
+         */
+        int getOffset() {
+            return m_offset;
+        }
+    }
+
+    /**
+     * Sets the spec the rules are parsed against. The remembered results are
+     * discarded if the spec differs from the previous one.
+     *
+     * @param spec the input table's spec
+     */
+    synchronized void setSpec(final DataTableSpec spec) {
+        if ((m_spec == null) || !m_spec.equals(spec)) {
+            m_results.clear();
+        }
+        m_spec = spec;
+    }
+
+    /**
+     * Parses a rule, unless the same rule string has been parsed before.
+     *
+     * @param text the rule string (without the terminating quote)
+     * @return the result
+     */
+    Result validate(final String text) {
+        DataTableSpec spec;
+        synchronized (this) {
+            Result result = m_results.get(text);
+            if (result != null) {
+                return result;
+            }
+            spec = m_spec;
+        }
+
+        Result result;
+        try {
+            result = new Result(new Rule(text + "\"", spec), null, -1);
+        } catch (ParseException ex) {
+            result = new Result(null, ex.getMessage(), ex.getErrorOffset());
+        }
+
+        synchronized (this) {
+            // a result for an older spec must not be remembered
+            if ((m_spec == spec) && result.isReusable()) {
+                m_results.put(text, result);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,262 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.container.ContainerTable;
+import org.knime.core.data.container.DataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Keeps a small random sample of the last table the rules have been applied
+ * to, so that the dialog can estimate how many rows a rule matches without
+ * executing the node. The samples are stored on disk, keyed by the table's
+ * spec, and only the most recent ones are kept. A table that has already been
+ * sampled completely is not sampled again.
+ *
+ * @author Krishna
+ */
+final class SampleCache {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(SampleCache.class);
+
+    /** The maximum number of rows in a sample. */
+    static final int SAMPLE_SIZE = 1000;
+
+    /** The maximum number of samples that are kept. */
+    private static final int MAX_SAMPLES = 16;
+
+    private static final Map<DataTableSpec, StoredSample> SAMPLES =
+            new LinkedHashMap<DataTableSpec, StoredSample>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<DataTableSpec, StoredSample> eldest) {
+                    if (size() > MAX_SAMPLES) {
+                        eldest.getValue().m_file.delete();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * A sample on disk and the table it has been taken from.
+     */
+    private static final class StoredSample {
+        private final File m_file;
+
+        /** The id of the sampled table, -1 if the sample is incomplete. */
+        private final int m_tableId;
+
+        StoredSample(final File file, final int tableId) {
+            m_file = file;
+            m_tableId = tableId;
+        }
+    }
+
+    private SampleCache() {
+    }
+
+    /**
+     * Collects a uniform random sample of a bounded size from the rows of a
+     * table. The indices of the sampled rows are drawn in advance, so that
+     * offering the rows costs no more than comparing their indices. The rows
+     * have to be offered in the order of the table, by one thread at a time.
+     */
+    static final class Reservoir {
+        private final DataTableSpec m_spec;
+
+        private final int m_tableId;
+
+        /** The indices of the sampled rows in ascending order. */
+        private final long[] m_indices;
+
+        private final DataRow[] m_rows;
+
+        /** The number of sampled rows that have been offered. */
+        private int m_size;
+
+        /** The index of the next row offered by {@link #offer(DataRow)}. */
+        private long m_next;
+
+        private Reservoir(final BufferedDataTable table) {
+            m_spec = table.getDataTableSpec();
+            m_tableId = table.getBufferedTableId();
+            long rowCount = table.getRowCount();
+            if (rowCount <= SAMPLE_SIZE) {
+                m_indices = new long[(int)rowCount];
+                for (int i = 0; i < m_indices.length; i++) {
+                    m_indices[i] = i;
+                }
+            } else {
+                Random random = new Random();
+                TreeSet<Long> indices = new TreeSet<Long>();
+                while (indices.size() < SAMPLE_SIZE) {
+                    indices.add((long)(random.nextDouble() * rowCount));
+                }
+                m_indices = new long[SAMPLE_SIZE];
+                int i = 0;
+                for (long index : indices) {
+                    m_indices[i++] = index;
+                }
+            }
+            m_rows = new DataRow[m_indices.length];
+        }
+
+        /**
+         * Offers the next row of the table to the sample.
+         *
+         * @param row a row
+         */
+        void offer(final DataRow row) {
+            if ((m_size < m_indices.length) && (m_indices[m_size] == m_next)) {
+                m_rows[m_size++] = row;
+            }
+            m_next++;
+        }
+
+        /**
+         * Offers the rows of the next batch of the table to the sample.
+         *
+         * @param batch a batch with rows
+         */
+        void offer(final RowBatch batch) {
+            long end = batch.getFirstIndex() + batch.size();
+            while ((m_size < m_indices.length) && (m_indices[m_size] < end)) {
+                m_rows[m_size] = batch.getRow(
+                        (int)(m_indices[m_size] - batch.getFirstIndex()));
+                m_size++;
+            }
+            m_next = end;
+        }
+
+        /**
+         * Returns the sampled rows.
+         *
+         * @return a list of rows
+         */
+        List<DataRow> getRows() {
+            return new ArrayList<DataRow>(Arrays.asList(m_rows).subList(0,
+                    m_size));
+        }
+
+        /*
+         * Returns if all sampled rows have been offered.
+         */
+        private boolean isComplete() {
+            return m_size == m_indices.length;
+        }
+    }
+
+    /**
+     * Creates a sample of a table, unless the table has already been sampled
+     * completely.
+     *
+     * @param table a table
+     * @return a new sample, <code>null</code> if there is a sample of the
+     *         table
+     */
+    static Reservoir newReservoir(final BufferedDataTable table) {
+        synchronized (SAMPLES) {
+            StoredSample stored = SAMPLES.get(table.getDataTableSpec());
+            if ((stored != null)
+                    && (stored.m_tableId == table.getBufferedTableId())) {
+                return null;
+            }
+        }
+        return new Reservoir(table);
+    }
+
+    /**
+     * Stores a sample for its table's spec, replacing the previous sample for
+     * the same spec. Errors are only logged, because the sample is not needed
+     * for executing the node.
+     *
+     * @param sample the sample, <code>null</code> if the table has not been
+     *            sampled again
+     * @param exec an execution monitor for writing the sample
+     * @throws CanceledExecutionException if the execution has been canceled
+     */
+    static void store(final Reservoir sample, final ExecutionMonitor exec)
+            throws CanceledExecutionException {
+        if (sample == null) {
+            return;
+        }
+        DataContainer cont = new DataContainer(sample.m_spec);
+        for (DataRow row : sample.getRows()) {
+            cont.addRowToTable(row);
+        }
+        cont.close();
+        File file = null;
+        boolean stored = false;
+        try {
+            file = File.createTempFile("ruleselect-sample", ".zip");
+            DataContainer.writeToZip(cont.getTable(), file, exec);
+            // an incomplete sample, e.g. after the scan stopped early, is
+            // replaced by the next execution on the table
+            StoredSample entry = new StoredSample(file,
+                    sample.isComplete() ? sample.m_tableId : -1);
+            synchronized (SAMPLES) {
+                StoredSample old = SAMPLES.put(sample.m_spec, entry);
+                if (old != null) {
+                    old.m_file.delete();
+                }
+            }
+            stored = true;
+        } catch (IOException ex) {
+            LOGGER.warn("Could not store sample: " + ex.getMessage(), ex);
+        } finally {
+            if (!stored && (file != null)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the sample for a table spec from disk. This should not be called
+     * from the event dispatch thread.
+     *
+     * @param spec a table spec
+     * @return the sampled rows, or <code>null</code> if there is no sample
+     *         for the spec
+     */
+    static List<DataRow> load(final DataTableSpec spec) {
+        File file;
+        synchronized (SAMPLES) {
+            StoredSample stored = SAMPLES.get(spec);
+            file = (stored != null) ? stored.m_file : null;
+        }
+        if (file == null) {
+            return null;
+        }
+        try {
+            ContainerTable table = DataContainer.readFromZip(file);
+            List<DataRow> rows = new ArrayList<DataRow>();
+            CloseableRowIterator it = table.iterator();
+            try {
+                while (it.hasNext()) {
+                    rows.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            return rows;
+        } catch (IOException ex) {
+            LOGGER.warn("Could not read sample: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+import org.knime.core.data.DataCell;
+
+/**
+ * Normalizes the string values of a column for the case-insensitive
+ * operators: the values are brought into Unicode compatibility form (NFKC),
+ * so that e.g. full-width and half-width characters are equal, and converted
+ * to lower case. One normalizer is shared by all rules on a column and keeps
+ * the result for the last cell, so that each cell is normalized only once,
+ * however many rules compare it. This class may be used from several threads.
+ *
+ * @author Krishna
+ */
+final class StringNormalizer {
+    /** The last normalized cell and its value. */
+    private volatile Memo m_last;
+
+    private static final class Memo {
+        private final DataCell m_cell;
+
+        private final String m_value;
+
+        Memo(final DataCell cell, final String value) {
+            m_cell = cell;
+            m_value = value;
+        }
+    }
+
+    /**
+     * Normalizes a string. Constants in rules are normalized with this method
+     * when the rule is parsed.
+     *
+     * @param s a string
+     * @return the normalized string
+     */
+    static String normalize(final String s) {
+        return Normalizer.normalize(s, Normalizer.Form.NFKC).toLowerCase(
+                Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the normalized string value of a cell.
+     *
+     * @param cell a non-missing cell
+     * @return the normalized value
+     */
+    String normalize(final DataCell cell) {
+        Memo memo = m_last;
+        if ((memo == null) || (memo.m_cell != cell)) {
+            memo = new Memo(cell, normalize(cell.toString()));
+            m_last = memo;
+        }
+        return memo.m_value;
+    }
+}
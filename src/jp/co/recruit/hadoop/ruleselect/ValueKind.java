@@ -0,0 +1,184 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import org.knime.core.data.BooleanValue;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.date.DateAndTimeValue;
+
+/**
+ * The primitive representation in which rule nodes read the values of a
+ * column. The kind is derived once from the column's {@link DataType} while
+ * parsing, so that the nodes can read the primitive value directly instead of
+ * testing and casting on every row.
+ *
+ * @author Krishna
+ */
+enum ValueKind {
+    /** Boolean column, read via {@link BooleanValue}. */
+    BOOLEAN,
+    /** Integer column, read via {@link IntValue}. */
+    INT,
+    /** Long column, read via {@link LongValue}. */
+    LONG,
+    /** Any other numeric column, read via {@link DoubleValue}. */
+    DOUBLE,
+    /**
+     * Date and time column, read via {@link DateAndTimeValue} as milliseconds
+     * since the epoch (UTC).
+     */
+    DATE,
+    /** String column, read via {@link StringValue}. */
+    STRING,
+    /** Any other column. */
+    OTHER;
+
+    /**
+     * Returns the most specific kind the given type can be read as. Boolean
+     * cells are also compatible with the numeric values, therefore they are
+     * checked first.
+     *
+     * @param type a column type
+     * @return the value kind
+     */
+    static ValueKind of(final DataType type) {
+        if (type.isCompatible(BooleanValue.class)) {
+            return BOOLEAN;
+        } else if (type.isCompatible(IntValue.class)) {
+            return INT;
+        } else if (type.isCompatible(LongValue.class)) {
+            return LONG;
+        } else if (type.isCompatible(DoubleValue.class)) {
+            return DOUBLE;
+        } else if (type.isCompatible(DateAndTimeValue.class)) {
+            return DATE;
+        } else if (type.isCompatible(StringValue.class)) {
+            return STRING;
+        } else {
+            return OTHER;
+        }
+    }
+
+    /**
+     * Returns if columns of this kind can be used in numeric comparisons.
+     *
+     * @return <code>true</code> if the kind is numeric, <code>false</code>
+     *         otherwise
+     */
+    boolean isNumeric() {
+        return (this != DATE) && (this != STRING) && (this != OTHER);
+    }
+
+    /**
+     * Returns the kind in which values of two columns are compared with each
+     * other. Numeric columns are widened to the wider of both kinds, booleans
+     * count as 0 and 1. Two date columns are compared as longs by their
+     * milliseconds since the epoch. If the columns cannot be compared as primitives or
+     * strings, {@link #OTHER} is returned.
+     *
+     * @param left the kind of the left column
+     * @param right the kind of the right column
+     * @return the common kind
+     */
+    static ValueKind common(final ValueKind left, final ValueKind right) {
+        if (left.isNumeric() && right.isNumeric()) {
+            if ((left == DOUBLE) || (right == DOUBLE)) {
+                return DOUBLE;
+            } else if ((left == LONG) || (right == LONG)) {
+                return LONG;
+            } else {
+                return INT;
+            }
+        } else if ((left == DATE) && (right == DATE)) {
+            return LONG;
+        } else if ((left == STRING) && (right == STRING)) {
+            return STRING;
+        } else {
+            return OTHER;
+        }
+    }
+
+    /**
+     * Reads the value of a non-missing cell of this kind as an int. Booleans
+     * are read as 0 and 1.
+     *
+     * @param c a cell of this kind
+     * @return the value
+     */
+    int intValue(final DataCell c) {
+        if (this == BOOLEAN) {
+            return ((BooleanValue)c).getBooleanValue() ? 1 : 0;
+        }
+        return ((IntValue)c).getIntValue();
+    }
+
+    /**
+     * Reads the value of a non-missing cell of this kind as a long. Booleans
+     * are read as 0 and 1, dates as milliseconds since the epoch.
+     *
+     * @param c a cell of this kind
+     * @return the value
+     */
+    long longValue(final DataCell c) {
+        switch (this) {
+            case BOOLEAN:
+                return ((BooleanValue)c).getBooleanValue() ? 1 : 0;
+            case INT:
+                return ((IntValue)c).getIntValue();
+            case DATE:
+                return ((DateAndTimeValue)c).getUTCTimeInMillis();
+            default:
+                return ((LongValue)c).getLongValue();
+        }
+    }
+
+    /**
+     * Reads the value of a non-missing cell of this kind as a double.
+     * Booleans are read as 0 and 1.
+     *
+     * @param c a cell of this kind
+     * @return the value
+     */
+    double doubleValue(final DataCell c) {
+        if (this == BOOLEAN) {
+            return ((BooleanValue)c).getBooleanValue() ? 1 : 0;
+        }
+        return ((DoubleValue)c).getDoubleValue();
+    }
+
+    /**
+     * Widens a number parsed from a rule to the representation in which it is
+     * compared to a column of this kind. Integers compared to long columns
+     * become longs, everything compared to double columns becomes a double.
+     * Boolean columns are compared to the number as 0 and 1, the literal is
+     * kept unchanged.
+     *
+     * @param n a parsed number, either an {@link Integer}, a {@link Long} or
+     *            a {@link Double}
+     * @return the widened number
+     */
+    Number widen(final Number n) {
+        switch (this) {
+            case INT:
+                if (n instanceof Long) {
+                    return new Double(n.doubleValue());
+                }
+                return n;
+            case LONG:
+                if (n instanceof Integer) {
+                    return new Long(n.longValue());
+                }
+                return n;
+            case DOUBLE:
+                if (!(n instanceof Double)) {
+                    return new Double(n.doubleValue());
+                }
+                return n;
+            default:
+                return n;
+        }
+    }
+}
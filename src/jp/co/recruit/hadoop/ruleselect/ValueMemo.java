@@ -0,0 +1,183 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.knime.base.node.rules.RuleNode;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Remembers the results of the comparisons on a column for each distinct
+ * value, so that on a column with few distinct values an expensive comparison
+ * such as <tt>LIKE</tt> or <tt>IN</tt> is computed once per value instead of
+ * once per row. One memo is shared by all comparisons on a column and keeps a
+ * result vector per value, with one entry for each comparison. The value of
+ * the last row is checked first, so runs of equal values do not even need a
+ * hash lookup.
+ * <br />
+ * The memo holds at most {@link #MAX_VALUES} values. It watches its own hit
+ * rate and turns itself off for the rest of the execution if too few
+ * comparisons are answered from it, which is the case for columns with many
+ * distinct values. All comparisons have to be added before the first row is
+ * evaluated; after that, the memo may be used by several threads.
+ *
+ * @author Krishna
+ */
+final class ValueMemo {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(ValueMemo.class);
+
+    /** The maximum number of distinct values that are kept. */
+    static final int MAX_VALUES = 1024;
+
+    /** The number of lookups after which the hit rate is checked. */
+    private static final int WINDOW = 16384;
+
+    /** The hit rate below which the memo turns itself off. */
+    private static final double MIN_HIT_RATE = 0.75;
+
+    /** A result that has not been computed yet. */
+    private static final byte UNKNOWN = 0;
+
+    private static final byte FALSE = 1;
+
+    private static final byte TRUE = 2;
+
+    private final int m_col;
+
+    /** The number of comparisons, the length of the result vectors. */
+    private int m_nrComparisons;
+
+    private final ConcurrentHashMap<DataCell, byte[]> m_results =
+            new ConcurrentHashMap<DataCell, byte[]>();
+
+    private volatile boolean m_enabled = true;
+
+    /** The value of the last row and its results. */
+    private volatile Last m_last;
+
+    /*
+     * The counters are updated without synchronization, with several threads
+     * they are only estimates.
+     */
+    private int m_lookups;
+
+    private int m_hits;
+
+    private static final class Last {
+        private final DataCell m_cell;
+
+        private final byte[] m_results;
+
+        Last(final DataCell cell, final byte[] results) {
+            m_cell = cell;
+            m_results = results;
+        }
+    }
+
+    /**
+     * Creates a new memo.
+     *
+     * @param col the index of the column
+     */
+    ValueMemo(final int col) {
+        m_col = col;
+    }
+
+    /**
+     * Returns a node that evaluates a comparison on the memo's column through
+     * the memo. The comparison may only use the value of this column.
+     *
+     * @param node the comparison
+     * @return the memoizing node
+     */
+    RuleNode memoize(final RuleNode node) {
+        final int id = m_nrComparisons++;
+        return new RuleNode() {
+            public boolean evaluate(final DataRow row) {
+                if (!m_enabled) {
+                    return node.evaluate(row);
+                }
+                DataCell c = row.getCell(m_col);
+                if (c.isMissing()) {
+                    return node.evaluate(row);
+                }
+                return ValueMemo.this.evaluate(node, id, row, c);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String toString() {
+                return node.toString();
+            }
+        };
+    }
+
+    private boolean evaluate(final RuleNode node, final int id,
+            final DataRow row, final DataCell cell) {
+        byte[] results = getResults(cell);
+        if ((results == null) || (id >= results.length)) {
+            count(false);
+            return node.evaluate(row);
+        }
+        byte r = results[id];
+        if (r != UNKNOWN) {
+            count(true);
+            return r == TRUE;
+        }
+        count(false);
+        boolean b = node.evaluate(row);
+        // other threads may compute the same result, which is harmless
+        results[id] = b ? TRUE : FALSE;
+        return b;
+    }
+
+    /*
+     * Returns the result vector of a value, null if the memo is full.
+     */
+    private byte[] getResults(final DataCell cell) {
+        Last last = m_last;
+        if ((last != null)
+                && ((last.m_cell == cell) || last.m_cell.equals(cell))) {
+            return last.m_results;
+        }
+        byte[] results = m_results.get(cell);
+        if ((results == null) && (m_results.size() < MAX_VALUES)) {
+            results = new byte[m_nrComparisons];
+            byte[] other = m_results.putIfAbsent(cell, results);
+            if (other != null) {
+                results = other;
+            }
+        }
+        if (results != null) {
+            m_last = new Last(cell, results);
+        }
+        return results;
+    }
+
+    /*
+     * Counts a lookup and turns the memo off if the hit rate of the last
+     * window has been too low.
+     */
+    private void count(final boolean hit) {
+        if (hit) {
+            m_hits++;
+        }
+        if (++m_lookups < WINDOW) {
+            return;
+        }
+        double rate = (double)m_hits / m_lookups;
+        m_lookups = 0;
+        m_hits = 0;
+        if (rate < MIN_HIT_RATE) {
+            m_enabled = false;
+            m_last = null;
+            m_results.clear();
+            LOGGER.debug("Result memo for column " + m_col
+                    + " turned off, hit rate " + rate);
+        }
+    }
+}
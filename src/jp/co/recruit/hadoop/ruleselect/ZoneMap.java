@@ -0,0 +1,711 @@
+package jp.co.recruit.hadoop.ruleselect;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import jp.co.recruit.hadoop.ruleselect.Rule.Operators;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnDomain;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.BufferedDataTable;
+
+/**
+ * Minimum, maximum and number of missing values of the numeric and date
+ * columns of a table, for each block of {@link RuleEngine#BATCH_SIZE} rows.
+ * With these the comparisons of a rule can tell for a whole block that they
+ * match all rows or none, so that the rows of the block do not have to be
+ * evaluated. The statistics of a block are recorded while it is evaluated and
+ * used when the same table is processed again; the maps of the most recent
+ * tables are kept in memory. The map also tells if a column is sorted, and for
+ * a sorted batch the range of the sort column is known from its first and last
+ * row without any statistics. The bounds of the columns' domains in a table
+ * spec are turned into the same statistics, for all rows of the table. The
+ * statistics of a column can be written to a buffer and read back, e.g. by
+ * a {@link ColumnarFile}. This class may be used from several threads.
+ *
+ * @author Krishna
+ */
+final class ZoneMap {
+    /** The maximum number of maps that are kept. */
+    private static final int MAX_MAPS = 16;
+
+    private static final Map<Integer, ZoneMap> MAPS =
+            new LinkedHashMap<Integer, ZoneMap>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Integer, ZoneMap> eldest) {
+                    return size() > MAX_MAPS;
+                }
+            };
+
+    /**
+     * The number of bytes of a block's statistics in a buffer: a byte that is
+     * 1 if they are known, a byte that is 1 if the block is sorted, the
+     * number of missing values as an int and the minimum and maximum as
+     * longs, or as the bits of doubles.
+     */
+    static final int BLOCK_STATS_SIZE = 22;
+
+    /** A map without statistics, for zones that only know a range. */
+    private static final ZoneMap EMPTY = new ZoneMap(null, 0);
+
+    /**
+     * The outcome of a predicate for all rows of a block.
+     */
+    enum Truth {
+        /** The predicate matches all rows. */
+        ALWAYS,
+        /** The predicate matches no row. */
+        NEVER,
+        /** The predicate may match some rows. */
+        UNKNOWN;
+
+        /**
+         * Returns the outcome of the conjunction of two predicates.
+         *
+         * @param other the outcome of the other predicate
+         * @return the outcome
+         */
+        Truth and(final Truth other) {
+            if ((this == NEVER) || (other == NEVER)) {
+                return NEVER;
+            } else if ((this == ALWAYS) && (other == ALWAYS)) {
+                return ALWAYS;
+            }
+            return UNKNOWN;
+        }
+
+        /**
+         * Returns the outcome of the disjunction of two predicates.
+         *
+         * @param other the outcome of the other predicate
+         * @return the outcome
+         */
+        Truth or(final Truth other) {
+            if ((this == ALWAYS) || (other == ALWAYS)) {
+                return ALWAYS;
+            } else if ((this == NEVER) && (other == NEVER)) {
+                return NEVER;
+            }
+            return UNKNOWN;
+        }
+
+        /**
+         * Returns the outcome of the exclusive disjunction of two
+         * predicates.
+         *
+         * @param other the outcome of the other predicate
+         * @return the outcome
+         */
+        Truth xor(final Truth other) {
+            if ((this == UNKNOWN) || (other == UNKNOWN)) {
+                return UNKNOWN;
+            }
+            return (this == other) ? NEVER : ALWAYS;
+        }
+
+        /**
+         * Returns the outcome of the negated predicate.
+         *
+         * @return the outcome
+         */
+        Truth not() {
+            switch (this) {
+                case ALWAYS:
+                    return NEVER;
+                case NEVER:
+                    return ALWAYS;
+                default:
+                    return UNKNOWN;
+            }
+        }
+
+        /**
+         * Returns the outcome of a comparison with a constant, given the
+         * range of the values in a block.
+         *
+         * @param op the comparison
+         * @param min the smallest value
+         * @param max the largest value
+         * @param c the constant
+         * @return the outcome
+         */
+        static Truth compare(final Operators op, final double min,
+                final double max, final double c) {
+            switch (op) {
+                case GT:
+                    return of(min > c, max <= c);
+                case GE:
+                    return of(min >= c, max < c);
+                case LT:
+                    return of(max < c, min >= c);
+                case LE:
+                    return of(max <= c, min > c);
+                case EQ:
+                    return of((min == c) && (max == c), (c < min) || (c > max));
+                default:
+                    return UNKNOWN;
+            }
+        }
+
+        /**
+         * Returns the outcome of a comparison with a constant, given the
+         * range of the values in a block.
+         *
+         * @param op the comparison
+         * @param min the smallest value
+         * @param max the largest value
+         * @param c the constant
+         * @return the outcome
+         */
+        static Truth compare(final Operators op, final long min,
+                final long max, final long c) {
+            switch (op) {
+                case GT:
+                    return of(min > c, max <= c);
+                case GE:
+                    return of(min >= c, max < c);
+                case LT:
+                    return of(max < c, min >= c);
+                case LE:
+                    return of(max <= c, min > c);
+                case EQ:
+                    return of((min == c) && (max == c), (c < min) || (c > max));
+                default:
+                    return UNKNOWN;
+            }
+        }
+
+        private static Truth of(final boolean always, final boolean never) {
+            if (always) {
+                return ALWAYS;
+            } else if (never) {
+                return NEVER;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * The statistics of a column for all blocks. A block's values are only
+     * valid once its flag in {@link #m_known} is set.
+     */
+    private static final class ColumnZones {
+        private final ValueKind m_kind;
+
+        /**
+         * 1 for each block whose statistics have been recorded. The flag is
+         * set after the statistics, so that a thread that sees it also sees
+         * them.
+         */
+        private final AtomicIntegerArray m_known;
+
+        /** The number of missing values (and NaNs) per block. */
+        private final int[] m_nulls;
+
+        /** If the values of a block are in ascending order. */
+        private final boolean[] m_sorted;
+
+        private final long[] m_minLong;
+
+        private final long[] m_maxLong;
+
+        private final double[] m_minDouble;
+
+        private final double[] m_maxDouble;
+
+        ColumnZones(final ValueKind kind, final int nrBlocks) {
+            m_kind = kind;
+            m_known = new AtomicIntegerArray(nrBlocks);
+            m_nulls = new int[nrBlocks];
+            m_sorted = new boolean[nrBlocks];
+            if (kind == ValueKind.DOUBLE) {
+                m_minLong = null;
+                m_maxLong = null;
+                m_minDouble = new double[nrBlocks];
+                m_maxDouble = new double[nrBlocks];
+            } else {
+                m_minLong = new long[nrBlocks];
+                m_maxLong = new long[nrBlocks];
+                m_minDouble = null;
+                m_maxDouble = null;
+            }
+        }
+    }
+
+    /**
+     * The statistics of one block, as they are seen by the rule nodes.
+     */
+    final class Zone {
+        private final int m_block;
+
+        private final int m_size;
+
+        /** The column whose range is known besides the statistics, or -1. */
+        private final int m_rangeCol;
+
+        /** The range of that column, as a single block. */
+        private final ColumnZones m_range;
+
+        private Zone(final int block, final int size, final int rangeCol,
+                final ColumnZones range) {
+            m_block = block;
+            m_size = size;
+            m_rangeCol = rangeCol;
+            m_range = range;
+        }
+
+        /**
+         * Returns the outcome of a comparison of a column with a constant for
+         * the rows of this block.
+         *
+         * @param col the column's index
+         * @param op the comparison
+         * @param c the constant
+         * @return the outcome
+         */
+        Truth compare(final int col, final Operators op, final long c) {
+            ColumnZones z = getKnown(col);
+            if ((z == null) || (z.m_minLong == null)) {
+                return Truth.UNKNOWN;
+            }
+            int i = index(z);
+            return restrict(z, Truth.compare(op, z.m_minLong[i],
+                    z.m_maxLong[i], c));
+        }
+
+        /**
+         * Returns the outcome of a comparison of a column with a constant for
+         * the rows of this block.
+         *
+         * @param col the column's index
+         * @param op the comparison
+         * @param c the constant
+         * @return the outcome
+         */
+        Truth compare(final int col, final Operators op, final double c) {
+            ColumnZones z = getKnown(col);
+            if (z == null) {
+                return Truth.UNKNOWN;
+            }
+            int i = index(z);
+            if (z.m_minLong != null) {
+                return restrict(z, Truth.compare(op,
+                        (double)z.m_minLong[i],
+                        (double)z.m_maxLong[i], c));
+            }
+            return restrict(z, Truth.compare(op, z.m_minDouble[i],
+                    z.m_maxDouble[i], c));
+        }
+
+        /**
+         * Returns the outcome of a range test of a column for the rows of this
+         * block.
+         *
+         * @param col the column's index
+         * @param from the lower bound (inclusive)
+         * @param to the upper bound (inclusive)
+         * @return the outcome
+         */
+        Truth between(final int col, final long from, final long to) {
+            ColumnZones z = getKnown(col);
+            if ((z == null) || (z.m_minLong == null)) {
+                return Truth.UNKNOWN;
+            }
+            int i = index(z);
+            long min = z.m_minLong[i];
+            long max = z.m_maxLong[i];
+            return restrict(z, Truth.of((min >= from) && (max <= to),
+                    (max < from) || (min > to)));
+        }
+
+        private ColumnZones getKnown(final int col) {
+            if (col == m_rangeCol) {
+                return m_range;
+            }
+            ColumnZones z = m_columns.get(col);
+            return ((z != null) && (z.m_known.get(m_block) != 0)) ? z : null;
+        }
+
+        private int index(final ColumnZones z) {
+            return (z == m_range) ? 0 : m_block;
+        }
+
+        private ZoneMap getMap() {
+            return ZoneMap.this;
+        }
+
+        /*
+         * Comparisons never match missing values: a block with only missing
+         * values matches nothing, and one with some cannot match everything.
+         */
+        private Truth restrict(final ColumnZones z, final Truth t) {
+            int i = index(z);
+            if (z.m_nulls[i] == m_size) {
+                return Truth.NEVER;
+            } else if ((t == Truth.ALWAYS) && (z.m_nulls[i] > 0)) {
+                return Truth.UNKNOWN;
+            }
+            return t;
+        }
+    }
+
+    private final DataTableSpec m_spec;
+
+    private final int m_rowCount;
+
+    private final ConcurrentHashMap<Integer, ColumnZones> m_columns =
+            new ConcurrentHashMap<Integer, ColumnZones>();
+
+    private ZoneMap(final DataTableSpec spec, final int rowCount) {
+        m_spec = spec;
+        m_rowCount = rowCount;
+    }
+
+    /**
+     * Returns the map for a table. If the table has been processed before,
+     * the map contains the statistics that have been recorded then.
+     *
+     * @param table a table
+     * @return the map
+     */
+    static ZoneMap get(final BufferedDataTable table) {
+        synchronized (MAPS) {
+            Integer id = table.getBufferedTableId();
+            ZoneMap map = MAPS.get(id);
+            if ((map == null) || (map.m_rowCount != table.getRowCount())
+                    || !map.m_spec.equals(table.getDataTableSpec())) {
+                map = new ZoneMap(table.getDataTableSpec(),
+                        table.getRowCount());
+                MAPS.put(id, map);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Creates an empty map for a table that is not kept with the maps of the
+     * recent tables.
+     *
+     * @param spec the table's spec
+     * @param rowCount the number of rows in the table
+     * @return the map
+     */
+    static ZoneMap create(final DataTableSpec spec, final int rowCount) {
+        return new ZoneMap(spec, rowCount);
+    }
+
+    private int getNrBlocks() {
+        return (m_rowCount + RuleEngine.BATCH_SIZE - 1)
+                / RuleEngine.BATCH_SIZE;
+    }
+
+    /**
+     * Writes the statistics of a column for all blocks, see
+     * {@link #BLOCK_STATS_SIZE}. Blocks that have not been recorded are
+     * written as unknown.
+     *
+     * @param col the column's index
+     * @param out the buffer the statistics are written to
+     */
+    void write(final int col, final ByteBuffer out) {
+        ColumnZones z = m_columns.get(col);
+        for (int b = 0; b < getNrBlocks(); b++) {
+            if ((z == null) || (z.m_known.get(b) == 0)) {
+                out.put(new byte[BLOCK_STATS_SIZE]);
+                continue;
+            }
+            out.put((byte)1).put((byte)(z.m_sorted[b] ? 1 : 0));
+            out.putInt(z.m_nulls[b]);
+            if (z.m_minLong != null) {
+                out.putLong(z.m_minLong[b]).putLong(z.m_maxLong[b]);
+            } else {
+                out.putLong(Double.doubleToRawLongBits(z.m_minDouble[b]));
+                out.putLong(Double.doubleToRawLongBits(z.m_maxDouble[b]));
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics of a column for all blocks that have been written
+     * by {@link #write(int, ByteBuffer)}, replacing the ones the map has.
+     *
+     * @param col the column's index
+     * @param kind the kind of the column's values
+     * @param in the buffer the statistics are read from
+     */
+    void read(final int col, final ValueKind kind, final ByteBuffer in) {
+        ColumnZones z = new ColumnZones(kind, getNrBlocks());
+        for (int b = 0; b < getNrBlocks(); b++) {
+            boolean known = in.get() != 0;
+            z.m_sorted[b] = in.get() != 0;
+            z.m_nulls[b] = in.getInt();
+            long min = in.getLong();
+            long max = in.getLong();
+            if (z.m_minLong != null) {
+                z.m_minLong[b] = min;
+                z.m_maxLong[b] = max;
+            } else {
+                z.m_minDouble[b] = Double.longBitsToDouble(min);
+                z.m_maxDouble[b] = Double.longBitsToDouble(max);
+            }
+            z.m_known.set(b, known ? 1 : 0);
+        }
+        m_columns.put(col, z);
+    }
+
+    /**
+     * Returns the statistics of the block a batch belongs to.
+     *
+     * @param batch a batch with the rows of one block
+     * @return the block's statistics, <code>null</code> if the batch is not
+     *         part of the table
+     */
+    Zone getZone(final RowBatch batch) {
+        int block = batch.getFirstIndex() / RuleEngine.BATCH_SIZE;
+        if (block >= getNrBlocks()) {
+            return null;
+        }
+        return new Zone(block, batch.size(), -1, null);
+    }
+
+    /**
+     * Returns if a column is sorted in ascending order without missing
+     * values. This is only known if all blocks have been recorded.
+     *
+     * @param col the column's index
+     * @return <code>true</code> if the column is known to be sorted
+     */
+    boolean isSorted(final int col) {
+        ColumnZones z = m_columns.get(col);
+        if ((z == null) || (z.m_known.length() == 0)) {
+            return false;
+        }
+        for (int b = 0; b < z.m_known.length(); b++) {
+            if ((z.m_known.get(b) == 0) || !z.m_sorted[b]) {
+                return false;
+            }
+            if ((b > 0) && ((z.m_minLong != null)
+                    ? (z.m_maxLong[b - 1] > z.m_minLong[b])
+                    : (z.m_maxDouble[b - 1] > z.m_minDouble[b]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a batch is sorted by a column in ascending order and has no
+     * missing values in it.
+     *
+     * @param batch a batch
+     * @param col the column's index
+     * @param kind the kind of the column's values
+     * @return <code>true</code> if the batch is sorted
+     */
+    static boolean isSorted(final RowBatch batch, final int col,
+            final ValueKind kind) {
+        if (!BatchKernels.isEmpty(batch.getMissing(col))) {
+            return false;
+        }
+        if (kind == ValueKind.DOUBLE) {
+            double[] values = batch.getDoubles(col);
+            for (int i = 1; i < batch.size(); i++) {
+                // also fails for NaNs
+                if (!(values[i - 1] <= values[i])) {
+                    return false;
+                }
+            }
+            return (batch.size() == 0) || !Double.isNaN(values[0]);
+        }
+        long[] values = batch.getLongs(col, kind);
+        for (int i = 1; i < batch.size(); i++) {
+            if (values[i - 1] > values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the statistics of a batch that is sorted by a column: the range
+     * of the sort column is taken from the batch's first and last row, the
+     * other columns' statistics from the given zone.
+     *
+     * @param zone the statistics of the batch's block, may be
+     *            <code>null</code>
+     * @param batch a batch that is sorted by the column, see
+     *            {@link #isSorted(RowBatch, int, ValueKind)}
+     * @param col the sort column's index
+     * @param kind the kind of the sort column's values
+     * @return the statistics
+     */
+    static Zone sorted(final Zone zone, final RowBatch batch, final int col,
+            final ValueKind kind) {
+        ColumnZones range = new ColumnZones(kind, 1);
+        int last = batch.size() - 1;
+        if (kind == ValueKind.DOUBLE) {
+            double[] values = batch.getDoubles(col);
+            range.m_minDouble[0] = values[0];
+            range.m_maxDouble[0] = values[last];
+        } else {
+            long[] values = batch.getLongs(col, kind);
+            range.m_minLong[0] = values[0];
+            range.m_maxLong[0] = values[last];
+        }
+        ZoneMap map = (zone == null) ? EMPTY : zone.getMap();
+        int block = (zone == null) ? 0 : zone.m_block;
+        return map.new Zone(block, batch.size(), col, range);
+    }
+
+    /**
+     * Returns the statistics of all rows that follow a sorted batch: their
+     * sort column values are at least the batch's last value, and they may
+     * contain missing values.
+     *
+     * @param batch a batch that is sorted by the column
+     * @param col the sort column's index
+     * @param kind the kind of the sort column's values
+     * @return the statistics
+     */
+    static Zone tail(final RowBatch batch, final int col,
+            final ValueKind kind) {
+        ColumnZones range = new ColumnZones(kind, 1);
+        int last = batch.size() - 1;
+        if (kind == ValueKind.DOUBLE) {
+            range.m_minDouble[0] = batch.getDoubles(col)[last];
+            range.m_maxDouble[0] = Double.POSITIVE_INFINITY;
+        } else {
+            range.m_minLong[0] = batch.getLongs(col, kind)[last];
+            range.m_maxLong[0] = Long.MAX_VALUE;
+        }
+        // some, but not all of the following rows may be missing
+        range.m_nulls[0] = 1;
+        return EMPTY.new Zone(0, Integer.MAX_VALUE, col, range);
+    }
+
+    /**
+     * Returns the statistics of all rows of a table as they are known from
+     * the domains of its numeric and date columns. The domains do not tell
+     * about missing values, so the rows may contain some.
+     *
+     * @param spec the table's spec
+     * @return the statistics
+     */
+    static Zone domain(final DataTableSpec spec) {
+        ZoneMap map = new ZoneMap(spec, 0);
+        for (int col = 0; col < spec.getNumColumns(); col++) {
+            DataColumnSpec cs = spec.getColumnSpec(col);
+            ValueKind kind = ValueKind.of(cs.getType());
+            if ((kind == ValueKind.BOOLEAN)
+                    || (!kind.isNumeric() && (kind != ValueKind.DATE))) {
+                continue;
+            }
+            DataColumnDomain domain = cs.getDomain();
+            DataCell lower = domain.hasLowerBound()
+                    ? domain.getLowerBound() : null;
+            DataCell upper = domain.hasUpperBound()
+                    ? domain.getUpperBound() : null;
+            if (((lower == null) || lower.isMissing())
+                    && ((upper == null) || upper.isMissing())) {
+                continue;
+            }
+            ColumnZones z = new ColumnZones(kind, 1);
+            try {
+                if (kind == ValueKind.DOUBLE) {
+                    z.m_minDouble[0] = ((lower == null) || lower.isMissing())
+                            ? Double.NEGATIVE_INFINITY
+                            : kind.doubleValue(lower);
+                    z.m_maxDouble[0] = ((upper == null) || upper.isMissing())
+                            ? Double.POSITIVE_INFINITY
+                            : kind.doubleValue(upper);
+                } else {
+                    z.m_minLong[0] = ((lower == null) || lower.isMissing())
+                            ? Long.MIN_VALUE : kind.longValue(lower);
+                    z.m_maxLong[0] = ((upper == null) || upper.isMissing())
+                            ? Long.MAX_VALUE : kind.longValue(upper);
+                }
+            } catch (ClassCastException ex) {
+                // bounds that do not fit the column's type are ignored
+                continue;
+            }
+            z.m_nulls[0] = 1;
+            z.m_known.set(0, 1);
+            map.m_columns.put(col, z);
+        }
+        return map.new Zone(0, Integer.MAX_VALUE, -1, null);
+    }
+
+    /**
+     * Records the statistics of the given columns for the block of a batch,
+     * unless they are already known.
+     *
+     * @param batch a batch with the rows of one block
+     * @param columns the columns and the kinds of their values
+     */
+    void record(final RowBatch batch, final Map<Integer, ValueKind> columns) {
+        int block = batch.getFirstIndex() / RuleEngine.BATCH_SIZE;
+        if (block >= getNrBlocks()) {
+            return;
+        }
+        for (Map.Entry<Integer, ValueKind> e : columns.entrySet()) {
+            int col = e.getKey();
+            ColumnZones z = m_columns.get(col);
+            if (z == null) {
+                z = new ColumnZones(e.getValue(), getNrBlocks());
+                ColumnZones other = m_columns.putIfAbsent(col, z);
+                if (other != null) {
+                    z = other;
+                }
+            }
+            if (z.m_known.get(block) == 0) {
+                record(z, block, batch, col);
+            }
+        }
+    }
+
+    private static void record(final ColumnZones z, final int block,
+            final RowBatch batch, final int col) {
+        long[] missing = batch.getMissing(col);
+        int nulls = 0;
+        if (z.m_kind == ValueKind.DOUBLE) {
+            double[] values = batch.getDoubles(col);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < batch.size(); i++) {
+                double v = values[i];
+                if ((((missing[i >>> 6] >>> i) & 1) != 0) || Double.isNaN(v)) {
+                    nulls++;
+                } else {
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+            z.m_minDouble[block] = min;
+            z.m_maxDouble[block] = max;
+        } else {
+            long[] values = batch.getLongs(col, z.m_kind);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < batch.size(); i++) {
+                if (((missing[i >>> 6] >>> i) & 1) != 0) {
+                    nulls++;
+                } else {
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+            }
+            z.m_minLong[block] = min;
+            z.m_maxLong[block] = max;
+        }
+        z.m_sorted[block] =
+                (nulls == 0) && isSorted(batch, col, z.m_kind);
+        z.m_nulls[block] = nulls;
+        z.m_known.set(block, 1);
+    }
+}